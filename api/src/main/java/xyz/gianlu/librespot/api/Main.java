@@ -19,6 +19,7 @@ package xyz.gianlu.librespot.api;
 
 import org.apache.logging.log4j.core.config.Configurator;
 import org.jetbrains.annotations.NotNull;
+import xyz.gianlu.librespot.common.ExecutorFactory;
 import xyz.gianlu.librespot.common.Log4JUncaughtExceptionHandler;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.mercury.MercuryClient;
@@ -37,6 +38,7 @@ public class Main {
         FileConfiguration conf = new FileConfiguration(args);
         Configurator.setRootLevel(conf.loggingLevel());
         Thread.setDefaultUncaughtExceptionHandler(new Log4JUncaughtExceptionHandler());
+        ExecutorFactory.useVirtualThreads(conf.virtualThreads());
 
         String host = conf.apiHost();
         int port = conf.apiPort();
@@ -17,6 +17,7 @@
 package xyz.gianlu.librespot.api.handlers;
 
 import com.google.gson.JsonObject;
+import com.google.protobuf.Message;
 import io.undertow.server.HttpServerExchange;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -34,6 +35,8 @@ import java.io.IOException;
 import java.util.Deque;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 /**
  * @author Gianlu
@@ -103,15 +106,15 @@ public final class MetadataHandler extends AbsSessionHandler {
     private JsonObject handle(@NotNull Session session, @NotNull MetadataType type, @NotNull String uri) throws IOException, MercuryClient.MercuryException, IllegalArgumentException {
         switch (type) {
             case ALBUM:
-                return ProtobufToJson.convert(session.api().getMetadata4Album(AlbumId.fromUri(uri)));
+                return convert(session.metadataBatcher().album(AlbumId.fromUri(uri)));
             case ARTIST:
-                return ProtobufToJson.convert(session.api().getMetadata4Artist(ArtistId.fromUri(uri)));
+                return convert(session.metadataBatcher().artist(ArtistId.fromUri(uri)));
             case SHOW:
-                return ProtobufToJson.convert(session.api().getMetadata4Show(ShowId.fromUri(uri)));
+                return convert(session.metadataBatcher().show(ShowId.fromUri(uri)));
             case EPISODE:
-                return ProtobufToJson.convert(session.api().getMetadata4Episode(EpisodeId.fromUri(uri)));
+                return convert(session.metadataBatcher().episode(EpisodeId.fromUri(uri)));
             case TRACK:
-                return ProtobufToJson.convert(session.api().getMetadata4Track(TrackId.fromUri(uri)));
+                return convert(session.metadataBatcher().track(TrackId.fromUri(uri)));
             case PLAYLIST:
                 return handlePlaylist(session, uri);
             default:
@@ -119,6 +122,23 @@ public final class MetadataHandler extends AbsSessionHandler {
         }
     }
 
+    /**
+     * Waits for the metadata, concurrent requests are resolved together by the {@link xyz.gianlu.librespot.core.MetadataBatcher}.
+     */
+    @NotNull
+    private static JsonObject convert(@NotNull CompletableFuture<? extends Message> future) throws IOException, MercuryClient.MercuryException {
+        try {
+            return ProtobufToJson.convert(future.get());
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            else if (cause instanceof MercuryClient.MercuryException) throw (MercuryClient.MercuryException) cause;
+            else throw new IOException(cause);
+        }
+    }
+
     @NotNull
     private JsonObject handlePlaylist(@NotNull Session session, @NotNull String uri) throws IOException, MercuryClient.MercuryException {
         return ProtobufToJson.convert(session.api().getPlaylist(PlaylistId.fromUri(uri)));
@@ -24,7 +24,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import xyz.gianlu.librespot.common.NameThreadFactory;
+import xyz.gianlu.librespot.common.ExecutorFactory;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.crypto.DiffieHellman;
@@ -47,7 +47,6 @@ import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -464,7 +463,7 @@ public class ZeroconfServer implements Closeable {
 
     private class HttpRunner implements Runnable, Closeable {
         private final ServerSocket serverSocket;
-        private final ExecutorService executorService = Executors.newCachedThreadPool(new NameThreadFactory((r) -> "zeroconf-client-" + r.hashCode()));
+        private final ExecutorService executorService = ExecutorFactory.newCachedThreadPool((r) -> "zeroconf-client-" + r.hashCode());
         private volatile boolean shouldStop = false;
 
         HttpRunner(int port) throws IOException {
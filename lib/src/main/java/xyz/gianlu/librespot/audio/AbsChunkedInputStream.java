@@ -20,29 +20,59 @@ import org.jetbrains.annotations.NotNull;
 import xyz.gianlu.librespot.player.decoders.SeekableInputStream;
 
 import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
 
 /**
+ * The state of every chunk is kept in an {@link AtomicIntegerArray} and moves between {@link #CHUNK_NONE},
+ * {@link #CHUNK_REQUESTED}, {@link #CHUNK_AVAILABLE} and {@link #CHUNK_FAILED} without locking. Readers waiting for
+ * a chunk park on a queue dedicated to that chunk, so chunk arrivals never contend with each other or with the reader.
+ * <p>
+ * The stream itself must be read by a single thread at a time.
+ *
  * @author devgianlu
  */
 public abstract class AbsChunkedInputStream extends SeekableInputStream implements HaltListener {
-    private static final int PRELOAD_AHEAD = 3;
+    protected static final int CHUNK_NONE = 0;
+    protected static final int CHUNK_REQUESTED = 1;
+    protected static final int CHUNK_AVAILABLE = 2;
+    protected static final int CHUNK_FAILED = 3;
     private static final int PRELOAD_CHUNK_RETRIES = 2;
     private static final int MAX_CHUNK_TRIES = 128;
-    private final Object waitLock = new Object();
-    private final int[] retries;
+    private final AtomicIntegerArray states;
+    private final AtomicIntegerArray retries;
+    private final AtomicReferenceArray<ChunkException> exceptions;
+    private final AtomicReferenceArray<Queue<Thread>> waiters;
+    private final AtomicInteger decodedLength = new AtomicInteger(0);
+    private final AtomicInteger refs = new AtomicInteger(1);
     private final boolean retryOnChunkError;
-    private volatile int waitForChunk = -1;
-    private volatile ChunkException chunkException = null;
-    private int pos = 0;
-    private int mark = 0;
+    private final ReadAheadWindow readAhead;
+    private volatile int pos = 0;
+    private volatile int mark = 0;
     private volatile boolean closed = false;
-    private int decodedLength = 0;
 
     protected AbsChunkedInputStream(boolean retryOnChunkError) {
-        this.retries = new int[chunks()];
+        this(retryOnChunkError, 0, 0);
+    }
+
+    /**
+     * @param bitrate        The codec bitrate in bits per second, {@code 0} if unknown
+     * @param targetBufferMs The amount of audio the read-ahead should try to keep buffered, {@code 0} for the default
+     */
+    protected AbsChunkedInputStream(boolean retryOnChunkError, int bitrate, int targetBufferMs) {
+        int chunks = chunks();
+        this.states = new AtomicIntegerArray(chunks);
+        this.retries = new AtomicIntegerArray(chunks);
+        this.exceptions = new AtomicReferenceArray<>(chunks);
+        this.waiters = new AtomicReferenceArray<>(chunks);
         this.retryOnChunkError = retryOnChunkError;
+        this.readAhead = new ReadAheadWindow(chunks, bitrate, targetBufferMs);
     }
 
     public final boolean isClosed() {
@@ -55,15 +85,45 @@ public abstract class AbsChunkedInputStream extends SeekableInputStream implemen
 
     @Override
     public void close() {
+        if (closed) return;
         closed = true;
 
-        synchronized (waitLock) {
-            waitLock.notifyAll();
+        for (int i = 0; i < waiters.length(); i++)
+            wakeWaiters(i);
+
+        releaseRef();
+    }
+
+    /**
+     * Prevents the chunk buffers from being released while they are being read.
+     *
+     * @return Whether the buffers are still valid
+     */
+    private boolean retainRef() {
+        int count;
+        do {
+            count = refs.get();
+            if (count <= 0) return false;
+        } while (!refs.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Drops a reference to the chunk buffers, returning them to the {@link ChunkBufferPool} once nobody uses them.
+     */
+    private void releaseRef() {
+        if (refs.decrementAndGet() != 0) return;
+
+        byte[][] buffer = buffer();
+        ChunkBufferPool pool = ChunkBufferPool.get();
+        for (int i = 0; i < buffer.length; i++) {
+            pool.release(buffer[i]);
+            buffer[i] = null;
         }
     }
 
     @Override
-    public final synchronized int available() {
+    public final int available() {
         return size() - pos;
     }
 
@@ -73,22 +133,22 @@ public abstract class AbsChunkedInputStream extends SeekableInputStream implemen
     }
 
     @Override
-    public final synchronized void mark(int readAheadLimit) {
+    public final void mark(int readAheadLimit) {
         mark = pos;
     }
 
     @Override
-    public final synchronized void reset() {
+    public final void reset() {
         pos = mark;
     }
 
     @Override
-    public final synchronized int position() {
+    public final int position() {
         return pos;
     }
 
     @Override
-    public final synchronized void seek(int where) throws IOException {
+    public final void seek(int where) throws IOException {
         if (where < 0) throw new IllegalArgumentException();
         if (closed) throw new IOException("Stream is closed!");
         pos = where;
@@ -97,7 +157,7 @@ public abstract class AbsChunkedInputStream extends SeekableInputStream implemen
     }
 
     @Override
-    public final synchronized long skip(long n) throws IOException {
+    public final long skip(long n) throws IOException {
         if (n < 0) throw new IllegalArgumentException();
         if (closed) throw new IOException("Stream is closed!");
 
@@ -111,10 +171,6 @@ public abstract class AbsChunkedInputStream extends SeekableInputStream implemen
         return k;
     }
 
-    protected abstract boolean[] requestedChunks();
-
-    protected abstract boolean[] availableChunks();
-
     protected abstract int chunks();
 
     /**
@@ -122,6 +178,22 @@ public abstract class AbsChunkedInputStream extends SeekableInputStream implemen
      */
     protected abstract void requestChunkFromStream(int index);
 
+    /**
+     * @return The state of the given chunk, one of {@link #CHUNK_NONE}, {@link #CHUNK_REQUESTED}, {@link #CHUNK_AVAILABLE} or {@link #CHUNK_FAILED}
+     */
+    protected final int chunkState(int index) {
+        return states.get(index);
+    }
+
+    @NotNull
+    public final ReadAheadWindow readAhead() {
+        return readAhead;
+    }
+
+    public final boolean isChunkAvailable(int index) {
+        return states.get(index) == CHUNK_AVAILABLE;
+    }
+
     /**
      * Should we retry fetching this chunk? MUST be called only for chunks that are needed immediately ({@code wait = true})!
      *
@@ -129,11 +201,28 @@ public abstract class AbsChunkedInputStream extends SeekableInputStream implemen
      * @return Whether we should retry.
      */
     private boolean shouldRetry(int chunk) {
-        if (retries[chunk] < 1) return true;
-        if (retries[chunk] > MAX_CHUNK_TRIES) return false;
+        int tries = retries.get(chunk);
+        if (tries < 1) return true;
+        if (tries > MAX_CHUNK_TRIES) return false;
         return !retryOnChunkError;
     }
 
+    /**
+     * Requests the given chunk if nobody did already.
+     *
+     * @return Whether the chunk has been requested by this call
+     */
+    private boolean tryRequest(int chunk) {
+        int state = states.get(chunk);
+        if ((state == CHUNK_NONE || state == CHUNK_FAILED) && states.compareAndSet(chunk, state, CHUNK_REQUESTED)) {
+            readAhead.onRequested(chunk);
+            requestChunkFromStream(chunk);
+            return true;
+        }
+
+        return false;
+    }
+
     /**
      * Chunk if {@param chunk} is available or wait until it becomes, also handles the retry mechanism.
      *
@@ -145,56 +234,82 @@ public abstract class AbsChunkedInputStream extends SeekableInputStream implemen
     private void checkAvailability(int chunk, boolean wait, boolean halted) throws IOException {
         if (halted && !wait) throw new IllegalArgumentException();
 
-        if (!requestedChunks()[chunk]) {
-            requestChunkFromStream(chunk);
-            requestedChunks()[chunk] = true;
-        }
+        tryRequest(chunk);
 
-        for (int i = chunk + 1; i <= Math.min(chunks() - 1, chunk + PRELOAD_AHEAD); i++) {
-            if (!requestedChunks()[i] && retries[i] < PRELOAD_CHUNK_RETRIES) {
-                requestChunkFromStream(i);
-                requestedChunks()[i] = true;
-            }
+        for (int i = chunk + 1; i <= Math.min(chunks() - 1, chunk + readAhead.window()); i++) {
+            if (retries.get(i) < PRELOAD_CHUNK_RETRIES)
+                tryRequest(i);
         }
 
-        if (wait) {
-            if (availableChunks()[chunk]) return;
+        if (!wait || states.get(chunk) == CHUNK_AVAILABLE) return;
 
-            boolean retry = false;
-            synchronized (waitLock) {
-                if (!halted) streamReadHalted(chunk, System.currentTimeMillis());
+        while (true) {
+            if (!halted) {
+                streamReadHalted(chunk, System.currentTimeMillis());
+                halted = true;
+            }
 
-                try {
-                    chunkException = null;
-                    waitForChunk = chunk;
-                    waitLock.wait();
+            int state = awaitChunk(chunk);
+            if (closed) return;
 
-                    if (closed) return;
+            if (state == CHUNK_AVAILABLE) {
+                streamReadResumed(chunk, System.currentTimeMillis());
+                return;
+            }
 
-                    if (chunkException != null) {
-                        if (shouldRetry(chunk)) retry = true;
-                        else throw chunkException;
-                    }
-                } catch (InterruptedException ex) {
-                    throw new IOException(ex);
-                }
+            ChunkException ex = exceptions.get(chunk);
+            if (ex == null) ex = new ChunkException("Failed retrieving chunk " + chunk);
+            if (!shouldRetry(chunk)) throw ex;
 
-                if (!retry) streamReadResumed(chunk, System.currentTimeMillis());
+            try {
+                Thread.sleep((long) (Math.log10(retries.get(chunk)) * 1000));
+            } catch (InterruptedException ignored) {
             }
 
-            if (retry) {
-                try {
-                    Thread.sleep((long) (Math.log10(retries[chunk]) * 1000));
-                } catch (InterruptedException ignored) {
-                }
+            tryRequest(chunk);
+        }
+    }
+
+    /**
+     * Parks the current thread until the given chunk is either available or failed, or the stream is closed.
+     *
+     * @return The final state of the chunk
+     */
+    private int awaitChunk(int chunk) throws IOException {
+        int state = states.get(chunk);
+        if (state == CHUNK_AVAILABLE || state == CHUNK_FAILED) return state;
+
+        Queue<Thread> queue = waiters.get(chunk);
+        if (queue == null) {
+            waiters.compareAndSet(chunk, null, new ConcurrentLinkedQueue<>());
+            queue = waiters.get(chunk);
+        }
+
+        Thread current = Thread.currentThread();
+        queue.add(current);
+        try {
+            while (true) {
+                state = states.get(chunk);
+                if (state == CHUNK_AVAILABLE || state == CHUNK_FAILED || closed) return state;
 
-                checkAvailability(chunk, true, true); // We must exit the synchronized block!
+                LockSupport.park(this);
+                if (Thread.interrupted()) throw new IOException(new InterruptedException());
             }
+        } finally {
+            queue.remove(current);
         }
     }
 
+    private void wakeWaiters(int chunk) {
+        Queue<Thread> queue = waiters.get(chunk);
+        if (queue == null) return;
+
+        for (Thread thread : queue)
+            LockSupport.unpark(thread);
+    }
+
     @Override
-    public final synchronized int read(@NotNull byte[] b, int off, int len) throws IOException {
+    public final int read(@NotNull byte[] b, int off, int len) throws IOException {
         if (closed) throw new IOException("Stream is closed!");
 
         if (off < 0 || len < 0 || len > b.length - off) {
@@ -212,11 +327,17 @@ public abstract class AbsChunkedInputStream extends SeekableInputStream implemen
             int chunkOff = pos % CHUNK_SIZE;
 
             checkAvailability(chunk, true, false);
-
-            int copy = Math.min(buffer()[chunk].length - chunkOff, len - i);
-            System.arraycopy(buffer()[chunk], chunkOff, b, off + i, copy);
-            i += copy;
-            pos += copy;
+            if (closed || !retainRef()) throw new IOException("Stream is closed!");
+
+            try {
+                byte[] buffer = buffer()[chunk];
+                int copy = Math.min(buffer.length - chunkOff, len - i);
+                System.arraycopy(buffer, chunkOff, b, off + i, copy);
+                i += copy;
+                pos += copy;
+            } finally {
+                releaseRef();
+            }
 
             if (i == len || pos >= size())
                 return i;
@@ -224,7 +345,7 @@ public abstract class AbsChunkedInputStream extends SeekableInputStream implemen
     }
 
     @Override
-    public final synchronized int read() throws IOException {
+    public final int read() throws IOException {
         if (closed) throw new IOException("Stream is closed!");
 
         if (pos >= size())
@@ -232,39 +353,41 @@ public abstract class AbsChunkedInputStream extends SeekableInputStream implemen
 
         int chunk = pos / CHUNK_SIZE;
         checkAvailability(chunk, true, false);
-
-        return buffer()[chunk][pos++ % CHUNK_SIZE] & 0xff;
+        if (closed || !retainRef()) throw new IOException("Stream is closed!");
+
+        try {
+            int b = buffer()[chunk][pos % CHUNK_SIZE] & 0xff;
+            pos++;
+            return b;
+        } finally {
+            releaseRef();
+        }
     }
 
     public final void notifyChunkAvailable(int index) {
-        availableChunks()[index] = true;
-        decodedLength += buffer()[index].length;
-
-        synchronized (waitLock) {
-            if (index == waitForChunk && !closed) {
-                waitForChunk = -1;
-                waitLock.notifyAll();
+        if (states.getAndSet(index, CHUNK_AVAILABLE) != CHUNK_AVAILABLE) {
+            byte[] chunk = buffer()[index];
+            if (!closed && chunk != null) { // Buffers are released on close
+                decodedLength.addAndGet(chunk.length);
+                readAhead.onAvailable(index, chunk.length);
             }
         }
+
+        wakeWaiters(index);
     }
 
     public final void notifyChunkError(int index, @NotNull ChunkException ex) {
-        availableChunks()[index] = false;
-        requestedChunks()[index] = false;
-        retries[index] += 1;
-
-        synchronized (waitLock) {
-            if (index == waitForChunk && !closed) {
-                chunkException = ex;
-                waitForChunk = -1;
-                waitLock.notifyAll();
-            }
-        }
+        exceptions.set(index, ex);
+        readAhead.onFailed(index);
+        retries.incrementAndGet(index);
+        states.set(index, CHUNK_FAILED);
+
+        wakeWaiters(index);
     }
 
     @Override
     public int decodedLength() {
-        return decodedLength;
+        return decodedLength.get();
     }
 
     public static class ChunkException extends IOException {
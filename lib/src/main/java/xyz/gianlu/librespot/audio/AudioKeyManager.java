@@ -21,66 +21,184 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import xyz.gianlu.librespot.common.NameThreadFactory;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.PacketsReceiver;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.crypto.Packet;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * Retrieves audio keys from the access point. Keys are kept in a bounded in-memory cache, optionally persisted with
+ * an {@link AudioKeyStore}, and concurrent requests for the same key share a single round-trip.
+ *
  * @author Gianlu
  */
-public final class AudioKeyManager implements PacketsReceiver {
+public final class AudioKeyManager implements PacketsReceiver, Closeable {
     private static final byte[] ZERO_SHORT = new byte[]{0, 0};
     private static final Logger LOGGER = LoggerFactory.getLogger(AudioKeyManager.class);
     private static final long AUDIO_KEY_REQUEST_TIMEOUT = 2000;
+    private static final int MAX_CACHED_KEYS = 1024;
     private final AtomicInteger seqHolder = new AtomicInteger(0);
     private final Map<Integer, Callback> callbacks = Collections.synchronizedMap(new HashMap<>());
+    private final Map<String, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_CACHED_KEYS;
+        }
+    };
+    private final ScheduledExecutorService timeoutScheduler = Executors.newSingleThreadScheduledExecutor(new NameThreadFactory((r) -> "audio-key-timeout-" + r.hashCode()));
     private final Session session;
+    private final AudioKeyStore store;
 
     public AudioKeyManager(@NotNull Session session) {
+        this(session, null);
+    }
+
+    /**
+     * @param store Where to persist the cached keys, {@code null} to keep them in memory only
+     */
+    public AudioKeyManager(@NotNull Session session, @Nullable AudioKeyStore store) {
         this.session = session;
+        this.store = store;
+
+        if (store != null) {
+            try {
+                Map<String, byte[]> keys = store.load();
+                synchronized (cache) {
+                    cache.putAll(keys);
+                }
+
+                LOGGER.debug("Loaded {} stored audio keys.", keys.size());
+            } catch (IOException ex) {
+                LOGGER.warn("Failed loading stored audio keys.", ex);
+            }
+        }
+    }
+
+    @NotNull
+    private static String keyId(@NotNull ByteString gid, @NotNull ByteString fileId) {
+        return Utils.bytesToHex(gid) + ":" + Utils.bytesToHex(fileId);
+    }
+
+    /**
+     * @return Whether the key is available without contacting the access point
+     */
+    public boolean isCached(@NotNull ByteString gid, @NotNull ByteString fileId) {
+        synchronized (cache) {
+            return cache.containsKey(keyId(gid, fileId));
+        }
     }
 
     @NotNull
     public byte[] getAudioKey(@NotNull ByteString gid, @NotNull ByteString fileId) throws IOException {
-        return getAudioKey(gid, fileId, true);
+        try {
+            return getAudioKeyAsync(gid, fileId).get();
+        } catch (InterruptedException ex) {
+            throw new IOException(ex); // Wrapping to avoid cluttering the call stack
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            else throw new IOException(ex.getCause());
+        }
     }
 
+    /**
+     * Retrieves the key without blocking. If the key is being requested already, the same future is returned.
+     */
     @NotNull
-    private byte[] getAudioKey(@NotNull ByteString gid, @NotNull ByteString fileId, boolean retry) throws IOException {
-        int seq;
-        synchronized (seqHolder) {
-            seq = seqHolder.getAndIncrement();
+    public CompletableFuture<byte[]> getAudioKeyAsync(@NotNull ByteString gid, @NotNull ByteString fileId) {
+        String id = keyId(gid, fileId);
+        synchronized (cache) {
+            byte[] key = cache.get(id);
+            if (key != null) return CompletableFuture.completedFuture(key);
         }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        fileId.writeTo(out);
-        gid.writeTo(out);
-        out.write(Utils.toByteArray(seq));
-        out.write(ZERO_SHORT);
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = pending.putIfAbsent(id, future);
+        if (existing != null) return existing;
 
-        session.send(Packet.Type.RequestKey, out.toByteArray());
+        future.whenComplete((key, ex) -> pending.remove(id, future));
+        request(gid, fileId, id, future, true);
+        return future;
+    }
 
-        SyncCallback callback = new SyncCallback();
-        callbacks.put(seq, callback);
+    /**
+     * Requests all the given keys at once, without waiting for any response in between.
+     *
+     * @param files The files, keyed by the gid of their track or episode
+     * @return A future completing once all the keys have been retrieved
+     */
+    @NotNull
+    public CompletableFuture<Void> prefetchAudioKeys(@NotNull Map<ByteString, ByteString> files) {
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>(files.size());
+        for (Map.Entry<ByteString, ByteString> entry : files.entrySet())
+            futures.add(getAudioKeyAsync(entry.getKey(), entry.getValue()));
 
-        byte[] key = callback.waitResponse();
-        if (key == null) {
-            if (retry) return getAudioKey(gid, fileId, false);
-            else throw new AesKeyException(String.format("Failed fetching audio key! {gid: %s, fileId: %s}",
-                    Utils.bytesToHex(gid), Utils.bytesToHex(fileId)));
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private void request(@NotNull ByteString gid, @NotNull ByteString fileId, @NotNull String id, @NotNull CompletableFuture<byte[]> future, boolean retry) {
+        int seq = seqHolder.getAndIncrement();
+
+        Runnable failed = () -> {
+            if (retry) {
+                request(gid, fileId, id, future, false);
+            } else {
+                future.completeExceptionally(new AesKeyException(String.format("Failed fetching audio key! {gid: %s, fileId: %s}",
+                        Utils.bytesToHex(gid), Utils.bytesToHex(fileId))));
+            }
+        };
+
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = timeoutScheduler.schedule(() -> {
+                if (callbacks.remove(seq) != null) failed.run();
+            }, AUDIO_KEY_REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(new IOException("Audio key manager is closed!"));
+            return;
         }
 
-        return key;
+        callbacks.put(seq, new Callback() {
+            @Override
+            public void key(byte[] key) {
+                timeout.cancel(false);
+                synchronized (cache) {
+                    cache.put(id, key);
+                }
+
+                future.complete(key);
+            }
+
+            @Override
+            public void error(short code) {
+                LOGGER.error("Audio key error, code: {}", code);
+                timeout.cancel(false);
+                failed.run();
+            }
+        });
+
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            fileId.writeTo(out);
+            gid.writeTo(out);
+            out.write(Utils.toByteArray(seq));
+            out.write(ZERO_SHORT);
+
+            session.send(Packet.Type.RequestKey, out.toByteArray());
+        } catch (IOException ex) {
+            callbacks.remove(seq);
+            timeout.cancel(false);
+            future.completeExceptionally(ex);
+        }
     }
 
     @Override
@@ -106,44 +224,31 @@ public final class AudioKeyManager implements PacketsReceiver {
         }
     }
 
-    private interface Callback {
-        void key(byte[] key);
-
-        void error(short code);
-    }
+    @Override
+    public void close() {
+        timeoutScheduler.shutdownNow();
 
-    private static class SyncCallback implements Callback {
-        private final AtomicReference<byte[]> reference = new AtomicReference<>();
+        for (CompletableFuture<byte[]> future : new ArrayList<>(pending.values()))
+            future.completeExceptionally(new IOException("Audio key manager is closed!"));
 
-        @Override
-        public void key(byte[] key) {
-            synchronized (reference) {
-                reference.set(key);
-                reference.notifyAll();
+        if (store != null) {
+            Map<String, byte[]> keys;
+            synchronized (cache) {
+                keys = new LinkedHashMap<>(cache);
             }
-        }
-
-        @Override
-        public void error(short code) {
-            LOGGER.error("Audio key error, code: {}", code);
 
-            synchronized (reference) {
-                reference.set(null);
-                reference.notifyAll();
+            try {
+                store.save(keys);
+            } catch (IOException ex) {
+                LOGGER.warn("Failed storing audio keys.", ex);
             }
         }
+    }
 
-        @Nullable
-        byte[] waitResponse() throws IOException {
-            synchronized (reference) {
-                try {
-                    reference.wait(AUDIO_KEY_REQUEST_TIMEOUT);
-                    return reference.get();
-                } catch (InterruptedException ex) {
-                    throw new IOException(ex); // Wrapping to avoid cluttering the call stack
-                }
-            }
-        }
+    private interface Callback {
+        void key(byte[] key);
+
+        void error(short code);
     }
 
     public static class AesKeyException extends IOException {
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.audio;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persists audio keys in the cache directory. The file is encrypted with AES-GCM using a random key that is generated
+ * once and stored next to it, and it is bound to the user that saved it.
+ * <p>
+ * Because the key lives in the same directory, this only keeps the audio keys out of a copy of the file taken on its
+ * own: anyone who can read the whole cache directory can decrypt them.
+ *
+ * @author devgianlu
+ */
+public final class AudioKeyStore {
+    static final String FILE_NAME = "audio_keys.dat";
+    static final String KEY_FILE_NAME = "audio_keys.key";
+    private static final int VERSION = 2;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 128;
+    private static final int KEY_LENGTH = 16;
+    private final File file;
+    private final File keyFile;
+    private final byte[] username;
+    private final SecureRandom random = new SecureRandom();
+    private SecretKeySpec secret = null;
+
+    /**
+     * @param username The canonical username, keys saved by another user are not loaded
+     */
+    public AudioKeyStore(@NotNull File cacheDir, @NotNull String username) {
+        this.file = new File(cacheDir, FILE_NAME);
+        this.keyFile = new File(cacheDir, KEY_FILE_NAME);
+        this.username = username.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the encryption key, generating it if it doesn't exist yet.
+     *
+     * @param create Whether a missing key should be generated
+     * @return The encryption key, {@code null} if missing and {@code create} is {@code false}
+     */
+    private synchronized SecretKeySpec secret(boolean create) throws IOException {
+        if (secret != null) return secret;
+
+        byte[] key;
+        if (keyFile.exists()) {
+            key = Files.readAllBytes(keyFile.toPath());
+            if (key.length != KEY_LENGTH) throw new IOException("Invalid audio keys key file!");
+        } else if (create) {
+            key = new byte[KEY_LENGTH];
+            random.nextBytes(key);
+
+            File parent = keyFile.getParentFile();
+            if (!parent.exists() && !parent.mkdirs())
+                throw new IOException("Failed creating directory: " + parent);
+
+            File tmp = new File(parent, KEY_FILE_NAME + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(key);
+                out.getFD().sync();
+            }
+
+            tmp.setReadable(false, false);
+            tmp.setReadable(true, true);
+            Files.move(tmp.toPath(), keyFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            return null;
+        }
+
+        return secret = new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * @return The stored keys in the order they were saved, empty if nothing has been stored yet
+     */
+    @NotNull
+    Map<String, byte[]> load() throws IOException {
+        Map<String, byte[]> keys = new LinkedHashMap<>();
+        if (!file.exists()) return keys;
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (data.length < 1 + IV_LENGTH || data[0] != VERSION)
+            throw new IOException("Invalid audio keys file!");
+
+        SecretKeySpec secret = secret(false);
+        if (secret == null) throw new IOException("Missing audio keys key file!");
+
+        byte[] plain;
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, secret, new GCMParameterSpec(TAG_LENGTH, data, 1, IV_LENGTH));
+            cipher.updateAAD(username);
+            plain = cipher.doFinal(data, 1 + IV_LENGTH, data.length - 1 - IV_LENGTH);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Failed decrypting audio keys file!", ex);
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                byte[] key = new byte[KEY_LENGTH];
+                in.readFully(key);
+                keys.put(id, key);
+            }
+        }
+
+        return keys;
+    }
+
+    /**
+     * Replaces the stored keys with the given ones.
+     */
+    void save(@NotNull Map<String, byte[]> keys) throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream(4 + keys.size() * 64);
+        try (DataOutputStream out = new DataOutputStream(plain)) {
+            out.writeInt(keys.size());
+            for (Map.Entry<String, byte[]> entry : keys.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.write(entry.getValue(), 0, KEY_LENGTH);
+            }
+        }
+
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+
+        byte[] encrypted;
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, secret(true), new GCMParameterSpec(TAG_LENGTH, iv));
+            cipher.updateAAD(username);
+            encrypted = cipher.doFinal(plain.toByteArray());
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Failed encrypting audio keys file!", ex);
+        }
+
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs())
+            throw new IOException("Failed creating directory: " + parent);
+
+        File tmp = new File(parent, FILE_NAME + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(VERSION);
+            out.write(iv);
+            out.write(encrypted);
+            out.getFD().sync();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
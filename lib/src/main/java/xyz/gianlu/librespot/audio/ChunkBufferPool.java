@@ -0,0 +1,113 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.audio;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * A bounded pool of {@link xyz.gianlu.librespot.audio.storage.ChannelManager#CHUNK_SIZE} buffers shared by the fetchers,
+ * the cache and the chunked streams. Buffers that are not full chunks are never pooled.
+ *
+ * @author devgianlu
+ */
+public final class ChunkBufferPool {
+    private static final int MAX_POOLED = 64;
+    private static final ChunkBufferPool INSTANCE = new ChunkBufferPool(MAX_POOLED);
+    private final BlockingQueue<byte[]> free;
+    private final AtomicLong allocations = new AtomicLong(0);
+    private final AtomicLong reuses = new AtomicLong(0);
+    private final AtomicLong releases = new AtomicLong(0);
+    private final AtomicLong discards = new AtomicLong(0);
+
+    ChunkBufferPool(int maxPooled) {
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    @NotNull
+    public static ChunkBufferPool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return A buffer of exactly {@link xyz.gianlu.librespot.audio.storage.ChannelManager#CHUNK_SIZE} bytes, its content is undefined
+     */
+    @NotNull
+    public byte[] acquire() {
+        byte[] buffer = free.poll();
+        if (buffer != null) {
+            reuses.incrementAndGet();
+            return buffer;
+        }
+
+        allocations.incrementAndGet();
+        return new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use the buffer anymore.
+     */
+    public void release(@Nullable byte[] buffer) {
+        if (buffer == null || buffer.length != CHUNK_SIZE) return;
+
+        if (free.offer(buffer)) releases.incrementAndGet();
+        else discards.incrementAndGet();
+    }
+
+    /**
+     * @return The number of buffers that had to be allocated
+     */
+    public long allocations() {
+        return allocations.get();
+    }
+
+    /**
+     * @return The number of buffers that have been served from the pool
+     */
+    public long reuses() {
+        return reuses.get();
+    }
+
+    /**
+     * @return The number of buffers that have been returned to the pool
+     */
+    public long releases() {
+        return releases.get();
+    }
+
+    /**
+     * @return The number of buffers that have been dropped because the pool was full
+     */
+    public long discards() {
+        return discards.get();
+    }
+
+    public int pooled() {
+        return free.size();
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkBufferPool{allocations=" + allocations + ", reuses=" + reuses + ", releases=" + releases + ", discards=" + discards + ", pooled=" + free.size() + '}';
+    }
+}
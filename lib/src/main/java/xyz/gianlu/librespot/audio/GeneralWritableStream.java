@@ -16,11 +16,26 @@
 
 package xyz.gianlu.librespot.audio;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
 
 /**
  * @author Gianlu
  */
 public interface GeneralWritableStream {
     void writeChunk(byte[] buffer, int chunkIndex, boolean cached) throws IOException;
+
+    /**
+     * Writes a chunk from a buffer that is only valid for the duration of the call, such as a slice of a memory mapped
+     * cache file. The default implementation copies it into a heap array.
+     */
+    default void writeChunk(@NotNull ByteBuffer buffer, int chunkIndex, boolean cached) throws IOException {
+        byte[] chunk = buffer.remaining() == CHUNK_SIZE ? ChunkBufferPool.get().acquire() : new byte[buffer.remaining()];
+        buffer.duplicate().get(chunk);
+        writeChunk(chunk, chunkIndex, cached);
+    }
 }
@@ -33,7 +33,7 @@ import xyz.gianlu.librespot.audio.format.AudioQualityPicker;
 import xyz.gianlu.librespot.audio.format.SuperAudioFormat;
 import xyz.gianlu.librespot.audio.storage.AudioFileFetch;
 import xyz.gianlu.librespot.audio.storage.StorageFeedHelper;
-import xyz.gianlu.librespot.common.NameThreadFactory;
+import xyz.gianlu.librespot.common.ExecutorFactory;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.mercury.MercuryClient;
@@ -42,28 +42,34 @@ import xyz.gianlu.librespot.metadata.LocalId;
 import xyz.gianlu.librespot.metadata.PlayableId;
 import xyz.gianlu.librespot.metadata.TrackId;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
 
 /**
  * @author Gianlu
  */
-public final class PlayableContentFeeder {
+public final class PlayableContentFeeder implements Closeable {
     private static final Logger LOGGER = LoggerFactory.getLogger(PlayableContentFeeder.class);
     private static final String STORAGE_RESOLVE_INTERACTIVE = "/storage-resolve/files/audio/interactive/%s";
     private static final String STORAGE_RESOLVE_INTERACTIVE_PREFETCH = "/storage-resolve/files/audio/interactive_prefetch/%s";
     protected final Session session;
+    private final ExecutorService executorService = ExecutorFactory.newCachedThreadPool((r) -> "feeder-async-" + r.hashCode());
 
     public PlayableContentFeeder(@NotNull Session session) {
         this.session = session;
     }
 
+    /**
+     * Stops the loading pipeline, loads in progress are interrupted and new ones fail.
+     */
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+    }
+
     @Nullable
     private static Metadata.Track pickAlternativeIfNecessary(@NotNull Metadata.Track track) {
         if (track.getFileCount() > 0) return track;
@@ -90,6 +96,42 @@ public final class PlayableContentFeeder {
             throw new IllegalArgumentException("Unknown content: " + id);
     }
 
+    /**
+     * Requests the audio keys of the given content all at once, so that loading it later doesn't wait for them.
+     * The metadata of every content is resolved first, in batches, through the {@link xyz.gianlu.librespot.core.MetadataBatcher}.
+     *
+     * @return A future completing once all the keys have been retrieved
+     */
+    @NotNull
+    public CompletableFuture<Void> prefetchAudioKeys(@NotNull List<PlayableId> ids, @NotNull AudioQualityPicker audioQualityPicker) {
+        List<Stage<Metadata.AudioFile>> files = new ArrayList<>(ids.size());
+        List<ByteString> gids = new ArrayList<>(ids.size());
+        for (PlayableId id : ids) {
+            if (id instanceof TrackId) {
+                gids.add(ByteString.copyFrom(id.getGid()));
+                files.add(new Stage<>(session.metadataBatcher().track((TrackId) id).thenApply(original -> {
+                    Metadata.Track track = pickAlternativeIfNecessary(original);
+                    return track == null ? null : audioQualityPicker.getFile(track.getFileList());
+                })));
+            } else if (id instanceof EpisodeId) {
+                gids.add(ByteString.copyFrom(id.getGid()));
+                files.add(new Stage<>(session.metadataBatcher().episode((EpisodeId) id).thenApply(episode ->
+                        episode.hasExternalUrl() ? null : audioQualityPicker.getFile(episode.getAudioList()))));
+            }
+        }
+
+        return CompletableFuture.allOf(files.stream().map(stage -> stage.future).toArray(CompletableFuture[]::new))
+                .thenCompose(v -> {
+                    Map<ByteString, ByteString> keys = new LinkedHashMap<>();
+                    for (int i = 0; i < files.size(); i++) {
+                        Metadata.AudioFile file = files.get(i).future.join();
+                        if (file != null) keys.put(gids.get(i), file.getFileId());
+                    }
+
+                    return session.audioKey().prefetchAudioKeys(keys);
+                });
+    }
+
     @NotNull
     private StorageResolveResponse resolveStorageInteractive(@NotNull ByteString fileId, boolean preload) throws IOException, MercuryClient.MercuryException {
         try (Response resp = session.api().send("GET", String.format(preload ? STORAGE_RESOLVE_INTERACTIVE_PREFETCH : STORAGE_RESOLVE_INTERACTIVE, Utils.bytesToHex(fileId)), null, null)) {
@@ -103,7 +145,9 @@ public final class PlayableContentFeeder {
     }
 
     private @NotNull LoadedStream loadTrack(@NotNull TrackId id, @NotNull AudioQualityPicker audioQualityPicker, boolean preload, @Nullable HaltListener haltListener) throws IOException, MercuryClient.MercuryException, ContentRestrictedException, CdnManager.CdnException {
+        long start = System.currentTimeMillis();
         Metadata.Track original = session.api().getMetadata4Track(id);
+        int metadataTime = (int) (System.currentTimeMillis() - start);
         Metadata.Track track = pickAlternativeIfNecessary(original);
         if (track == null) {
             String country = session.countryCode();
@@ -113,38 +157,62 @@ public final class PlayableContentFeeder {
             throw new FeederException();
         }
 
-        return loadTrack(track, audioQualityPicker, preload, haltListener);
+        return loadTrack(track, audioQualityPicker, preload, haltListener, metadataTime);
     }
 
+    /**
+     * Opens the CDN stream, requesting the first chunk while the audio key is still being retrieved.
+     *
+     * @param preloadedKey Whether the key was retrieved in advance
+     */
     @NotNull
-    @Contract("_, null, null, _, _, _ -> fail")
-    private LoadedStream loadCdnStream(@NotNull Metadata.AudioFile file, @Nullable Metadata.Track track, @Nullable Metadata.Episode episode, @NotNull String urlStr, boolean preload, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
+    @Contract("_, null, null, _, _, _, _, _, _ -> fail")
+    private LoadedStream loadCdnStream(@NotNull Metadata.AudioFile file, @Nullable Metadata.Track track, @Nullable Metadata.Episode episode, @NotNull List<HttpUrl> urls,
+                                       @NotNull Stage<byte[]> key, boolean preloadedKey, @Nullable HaltListener haltListener, int metadataTime, int storageResolveTime) throws IOException, CdnManager.CdnException {
         if (track == null && episode == null)
             throw new IllegalStateException();
 
-        HttpUrl url = HttpUrl.get(urlStr);
-        if (track != null) return CdnFeedHelper.loadTrack(session, track, file, url, preload, haltListener);
-        else return CdnFeedHelper.loadEpisode(session, episode, file, url, haltListener);
+        long start = System.currentTimeMillis();
+        CdnManager.Streamer streamer = session.cdn().streamFile(file, key.future, urls, haltListener);
+        int firstChunkTime = (int) (System.currentTimeMillis() - start);
+
+        InputStream in = streamer.stream();
+        NormalizationData normalizationData = NormalizationData.read(in);
+        if (in.skip(0xa7) != 0xa7) throw new IOException("Couldn't skip 0xa7 bytes!");
+
+        Metrics metrics = new Metrics(file.getFileId(), preloadedKey, preloadedKey ? -1 : key.time, metadataTime, storageResolveTime, firstChunkTime);
+        if (track != null) return new LoadedStream(track, streamer, normalizationData, metrics);
+        else return new LoadedStream(episode, streamer, normalizationData, metrics);
     }
 
+    /**
+     * Resolves the storage and retrieves the audio key concurrently, then opens the stream.
+     */
     @NotNull
-    @Contract("_, null, null, _, _ -> fail")
-    private LoadedStream loadStream(@NotNull Metadata.AudioFile file, @Nullable Metadata.Track track, @Nullable Metadata.Episode episode, boolean preload, @Nullable HaltListener haltListener) throws IOException, MercuryClient.MercuryException, CdnManager.CdnException {
+    @Contract("_, null, null, _, _, _ -> fail")
+    private LoadedStream loadStream(@NotNull Metadata.AudioFile file, @Nullable Metadata.Track track, @Nullable Metadata.Episode episode, boolean preload, @Nullable HaltListener haltListener, int metadataTime) throws IOException, MercuryClient.MercuryException, CdnManager.CdnException {
         if (track == null && episode == null)
             throw new IllegalStateException();
 
-        StorageResolveResponse resp = resolveStorageInteractive(file.getFileId(), preload);
+        ByteString gid = track != null ? track.getGid() : episode.getGid();
+        boolean cachedKey = session.audioKey().isCached(gid, file.getFileId());
+        Stage<StorageResolveResponse> resolve = new Stage<>(() -> resolveStorageInteractive(file.getFileId(), preload));
+        Stage<byte[]> key = new Stage<>(session.audioKey().getAudioKeyAsync(gid, file.getFileId()));
+
+        StorageResolveResponse resp = resolve.get();
         switch (resp.getResult()) {
             case CDN:
-                if (track != null) return CdnFeedHelper.loadTrack(session, track, file, resp, preload, haltListener);
-                else return CdnFeedHelper.loadEpisode(session, episode, file, resp, haltListener);
+                return loadCdnStream(file, track, episode, CdnManager.parseUrls(resp), key, preload || cachedKey, haltListener, metadataTime, resolve.time);
             case STORAGE:
                 try {
-                    if (track != null) return StorageFeedHelper.loadTrack(session, track, file, preload, haltListener);
-                    else return StorageFeedHelper.loadEpisode(session, episode, file, preload, haltListener);
+                    byte[] audioKey = key.get();
+                    boolean preloadedKey = preload || cachedKey;
+                    Metrics metrics = new Metrics(file.getFileId(), preloadedKey, preloadedKey ? -1 : key.time, metadataTime, resolve.time, -1);
+                    if (track != null) return StorageFeedHelper.loadTrack(session, track, file, audioKey, metrics, haltListener);
+                    else return StorageFeedHelper.loadEpisode(session, episode, file, audioKey, metrics, haltListener);
                 } catch (AudioFileFetch.StorageNotAvailable ex) {
                     LOGGER.info("Storage is not available. Going CDN: " + ex.cdnUrl);
-                    return loadCdnStream(file, track, episode, ex.cdnUrl, preload, haltListener);
+                    return loadCdnStream(file, track, episode, Collections.singletonList(HttpUrl.get(ex.cdnUrl)), key, preload || cachedKey, haltListener, metadataTime, resolve.time);
                 }
             case RESTRICTED:
                 throw new IllegalStateException("Content is restricted!");
@@ -156,19 +224,21 @@ public final class PlayableContentFeeder {
     }
 
     @NotNull
-    private LoadedStream loadTrack(@NotNull Metadata.Track track, @NotNull AudioQualityPicker audioQualityPicker, boolean preload, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException, MercuryClient.MercuryException {
+    private LoadedStream loadTrack(@NotNull Metadata.Track track, @NotNull AudioQualityPicker audioQualityPicker, boolean preload, @Nullable HaltListener haltListener, int metadataTime) throws IOException, CdnManager.CdnException, MercuryClient.MercuryException {
         Metadata.AudioFile file = audioQualityPicker.getFile(track.getFileList());
         if (file == null) {
             LOGGER.error("Couldn't find any suitable audio file, available: {}", Utils.formatsToString(track.getFileList()));
             throw new FeederException();
         }
 
-        return loadStream(file, track, null, preload, haltListener);
+        return loadStream(file, track, null, preload, haltListener, metadataTime);
     }
 
     @NotNull
     private LoadedStream loadEpisode(@NotNull EpisodeId id, @NotNull AudioQualityPicker audioQualityPicker, boolean preload, @Nullable HaltListener haltListener) throws IOException, MercuryClient.MercuryException, CdnManager.CdnException {
+        long start = System.currentTimeMillis();
         Metadata.Episode episode = session.api().getMetadata4Episode(id);
+        int metadataTime = (int) (System.currentTimeMillis() - start);
 
         if (episode.hasExternalUrl()) {
             return CdnFeedHelper.loadEpisodeExternal(session, episode, haltListener);
@@ -179,7 +249,7 @@ public final class PlayableContentFeeder {
                 throw new FeederException();
             }
 
-            return loadStream(file, null, episode, preload, haltListener);
+            return loadStream(file, null, episode, preload, haltListener, metadataTime);
         }
     }
 
@@ -190,9 +260,8 @@ public final class PlayableContentFeeder {
         private final byte[][] buffer;
         private final int chunks;
         private final int size;
-        private final boolean[] available;
-        private final boolean[] requested;
-        private final ExecutorService executorService = Executors.newCachedThreadPool(new NameThreadFactory((r) -> "file-async-" + r.hashCode()));
+        private final ExecutorService executorService = ExecutorFactory.newCachedThreadPool((r) -> "file-async-" + r.hashCode());
+        private final AbsChunkedInputStream stream;
 
         FileAudioStream(File file) throws IOException {
             this.file = file;
@@ -201,12 +270,16 @@ public final class PlayableContentFeeder {
             this.size = (int) raf.length();
             this.chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
             this.buffer = new byte[chunks][];
-            this.available = new boolean[chunks];
-            this.requested = new boolean[chunks];
+            this.stream = createStream();
         }
 
         @Override
         public @NotNull AbsChunkedInputStream stream() {
+            return stream;
+        }
+
+        @NotNull
+        private AbsChunkedInputStream createStream() {
             return new AbsChunkedInputStream(false) {
                 @Override
                 protected byte[][] buffer() {
@@ -218,16 +291,6 @@ public final class PlayableContentFeeder {
                     return size;
                 }
 
-                @Override
-                protected boolean[] requestedChunks() {
-                    return requested;
-                }
-
-                @Override
-                protected boolean[] availableChunks() {
-                    return available;
-                }
-
                 @Override
                 protected int chunks() {
                     return chunks;
@@ -237,8 +300,14 @@ public final class PlayableContentFeeder {
                 protected void requestChunkFromStream(int index) {
                     executorService.submit(() -> {
                         try {
-                            raf.seek((long) index * CHUNK_SIZE);
-                            raf.read(buffer[index]);
+                            int length = Math.min(CHUNK_SIZE, size - index * CHUNK_SIZE);
+                            byte[] chunk = length == CHUNK_SIZE ? ChunkBufferPool.get().acquire() : new byte[length];
+                            synchronized (raf) {
+                                raf.seek((long) index * CHUNK_SIZE);
+                                raf.readFully(chunk);
+                            }
+
+                            buffer[index] = chunk;
                             notifyChunkAvailable(index);
                         } catch (IOException ex) {
                             notifyChunkError(index, new ChunkException(ex));
@@ -307,21 +376,88 @@ public final class PlayableContentFeeder {
         }
     }
 
+    /**
+     * Timings are in milliseconds, {@code -1} if not measured. The audio key is retrieved concurrently with
+     * the storage resolve and the first chunk, so the stage timings do not add up to the total loading time.
+     */
     public static class Metrics {
         public final String fileId;
         public final boolean preloadedAudioKey;
         public final int audioKeyTime;
+        public final int metadataTime;
+        public final int storageResolveTime;
+        public final int firstChunkTime;
 
         public Metrics(@Nullable ByteString fileId, boolean preloadedAudioKey, int audioKeyTime) {
+            this(fileId, preloadedAudioKey, audioKeyTime, -1, -1, -1);
+        }
+
+        public Metrics(@Nullable ByteString fileId, boolean preloadedAudioKey, int audioKeyTime, int metadataTime, int storageResolveTime, int firstChunkTime) {
             this.fileId = fileId == null ? null : Utils.bytesToHex(fileId).toLowerCase();
             this.preloadedAudioKey = preloadedAudioKey;
             this.audioKeyTime = audioKeyTime;
+            this.metadataTime = metadataTime;
+            this.storageResolveTime = storageResolveTime;
+            this.firstChunkTime = firstChunkTime;
 
             if (preloadedAudioKey && audioKeyTime != -1)
                 throw new IllegalStateException();
         }
     }
 
+    /**
+     * A step of the loading pipeline, running on the executor and measuring how long it took.
+     */
+    private final class Stage<T> {
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private volatile int time = -1;
+
+        Stage(@NotNull Callable<T> task) {
+            try {
+                executorService.execute(() -> {
+                    long start = System.currentTimeMillis();
+                    try {
+                        T result = task.call();
+                        time = (int) (System.currentTimeMillis() - start);
+                        future.complete(result);
+                    } catch (Exception ex) {
+                        time = (int) (System.currentTimeMillis() - start);
+                        future.completeExceptionally(ex);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                future.completeExceptionally(new IOException("Content feeder is closed!", ex));
+            }
+        }
+
+        Stage(@NotNull CompletableFuture<T> source) {
+            long start = System.currentTimeMillis();
+            source.whenComplete((result, ex) -> {
+                time = (int) (System.currentTimeMillis() - start);
+                if (ex != null) future.completeExceptionally(ex);
+                else future.complete(result);
+            });
+        }
+
+        @NotNull
+        T get() throws IOException, MercuryClient.MercuryException {
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while loading content!");
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+
+                if (cause instanceof IOException) throw (IOException) cause;
+                else if (cause instanceof MercuryClient.MercuryException) throw (MercuryClient.MercuryException) cause;
+                else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                else throw new IOException(cause);
+            }
+        }
+    }
+
     public static class FeederException extends IOException {
         FeederException() {
         }
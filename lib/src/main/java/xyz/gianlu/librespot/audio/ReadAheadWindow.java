@@ -0,0 +1,121 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.audio;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Sizes the read-ahead of a chunked stream. The time between requesting a chunk and receiving it is measured and
+ * the window is made large enough to keep {@code targetBufferMs} of audio buffered on top of two fetch round-trips,
+ * given the bitrate of the codec.
+ *
+ * @author devgianlu
+ */
+public final class ReadAheadWindow {
+    public static final int DEFAULT_BITRATE = 160_000;
+    public static final int DEFAULT_TARGET_BUFFER_MS = 10_000;
+    static final int INITIAL_CHUNKS = 3;
+    static final int MIN_CHUNKS = 1;
+    static final int MAX_CHUNKS = 32;
+    private static final double ALPHA = 0.25;
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReadAheadWindow.class);
+    private final AtomicLongArray requestedAt;
+    private final int bitrate;
+    private final int targetBufferMs;
+    private final Object statsLock = new Object();
+    private volatile int window = INITIAL_CHUNKS;
+    private double fetchTimeMs = -1;
+    private double throughput = -1;
+
+    /**
+     * @param chunks         The number of chunks of the stream
+     * @param bitrate        The codec bitrate in bits per second, or {@code 0} if unknown
+     * @param targetBufferMs The amount of audio to keep buffered ahead of the reader
+     */
+    public ReadAheadWindow(int chunks, int bitrate, int targetBufferMs) {
+        this.requestedAt = new AtomicLongArray(chunks);
+        this.bitrate = bitrate > 0 ? bitrate : DEFAULT_BITRATE;
+        this.targetBufferMs = targetBufferMs > 0 ? targetBufferMs : DEFAULT_TARGET_BUFFER_MS;
+    }
+
+    static int computeWindow(int bitrate, int targetBufferMs, double fetchTimeMs) {
+        double bytesPerMs = bitrate / 8000.0;
+        double horizonMs = targetBufferMs + 2 * fetchTimeMs;
+        int chunks = (int) Math.ceil(bytesPerMs * horizonMs / CHUNK_SIZE);
+        return Math.max(MIN_CHUNKS, Math.min(MAX_CHUNKS, chunks));
+    }
+
+    void onRequested(int chunk) {
+        requestedAt.set(chunk, System.nanoTime());
+    }
+
+    void onFailed(int chunk) {
+        requestedAt.set(chunk, 0);
+    }
+
+    void onAvailable(int chunk, int length) {
+        long start = requestedAt.getAndSet(chunk, 0);
+        if (start == 0) return;
+
+        double elapsedMs = Math.max(0.001, (System.nanoTime() - start) / 1_000_000.0);
+        synchronized (statsLock) {
+            if (fetchTimeMs < 0) {
+                fetchTimeMs = elapsedMs;
+                throughput = length / elapsedMs * 1000;
+            } else {
+                fetchTimeMs = ALPHA * elapsedMs + (1 - ALPHA) * fetchTimeMs;
+                throughput = ALPHA * (length / elapsedMs * 1000) + (1 - ALPHA) * throughput;
+            }
+
+            int newWindow = computeWindow(bitrate, targetBufferMs, fetchTimeMs);
+            if (newWindow != window) {
+                LOGGER.trace("Read-ahead window changed from {} to {} chunks (fetch: {}ms, throughput: {}B/s)", window, newWindow, (int) fetchTimeMs, (long) throughput);
+                window = newWindow;
+            }
+        }
+    }
+
+    /**
+     * @return The number of chunks that should be requested after the one being read
+     */
+    public int window() {
+        return window;
+    }
+
+    /**
+     * @return The average time needed to fetch a chunk in milliseconds, or {@code -1} if nothing has been measured yet
+     */
+    public int fetchTimeMs() {
+        synchronized (statsLock) {
+            return (int) Math.round(fetchTimeMs);
+        }
+    }
+
+    /**
+     * @return The average throughput of a single chunk fetch in bytes per second, or {@code -1} if nothing has been measured yet
+     */
+    public long throughput() {
+        synchronized (statsLock) {
+            return Math.round(throughput);
+        }
+    }
+}
@@ -34,6 +34,8 @@ import xyz.gianlu.librespot.core.Session;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author Gianlu
@@ -44,23 +46,18 @@ public final class CdnFeedHelper {
     private CdnFeedHelper() {
     }
 
-    @NotNull
-    private static HttpUrl getUrl(@NotNull Session session, @NotNull StorageResolveResponse resp) {
-        String selectedUrl = resp.getCdnurl(session.random().nextInt(resp.getCdnurlCount()));
-        while (selectedUrl.contains("audio4-gm-fb")) {
-            LOGGER.warn("getUrl picked CDN with known issues {} (forcing re-selection)", selectedUrl );
-            selectedUrl = resp.getCdnurl(session.random().nextInt(resp.getCdnurlCount()));
-        }
-        return HttpUrl.get(selectedUrl);
-    }
-
     public static @NotNull LoadedStream loadTrack(@NotNull Session session, Metadata.@NotNull Track track, Metadata.@NotNull AudioFile file,
                                                   @NotNull HttpUrl url, boolean preload, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
+        return loadTrack(session, track, file, Collections.singletonList(url), preload, haltListener);
+    }
+
+    private static @NotNull LoadedStream loadTrack(@NotNull Session session, Metadata.@NotNull Track track, Metadata.@NotNull AudioFile file,
+                                                   @NotNull List<HttpUrl> urls, boolean preload, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
         long start = System.currentTimeMillis();
         byte[] key = session.audioKey().getAudioKey(track.getGid(), file.getFileId());
         int audioKeyTime = (int) (System.currentTimeMillis() - start);
 
-        CdnManager.Streamer streamer = session.cdn().streamFile(file, key, url, haltListener);
+        CdnManager.Streamer streamer = session.cdn().streamFile(file, key, urls, haltListener);
         InputStream in = streamer.stream();
         NormalizationData normalizationData = NormalizationData.read(in);
         if (in.skip(0xa7) != 0xa7) throw new IOException("Couldn't skip 0xa7 bytes!");
@@ -69,30 +66,36 @@ public final class CdnFeedHelper {
 
     public static @NotNull LoadedStream loadTrack(@NotNull Session session, Metadata.@NotNull Track track, Metadata.@NotNull AudioFile file,
                                                   @NotNull StorageResolveResponse storage, boolean preload, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
-        return loadTrack(session, track, file, getUrl(session, storage), preload, haltListener);
+        return loadTrack(session, track, file, CdnManager.parseUrls(storage), preload, haltListener);
     }
 
     public static @NotNull LoadedStream loadEpisodeExternal(@NotNull Session session, Metadata.@NotNull Episode episode, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
-        try (Response resp = session.client().newCall(new Request.Builder().head()
+        HttpUrl url;
+        try (Response resp = session.audioClient().newCall(new Request.Builder().head()
                 .url(episode.getExternalUrl()).build()).execute()) {
 
             if (resp.code() != 200)
                 LOGGER.warn("Couldn't resolve redirect!");
 
-            HttpUrl url = resp.request().url();
-            LOGGER.debug("Fetched external url for {}: {}", Utils.bytesToHex(episode.getGid()), url);
-
-            CdnManager.Streamer streamer = session.cdn().streamExternalEpisode(episode, url, haltListener);
-            return new LoadedStream(episode, streamer, null, new PlayableContentFeeder.Metrics(null, false, -1));
+            url = resp.request().url();
         }
+
+        LOGGER.debug("Fetched external url for {}: {}", Utils.bytesToHex(episode.getGid()), url);
+
+        CdnManager.Streamer streamer = session.cdn().streamExternalEpisode(episode, url, haltListener);
+        return new LoadedStream(episode, streamer, null, new PlayableContentFeeder.Metrics(null, false, -1));
     }
 
     public static @NotNull LoadedStream loadEpisode(@NotNull Session session, Metadata.@NotNull Episode episode, @NotNull Metadata.AudioFile file, @NotNull HttpUrl url, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
+        return loadEpisode(session, episode, file, Collections.singletonList(url), haltListener);
+    }
+
+    private static @NotNull LoadedStream loadEpisode(@NotNull Session session, Metadata.@NotNull Episode episode, @NotNull Metadata.AudioFile file, @NotNull List<HttpUrl> urls, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
         long start = System.currentTimeMillis();
         byte[] key = session.audioKey().getAudioKey(episode.getGid(), file.getFileId());
         int audioKeyTime = (int) (System.currentTimeMillis() - start);
 
-        CdnManager.Streamer streamer = session.cdn().streamFile(file, key, url, haltListener);
+        CdnManager.Streamer streamer = session.cdn().streamFile(file, key, urls, haltListener);
         InputStream in = streamer.stream();
         NormalizationData normalizationData = NormalizationData.read(in);
         if (in.skip(0xa7) != 0xa7) throw new IOException("Couldn't skip 0xa7 bytes!");
@@ -100,6 +103,6 @@ public final class CdnFeedHelper {
     }
 
     public static @NotNull LoadedStream loadEpisode(@NotNull Session session, Metadata.@NotNull Episode episode, @NotNull Metadata.AudioFile file, @NotNull StorageResolveResponse storage, @Nullable HaltListener haltListener) throws IOException, CdnManager.CdnException {
-        return loadEpisode(session, episode, file, getUrl(session, storage), haltListener);
+        return loadEpisode(session, episode, file, CdnManager.parseUrls(storage), haltListener);
     }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.audio.cdn;
+
+import okhttp3.HttpUrl;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of how every CDN host has been performing, shared by all the streams of a session. The latency until
+ * the response headers and the throughput of the body are averaged for every host, along with the number of failed
+ * requests, and are used to weight the random selection of a CDN url.
+ *
+ * @author devgianlu
+ */
+public final class CdnHostRegistry {
+    private static final double ALPHA = 0.3;
+    /**
+     * Latency at which the latency factor of the weight halves.
+     */
+    private static final double REFERENCE_LATENCY_MS = 200;
+    /**
+     * For how long consecutive failures penalize a host.
+     */
+    private static final long FAILURE_PENALTY_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final int MAX_PENALTY_SHIFT = 10;
+    private static final String[] KNOWN_ISSUES = new String[]{"audio4-gm-fb"};
+    private final Map<String, HostStats> hosts = new ConcurrentHashMap<>();
+    private final Random random;
+
+    public CdnHostRegistry(@NotNull Random random) {
+        this.random = random;
+    }
+
+    private static boolean hasKnownIssues(@NotNull HttpUrl url) {
+        for (String str : KNOWN_ISSUES)
+            if (url.host().contains(str))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * @return The name of the host of the given url, with the port if it isn't the default one
+     */
+    @NotNull
+    static String hostOf(@NotNull HttpUrl url) {
+        if (url.port() == HttpUrl.defaultPort(url.scheme())) return url.host();
+        else return url.host() + ":" + url.port();
+    }
+
+    @NotNull
+    HostStats host(@NotNull String host) {
+        return hosts.computeIfAbsent(host, HostStats::new);
+    }
+
+    /**
+     * @return The statistics of the given host, without registering it if it has never been contacted
+     */
+    @NotNull
+    private HostStats peek(@NotNull String host) {
+        HostStats stats = hosts.get(host);
+        return stats == null ? new HostStats(host) : stats;
+    }
+
+    /**
+     * @return The statistics of every host that has been contacted, sorted by host name
+     */
+    @NotNull
+    public Map<String, HostStats> stats() {
+        return Collections.unmodifiableMap(new TreeMap<>(hosts));
+    }
+
+    /**
+     * Picks one of the given urls at random, weighting every url with the health of its host. Hosts with known issues
+     * and the host of {@code exclude} are picked only if there is nothing else.
+     *
+     * @param candidates The urls to choose from, must not be empty
+     * @param exclude    The url that is being abandoned, if any
+     */
+    @NotNull
+    public HttpUrl select(@NotNull List<HttpUrl> candidates, @Nullable HttpUrl exclude) {
+        if (candidates.isEmpty()) throw new IllegalArgumentException("No CDN urls to choose from!");
+
+        List<HttpUrl> usable = new ArrayList<>(candidates.size());
+        for (HttpUrl url : candidates)
+            if (!hasKnownIssues(url) && (exclude == null || !hostOf(url).equals(hostOf(exclude))))
+                usable.add(url);
+
+        if (usable.isEmpty()) {
+            for (HttpUrl url : candidates)
+                if (exclude == null || !hostOf(url).equals(hostOf(exclude)))
+                    usable.add(url);
+        }
+
+        if (usable.isEmpty()) usable.addAll(candidates);
+        if (usable.size() == 1) return usable.get(0);
+
+        double maxThroughput = 0;
+        for (HttpUrl url : usable)
+            maxThroughput = Math.max(maxThroughput, peek(hostOf(url)).throughput());
+
+        long now = System.currentTimeMillis();
+        double[] weights = new double[usable.size()];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = peek(hostOf(usable.get(i))).weight(maxThroughput, now);
+            total += weights[i];
+        }
+
+        double r = random.nextDouble() * total;
+        for (int i = 0; i < weights.length; i++) {
+            r -= weights[i];
+            if (r < 0) return usable.get(i);
+        }
+
+        return usable.get(usable.size() - 1);
+    }
+
+    /**
+     * Starts measuring a request to the given url.
+     */
+    @NotNull
+    Sample track(@NotNull HttpUrl url) {
+        return new Sample(host(hostOf(url)));
+    }
+
+    /**
+     * Measures a single request. {@link #responded()} must be called when the headers are received, then
+     * either {@link #completed(long)} or {@link #failed()}.
+     */
+    static final class Sample {
+        private final HostStats host;
+        private final long start = System.nanoTime();
+        private long respondedAt = -1;
+
+        private Sample(@NotNull HostStats host) {
+            this.host = host;
+        }
+
+        void responded() {
+            respondedAt = System.nanoTime();
+        }
+
+        void completed(long bytes) {
+            long end = System.nanoTime();
+            if (respondedAt == -1) respondedAt = end;
+            host.onCompleted((respondedAt - start) / 1_000_000.0, bytes, (end - respondedAt) / 1_000_000.0);
+        }
+
+        void failed() {
+            host.onFailed();
+        }
+    }
+
+    public static final class HostStats {
+        private final String host;
+        private long requests = 0;
+        private long failures = 0;
+        private int consecutiveFailures = 0;
+        private long lastFailure = 0;
+        private double latencyMs = -1;
+        private double throughput = -1;
+
+        private HostStats(@NotNull String host) {
+            this.host = host;
+        }
+
+        synchronized void onCompleted(double latencyMs, long bytes, double transferMs) {
+            requests++;
+            consecutiveFailures = 0;
+
+            if (this.latencyMs < 0) this.latencyMs = latencyMs;
+            else this.latencyMs = ALPHA * latencyMs + (1 - ALPHA) * this.latencyMs;
+
+            if (bytes > 0) {
+                double sample = bytes / Math.max(1, transferMs) * 1000;
+                if (throughput < 0) throughput = sample;
+                else throughput = ALPHA * sample + (1 - ALPHA) * throughput;
+            }
+        }
+
+        synchronized void onFailed() {
+            requests++;
+            failures++;
+            consecutiveFailures++;
+            lastFailure = System.currentTimeMillis();
+        }
+
+        /**
+         * The success ratio (with one success and one failure assumed up front), the latency and the throughput
+         * relative to the best candidate all scale the weight. Recent consecutive failures halve it each.
+         */
+        synchronized double weight(double maxThroughput, long now) {
+            double weight = (requests - failures + 1.0) / (requests + 2.0);
+            weight *= REFERENCE_LATENCY_MS / (REFERENCE_LATENCY_MS + (latencyMs < 0 ? REFERENCE_LATENCY_MS : latencyMs));
+            if (maxThroughput > 0) weight *= 0.5 + 0.5 * (throughput < 0 ? 0.5 : throughput / maxThroughput);
+
+            if (consecutiveFailures > 0 && now - lastFailure < FAILURE_PENALTY_MS)
+                weight /= 1 << Math.min(consecutiveFailures, MAX_PENALTY_SHIFT);
+
+            return weight;
+        }
+
+        @NotNull
+        public String host() {
+            return host;
+        }
+
+        public synchronized long requests() {
+            return requests;
+        }
+
+        public synchronized long failures() {
+            return failures;
+        }
+
+        public synchronized int consecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /**
+         * @return The ratio of failed requests, {@code 0} if no request has been made
+         */
+        public synchronized double errorRate() {
+            return requests == 0 ? 0 : (double) failures / requests;
+        }
+
+        /**
+         * @return The average time until the response headers in milliseconds, or {@code -1} if nothing has been measured yet
+         */
+        public synchronized int latencyMs() {
+            return (int) Math.round(latencyMs);
+        }
+
+        /**
+         * @return The average throughput of the response bodies in bytes per second, or {@code -1} if nothing has been measured yet
+         */
+        public synchronized long throughput() {
+            return Math.round(throughput);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "HostStats{host='" + host + "', requests=" + requests + ", failures=" + failures +
+                    ", latencyMs=" + Math.round(latencyMs) + ", throughput=" + Math.round(throughput) + '}';
+        }
+    }
+}
@@ -25,23 +25,35 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xyz.gianlu.librespot.audio.*;
+import xyz.gianlu.librespot.audio.decoders.AudioQuality;
 import xyz.gianlu.librespot.audio.decrypt.AesAudioDecrypt;
 import xyz.gianlu.librespot.audio.decrypt.AudioDecrypt;
 import xyz.gianlu.librespot.audio.decrypt.NoopAudioDecrypt;
 import xyz.gianlu.librespot.audio.format.SuperAudioFormat;
 import xyz.gianlu.librespot.audio.storage.AudioFileFetch;
 import xyz.gianlu.librespot.cache.CacheManager;
-import xyz.gianlu.librespot.common.NameThreadFactory;
+import xyz.gianlu.librespot.common.ExecutorFactory;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.mercury.MercuryClient;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
 
@@ -49,16 +61,45 @@ import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
  * @author Gianlu
  */
 public class CdnManager {
+    /**
+     * Maximum number of adjacent chunks fetched with a single range request.
+     */
+    private static final int MAX_COALESCED_CHUNKS = 8;
+    /**
+     * Number of consecutive failed requests after which a stream switches to another CDN host.
+     */
+    private static final int FAILOVER_ERRORS = 2;
     private static final Logger LOGGER = LoggerFactory.getLogger(CdnManager.class);
     private final Session session;
+    private final OkHttpClient client;
+    private final Session.Configuration conf;
+    private final CdnHostRegistry hosts;
 
     public CdnManager(@NotNull Session session) {
+        this(session, session.audioClient(), session.configuration(), new CdnHostRegistry(session.random()));
+    }
+
+    /**
+     * @param session The session used to access the cache and to resolve the CDN urls again, {@code null} for tests
+     */
+    CdnManager(@Nullable Session session, @NotNull OkHttpClient client, @NotNull Session.Configuration conf, @NotNull CdnHostRegistry hosts) {
         this.session = session;
+        this.client = client;
+        this.conf = conf;
+        this.hosts = hosts;
+    }
+
+    /**
+     * @return The registry keeping track of the health of the CDN hosts
+     */
+    @NotNull
+    public CdnHostRegistry hosts() {
+        return hosts;
     }
 
     @NotNull
     private InputStream getHead(@NotNull ByteString fileId) throws IOException {
-        Response resp = session.client().newCall(new Request.Builder()
+        Response resp = client.newCall(new Request.Builder()
                 .get().url(session.getUserAttribute("head-files-url", "https://heads-fa.spotify.com/head/{file_id}").replace("{file_id}", Utils.bytesToHex(fileId).toLowerCase()))
                 .build()).execute();
 
@@ -74,21 +115,46 @@ public class CdnManager {
 
     @NotNull
     public Streamer streamExternalEpisode(@NotNull Metadata.Episode episode, @NotNull HttpUrl externalUrl, @Nullable HaltListener haltListener) throws IOException, CdnException {
-        return new Streamer(new StreamId(episode), SuperAudioFormat.MP3 /* Guaranteed */, new CdnUrl(null, externalUrl),
-                session.cache(), new NoopAudioDecrypt(), haltListener);
+        return new Streamer(new StreamId(episode), SuperAudioFormat.MP3 /* Guaranteed */, 0, new CdnUrl(null, Collections.singletonList(externalUrl)),
+                cache(), CompletableFuture.completedFuture(new NoopAudioDecrypt()), haltListener);
     }
 
     @NotNull
     public Streamer streamFile(@NotNull Metadata.AudioFile file, @NotNull byte[] key, @NotNull HttpUrl url, @Nullable HaltListener haltListener) throws IOException, CdnException {
-        return new Streamer(new StreamId(file), SuperAudioFormat.get(file.getFormat()), new CdnUrl(file.getFileId(), url),
-                session.cache(), new AesAudioDecrypt(key), haltListener);
+        return streamFile(file, key, Collections.singletonList(url), haltListener);
+    }
+
+    /**
+     * @param urls The candidate CDN urls, the stream will switch between them if one keeps failing
+     */
+    @NotNull
+    public Streamer streamFile(@NotNull Metadata.AudioFile file, @NotNull byte[] key, @NotNull List<HttpUrl> urls, @Nullable HaltListener haltListener) throws IOException, CdnException {
+        return streamFile(file, CompletableFuture.completedFuture(key), urls, haltListener);
     }
 
     /**
-     * This is used only to RENEW the url if needed.
+     * Opens the stream while the audio key may still be in flight: the first chunk is requested right away and the
+     * key is awaited only before decrypting it.
+     *
+     * @param key  The audio key, possibly not retrieved yet
+     * @param urls The candidate CDN urls, the stream will switch between them if one keeps failing
      */
     @NotNull
-    private HttpUrl getAudioUrl(@NotNull ByteString fileId) throws IOException, CdnException, MercuryClient.MercuryException {
+    public Streamer streamFile(@NotNull Metadata.AudioFile file, @NotNull CompletableFuture<byte[]> key, @NotNull List<HttpUrl> urls, @Nullable HaltListener haltListener) throws IOException, CdnException {
+        return new Streamer(new StreamId(file), SuperAudioFormat.get(file.getFormat()), AudioQuality.getBitrate(file.getFormat()), new CdnUrl(file.getFileId(), urls),
+                cache(), key.thenApply(AesAudioDecrypt::new), haltListener);
+    }
+
+    @Nullable
+    private CacheManager cache() {
+        return session == null ? null : session.cache();
+    }
+
+    /**
+     * This is used only to RENEW the urls if needed.
+     */
+    @NotNull
+    private List<HttpUrl> getAudioUrls(@NotNull ByteString fileId) throws IOException, CdnException, MercuryClient.MercuryException {
         try (Response resp = session.api().send("GET", String.format("/storage-resolve/files/audio/interactive/%s", Utils.bytesToHex(fileId)), null, null)) {
             if (resp.code() != 200)
                 throw new IOException(resp.code() + ": " + resp.message());
@@ -98,15 +164,30 @@ public class CdnManager {
 
             StorageResolveResponse proto = StorageResolveResponse.parseFrom(body.byteStream());
             if (proto.getResult() == StorageResolveResponse.Result.CDN) {
-                String url = proto.getCdnurl(session.random().nextInt(proto.getCdnurlCount()));
-                LOGGER.debug("Fetched CDN url for {}: {}", Utils.bytesToHex(fileId), url);
-                return HttpUrl.get(url);
+                List<HttpUrl> urls = parseUrls(proto);
+                LOGGER.debug("Fetched CDN urls for {}: {}", Utils.bytesToHex(fileId), urls);
+                return urls;
             } else {
                 throw new CdnException(String.format("Could not retrieve CDN url! {result: %s}", proto.getResult()));
             }
         }
     }
 
+    /**
+     * @return The CDN urls of the given response
+     */
+    @NotNull
+    public static List<HttpUrl> parseUrls(@NotNull StorageResolveResponse resp) throws CdnException {
+        if (resp.getCdnurlCount() == 0)
+            throw new CdnException("No CDN urls in storage resolve response!");
+
+        List<HttpUrl> urls = new ArrayList<>(resp.getCdnurlCount());
+        for (String url : resp.getCdnurlList())
+            urls.add(HttpUrl.get(url));
+
+        return urls;
+    }
+
     public static class CdnException extends Exception {
 
         CdnException(@NotNull String message) {
@@ -118,6 +199,58 @@ public class CdnManager {
         }
     }
 
+    /**
+     * Reads a chunk into a pooled buffer if it is a full one.
+     */
+    @NotNull
+    private static byte[] readBody(@NotNull ResponseBody body, int expected) throws IOException {
+        if (expected != CHUNK_SIZE) return body.bytes();
+
+        byte[] buffer = ChunkBufferPool.get().acquire();
+        int length = 0;
+        try (InputStream in = body.byteStream()) {
+            int read;
+            while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1)
+                length += read;
+
+            if (length == buffer.length && in.read() != -1)
+                throw new IOException("Response body is bigger than requested!");
+        } catch (IOException ex) {
+            ChunkBufferPool.get().release(buffer);
+            throw ex;
+        }
+
+        if (length == buffer.length) return buffer;
+
+        byte[] chunk = Arrays.copyOf(buffer, length);
+        ChunkBufferPool.get().release(buffer);
+        return chunk;
+    }
+
+    @NotNull
+    private static AudioDecrypt awaitDecrypt(@NotNull Future<? extends AudioDecrypt> audioDecrypt) throws IOException {
+        try {
+            return audioDecrypt.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the audio key!");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            else throw new IOException(ex.getCause());
+        }
+    }
+
+    private static void readFully(@NotNull InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read == -1)
+                throw new EOFException(String.format("Response body is too short, read: %d, needed: %d", length, buffer.length));
+
+            length += read;
+        }
+    }
+
     private static class InternalResponse {
         private final byte[] buffer;
         private final Headers headers;
@@ -130,21 +263,24 @@ public class CdnManager {
 
     private class CdnUrl {
         private final ByteString fileId;
+        private List<HttpUrl> candidates;
         private long expiration;
         private HttpUrl url;
 
-        CdnUrl(@Nullable ByteString fileId, @NotNull HttpUrl url) {
+        CdnUrl(@Nullable ByteString fileId, @NotNull List<HttpUrl> candidates) {
             this.fileId = fileId;
-            this.setUrl(url);
+            this.candidates = candidates;
+            this.setUrl(hosts.select(candidates, null));
         }
 
         @NotNull
-        HttpUrl url() throws CdnException {
+        synchronized HttpUrl url() throws CdnException {
             if (expiration == -1) return url;
 
             if (expiration <= System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5)) {
                 try {
-                    url = getAudioUrl(fileId);
+                    candidates = getAudioUrls(fileId);
+                    setUrl(hosts.select(candidates, null));
                 } catch (IOException | MercuryClient.MercuryException ex) {
                     throw new CdnException(ex);
                 }
@@ -153,7 +289,34 @@ public class CdnManager {
             return url;
         }
 
-        void setUrl(@NotNull HttpUrl url) {
+        /**
+         * Switches to another candidate after {@code failed} kept failing. If there is no other host to try, the
+         * candidates are resolved again.
+         *
+         * @return Whether the url has been changed
+         */
+        synchronized boolean failover(@NotNull HttpUrl failed) {
+            if (!failed.equals(url)) return true;
+
+            HttpUrl next = hosts.select(candidates, failed);
+            if (CdnHostRegistry.hostOf(next).equals(CdnHostRegistry.hostOf(failed)) && fileId != null) {
+                try {
+                    candidates = getAudioUrls(fileId);
+                    next = hosts.select(candidates, failed);
+                } catch (IOException | CdnException | MercuryClient.MercuryException ex) {
+                    LOGGER.warn("Failed resolving CDN urls again for {}", Utils.bytesToHex(fileId), ex);
+                    return false;
+                }
+            }
+
+            if (next.equals(failed)) return false;
+
+            LOGGER.info("Switching CDN host from {} to {}", failed.host(), next.host());
+            setUrl(next);
+            return true;
+        }
+
+        synchronized void setUrl(@NotNull HttpUrl url) {
             this.url = url;
 
             if (fileId != null) {
@@ -197,87 +360,135 @@ public class CdnManager {
 
     public class Streamer implements DecodedAudioStream, GeneralWritableStream {
         private final StreamId streamId;
-        private final ExecutorService executorService = Executors.newCachedThreadPool(new NameThreadFactory((r) -> "cdn-async-" + r.hashCode()));
+        private final ExecutorService executorService = ExecutorFactory.newCachedThreadPool((r) -> "cdn-async-" + r.hashCode());
         private final SuperAudioFormat format;
         private final AudioDecrypt audioDecrypt;
         private final CdnUrl cdnUrl;
         private final int size;
         private final byte[][] buffer;
-        private final boolean[] available;
-        private final boolean[] requested;
         private final int chunks;
         private final InternalStream internalStream;
         private final CacheManager.Handler cacheHandler;
         private final HaltListener haltListener;
+        private final Semaphore fetchPermits;
+        private final ConcurrentSkipListSet<Integer> pendingChunks = new ConcurrentSkipListSet<>();
+        private final AtomicInteger consecutiveErrors = new AtomicInteger(0);
 
-        private Streamer(@NotNull StreamId streamId, @NotNull SuperAudioFormat format, @NotNull CdnUrl cdnUrl, @Nullable CacheManager cache,
-                         @Nullable AudioDecrypt audioDecrypt, @Nullable HaltListener haltListener) throws IOException, CdnException {
+        private Streamer(@NotNull StreamId streamId, @NotNull SuperAudioFormat format, int bitrate, @NotNull CdnUrl cdnUrl, @Nullable CacheManager cache,
+                         @NotNull Future<? extends AudioDecrypt> audioDecrypt, @Nullable HaltListener haltListener) throws IOException, CdnException {
             this.streamId = streamId;
             this.format = format;
-            this.audioDecrypt = audioDecrypt;
             this.cdnUrl = cdnUrl;
             this.haltListener = haltListener;
             this.cacheHandler = cache != null ? cache.getHandler(streamId) : null;
+            this.fetchPermits = new Semaphore(Math.max(1, conf.cdnMaxConcurrentRequests));
 
             boolean fromCache;
             byte[] firstChunk;
             byte[] sizeHeader;
-            if (cacheHandler != null && (sizeHeader = cacheHandler.getHeader(AudioFileFetch.HEADER_SIZE)) != null) {
-                size = ByteBuffer.wrap(sizeHeader).getInt() * 4;
-                chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            try {
+                if (cacheHandler != null && (sizeHeader = cacheHandler.getHeader(AudioFileFetch.HEADER_SIZE)) != null) {
+                    size = ByteBuffer.wrap(sizeHeader).getInt() * 4;
+                    chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
 
-                try {
-                    firstChunk = cacheHandler.readChunk(0);
-                    fromCache = true;
-                } catch (IOException | CacheManager.BadChunkHashException ex) {
-                    LOGGER.error("Failed getting first chunk from cache.", ex);
+                    try {
+                        firstChunk = cacheHandler.readChunk(0);
+                        fromCache = true;
+                    } catch (IOException | CacheManager.BadChunkHashException ex) {
+                        LOGGER.error("Failed getting first chunk from cache.", ex);
+
+                        InternalResponse resp = requestFirstChunk();
+                        firstChunk = resp.buffer;
+                        fromCache = false;
+                    }
+                } else {
+                    InternalResponse resp = requestFirstChunk();
+                    String contentRange = resp.headers.get("Content-Range");
+                    if (contentRange == null)
+                        throw new IOException("Missing Content-Range header!");
+
+                    String[] split = Utils.split(contentRange, '/');
+                    size = Integer.parseInt(split[1]);
+                    chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+                    if (cacheHandler != null)
+                        cacheHandler.setHeader(AudioFileFetch.HEADER_SIZE, ByteBuffer.allocate(4).putInt(size / 4).array());
 
-                    InternalResponse resp = request(0, CHUNK_SIZE - 1);
                     firstChunk = resp.buffer;
                     fromCache = false;
                 }
-            } else {
-                InternalResponse resp = request(0, CHUNK_SIZE - 1);
-                String contentRange = resp.headers.get("Content-Range");
-                if (contentRange == null)
-                    throw new IOException("Missing Content-Range header!");
-
-                String[] split = Utils.split(contentRange, '/');
-                size = Integer.parseInt(split[1]);
-                chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
-
-                if (cacheHandler != null)
-                    cacheHandler.setHeader(AudioFileFetch.HEADER_SIZE, ByteBuffer.allocate(4).putInt(size / 4).array());
+            } catch (IOException | CdnException | RuntimeException ex) {
+                executorService.shutdown();
+                if (cacheHandler != null) {
+                    try {
+                        cacheHandler.close();
+                    } catch (IOException ignored) {
+                    }
+                }
 
-                firstChunk = resp.buffer;
-                fromCache = false;
+                throw ex;
             }
 
-            available = new boolean[chunks];
-            requested = new boolean[chunks];
             buffer = new byte[chunks][];
-            internalStream = new InternalStream(session.configuration().retryOnChunkError);
+            internalStream = new InternalStream(conf, bitrate);
+
+            try {
+                this.audioDecrypt = awaitDecrypt(audioDecrypt);
+            } catch (IOException ex) {
+                ChunkBufferPool.get().release(firstChunk);
+                internalStream.close();
+                throw ex;
+            }
 
-            requested[0] = true;
             writeChunk(firstChunk, 0, fromCache);
         }
 
         @Override
         public void writeChunk(@NotNull byte[] chunk, int chunkIndex, boolean cached) throws IOException {
-            if (internalStream.isClosed()) return;
-
-            if (!cached && cacheHandler != null) {
-                try {
-                    cacheHandler.writeChunk(chunk, chunkIndex);
-                } catch (IOException ex) {
-                    LOGGER.warn("Failed writing to cache! {index: {}}", chunkIndex, ex);
-                }
+            if (internalStream.isClosed()) {
+                ChunkBufferPool.get().release(chunk);
+                return;
             }
 
+            boolean plaintextCache = cacheHandler != null && cacheHandler.isPlaintext();
+            if (!cached && cacheHandler != null && !plaintextCache)
+                writeToCache(chunk, chunkIndex);
+
             LOGGER.trace("Chunk {}/{} completed, cached: {}, stream: {}", chunkIndex, chunks, cached, describe());
 
+            if (!cached || !plaintextCache)
+                audioDecrypt.decryptChunk(chunkIndex, chunk);
+
+            if (!cached && plaintextCache)
+                writeToCache(chunk, chunkIndex);
+
             buffer[chunkIndex] = chunk;
-            audioDecrypt.decryptChunk(chunkIndex, chunk);
+            internalStream.notifyChunkAvailable(chunkIndex);
+        }
+
+        private void writeToCache(@NotNull byte[] chunk, int chunkIndex) {
+            try {
+                cacheHandler.writeChunk(chunk, chunkIndex);
+            } catch (IOException ex) {
+                LOGGER.warn("Failed writing to cache! {index: {}}", chunkIndex, ex);
+            }
+        }
+
+        @Override
+        public void writeChunk(@NotNull ByteBuffer chunk, int chunkIndex, boolean cached) throws IOException {
+            if (!cached) {
+                GeneralWritableStream.super.writeChunk(chunk, chunkIndex, false);
+                return;
+            }
+
+            if (internalStream.isClosed()) return;
+
+            LOGGER.trace("Chunk {}/{} completed, cached: true, stream: {}", chunkIndex, chunks, describe());
+
+            byte[] decrypted = chunk.remaining() == CHUNK_SIZE ? ChunkBufferPool.get().acquire() : new byte[chunk.remaining()];
+            if (cacheHandler != null && cacheHandler.isPlaintext()) chunk.duplicate().get(decrypted);
+            else audioDecrypt.decryptChunk(chunkIndex, chunk, decrypted);
+            buffer[chunkIndex] = decrypted;
             internalStream.notifyChunkAvailable(chunkIndex);
         }
 
@@ -314,25 +525,134 @@ public class CdnManager {
                 }
             }
 
+            pendingChunks.add(index);
+            fetchPending(index);
+        }
+
+        /**
+         * Fetches the given chunk together with the adjacent ones that are waiting to be fetched, unless another
+         * request already took care of it. At most {@link Session.Configuration#cdnMaxConcurrentRequests} requests run concurrently.
+         */
+        private void fetchPending(int index) {
+            try {
+                fetchPermits.acquire();
+            } catch (InterruptedException ex) {
+                if (pendingChunks.remove(index))
+                    internalStream.notifyChunkError(index, new AbsChunkedInputStream.ChunkException(ex));
+
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            try {
+                if (!pendingChunks.remove(index)) return;
+
+                int last = index;
+                while (last - index + 1 < MAX_COALESCED_CHUNKS && pendingChunks.remove(last + 1))
+                    last++;
+
+                fetchRange(index, last);
+            } finally {
+                fetchPermits.release();
+            }
+        }
+
+        /**
+         * Requests the chunks from {@code first} to {@code last} (inclusive) with a single range request, every chunk
+         * is delivered as soon as its bytes have been received.
+         */
+        private void fetchRange(int first, int last) {
+            int rangeStart = first * CHUNK_SIZE;
+            int rangeEnd = Math.min((last + 1) * CHUNK_SIZE, size) - 1;
+
+            HttpUrl url;
+            try {
+                url = cdnUrl.url();
+            } catch (CdnException ex) {
+                LOGGER.error("Failed renewing CDN url, range: {}-{}", first, last, ex);
+                for (int i = first; i <= last; i++)
+                    internalStream.notifyChunkError(i, new AbsChunkedInputStream.ChunkException(ex));
+                return;
+            }
+
+            CdnHostRegistry.Sample sample = hosts.track(url);
+            long received = 0;
+            int next = first;
+            try (Response resp = client.newCall(new Request.Builder().get().url(url)
+                    .header("Range", "bytes=" + rangeStart + "-" + rangeEnd)
+                    .build()).execute()) {
+                sample.responded();
+
+                if (resp.code() != 206)
+                    throw new IOException(resp.code() + ": " + resp.message());
+
+                ResponseBody body = resp.body();
+                if (body == null)
+                    throw new IOException("Response body is empty!");
+
+                try (InputStream in = body.byteStream()) {
+                    for (; next <= last; next++) {
+                        if (internalStream.isClosed()) return;
+
+                        int length = Math.min(CHUNK_SIZE, size - next * CHUNK_SIZE);
+                        byte[] chunk = length == CHUNK_SIZE ? ChunkBufferPool.get().acquire() : new byte[length];
+                        try {
+                            readFully(in, chunk);
+                        } catch (IOException ex) {
+                            ChunkBufferPool.get().release(chunk);
+                            throw ex;
+                        }
+
+                        received += length;
+                        writeChunk(chunk, next, false);
+                    }
+                }
+
+                sample.completed(received);
+                consecutiveErrors.set(0);
+            } catch (IOException ex) {
+                sample.failed();
+                LOGGER.error("Failed requesting chunks from network, host: {}, range: {}-{}", url.host(), next, last, ex);
+
+                if (consecutiveErrors.incrementAndGet() >= FAILOVER_ERRORS) {
+                    consecutiveErrors.set(0);
+                    cdnUrl.failover(url);
+                }
+
+                for (int i = next; i <= last; i++)
+                    internalStream.notifyChunkError(i, new AbsChunkedInputStream.ChunkException(ex));
+            }
+        }
+
+        /**
+         * Requests the first chunk, trying another CDN host once if the current one fails.
+         */
+        @NotNull
+        private InternalResponse requestFirstChunk() throws IOException, CdnException {
+            HttpUrl url = cdnUrl.url();
             try {
-                InternalResponse resp = request(index);
-                writeChunk(resp.buffer, index, false);
-            } catch (IOException | CdnException ex) {
-                LOGGER.error("Failed requesting chunk from network, index: {}", index, ex);
-                internalStream.notifyChunkError(index, new AbsChunkedInputStream.ChunkException(ex));
+                return request(0, CHUNK_SIZE - 1);
+            } catch (IOException ex) {
+                if (!cdnUrl.failover(url)) throw ex;
+
+                LOGGER.warn("Failed requesting first chunk from {}, trying another host.", url.host(), ex);
+                return request(0, CHUNK_SIZE - 1);
             }
         }
 
         @NotNull
-        public synchronized InternalResponse request(int chunk) throws IOException, CdnException {
+        public InternalResponse request(int chunk) throws IOException, CdnException {
             return request(CHUNK_SIZE * chunk, (chunk + 1) * CHUNK_SIZE - 1);
         }
 
         @NotNull
-        public synchronized InternalResponse request(int rangeStart, int rangeEnd) throws IOException, CdnException {
-            try (Response resp = session.client().newCall(new Request.Builder().get().url(cdnUrl.url())
+        public InternalResponse request(int rangeStart, int rangeEnd) throws IOException, CdnException {
+            HttpUrl url = cdnUrl.url();
+            CdnHostRegistry.Sample sample = hosts.track(url);
+            try (Response resp = client.newCall(new Request.Builder().get().url(url)
                     .header("Range", "bytes=" + rangeStart + "-" + rangeEnd)
                     .build()).execute()) {
+                sample.responded();
 
                 if (resp.code() != 206)
                     throw new IOException(resp.code() + ": " + resp.message());
@@ -341,7 +661,12 @@ public class CdnManager {
                 if (body == null)
                     throw new IOException("Response body is empty!");
 
-                return new InternalResponse(body.bytes(), resp.headers());
+                byte[] buffer = readBody(body, rangeEnd - rangeStart + 1);
+                sample.completed(buffer.length);
+                return new InternalResponse(buffer, resp.headers());
+            } catch (IOException ex) {
+                sample.failed();
+                throw ex;
             }
         }
 
@@ -351,8 +676,8 @@ public class CdnManager {
 
         private class InternalStream extends AbsChunkedInputStream {
 
-            private InternalStream(boolean retryOnChunkError) {
-                super(retryOnChunkError);
+            private InternalStream(@NotNull Session.Configuration conf, int bitrate) {
+                super(conf.retryOnChunkError, bitrate, conf.readAheadBufferMs);
             }
 
             @Override
@@ -378,16 +703,6 @@ public class CdnManager {
                 return size;
             }
 
-            @Override
-            protected boolean[] requestedChunks() {
-                return requested;
-            }
-
-            @Override
-            protected boolean[] availableChunks() {
-                return available;
-            }
-
             @Override
             protected int chunks() {
                 return chunks;
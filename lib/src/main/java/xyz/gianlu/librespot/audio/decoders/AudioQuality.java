@@ -50,6 +50,33 @@ public enum AudioQuality {
         }
     }
 
+    /**
+     * @return The bitrate of the given format in bits per second, or {@code 0} if unknown
+     */
+    public static int getBitrate(@NotNull AudioFile.Format format) {
+        switch (format) {
+            case AAC_24:
+            case AAC_24_NORM:
+                return 24_000;
+            case AAC_48:
+                return 48_000;
+            case MP3_96:
+            case OGG_VORBIS_96:
+                return 96_000;
+            case MP3_160:
+            case MP3_160_ENC:
+            case OGG_VORBIS_160:
+                return 160_000;
+            case MP3_256:
+                return 256_000;
+            case MP3_320:
+            case OGG_VORBIS_320:
+                return 320_000;
+            default:
+                return 0;
+        }
+    }
+
     public @NotNull List<AudioFile> getMatches(@NotNull List<AudioFile> files) {
         List<AudioFile> list = new ArrayList<>(files.size());
         for (AudioFile file : files) {
@@ -17,58 +17,109 @@
 package xyz.gianlu.librespot.audio.decrypt;
 
 import org.jetbrains.annotations.NotNull;
-import xyz.gianlu.librespot.common.Utils;
 
 import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
 
 /**
+ * Decrypts audio chunks with AES in CTR mode. The counter is contiguous across the whole file, so the cipher is
+ * initialized only once per chunk with the counter of its first block. Ciphers are kept per thread, therefore
+ * different chunks can be decrypted concurrently.
+ *
  * @author Gianlu
  */
 public final class AesAudioDecrypt implements AudioDecrypt {
-    private static final byte[] AUDIO_AES_IV = new byte[]{(byte) 0x72, (byte) 0xe0, (byte) 0x67, (byte) 0xfb, (byte) 0xdd, (byte) 0xcb, (byte) 0xcf, (byte) 0x77, (byte) 0xeb, (byte) 0xe8, (byte) 0xbc, (byte) 0x64, (byte) 0x3f, (byte) 0x63, (byte) 0x0d, (byte) 0x93};
-    private final static BigInteger IV_INT = new BigInteger(1, AUDIO_AES_IV);
-    private static final BigInteger IV_DIFF = BigInteger.valueOf(0x100);
-    private final SecretKeySpec secretKeySpec;
-    private final Cipher cipher;
-    private int decryptCount = 0;
-    private long decryptTotalTime = 0;
-
-    public AesAudioDecrypt(byte[] key) {
+    private static final long IV_HIGH = 0x72e067fbddcbcf77L;
+    private static final long IV_LOW = 0xebe8bc643f630d93L;
+    private static final int BLOCKS_PER_CHUNK = CHUNK_SIZE / 16;
+    /**
+     * Data is fed to the cipher in slices of this size, small enough for the JIT to compile the AES-CTR intrinsic early.
+     */
+    private static final int SLICE_SIZE = 16 * 1024;
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
         try {
-            this.secretKeySpec = new SecretKeySpec(key, "AES");
-            this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            return Cipher.getInstance("AES/CTR/NoPadding");
         } catch (NoSuchAlgorithmException | NoSuchPaddingException ex) {
             throw new IllegalStateException(ex); // This should never happen
         }
+    });
+    private final SecretKeySpec secretKeySpec;
+    private final AtomicInteger decryptCount = new AtomicInteger(0);
+    private final AtomicLong decryptTotalTime = new AtomicLong(0);
+
+    public AesAudioDecrypt(byte[] key) {
+        this.secretKeySpec = new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * @return The initial counter for the given chunk, that is the audio IV plus the number of blocks that precede the chunk
+     */
+    @NotNull
+    static byte[] counterFor(int chunkIndex) {
+        long low = IV_LOW + (long) BLOCKS_PER_CHUNK * chunkIndex;
+        long high = IV_HIGH;
+        if (Long.compareUnsigned(low, IV_LOW) < 0) high++;
+
+        return ByteBuffer.allocate(16).putLong(high).putLong(low).array();
+    }
+
+    @NotNull
+    private Cipher initCipher(int chunkIndex) throws GeneralSecurityException {
+        Cipher cipher = CIPHER.get();
+        cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(counterFor(chunkIndex)));
+        return cipher;
     }
 
     @Override
-    public synchronized void decryptChunk(int chunkIndex, @NotNull byte[] buffer) throws IOException {
-        BigInteger iv = IV_INT.add(BigInteger.valueOf((long) CHUNK_SIZE * chunkIndex / 16));
+    public void decryptChunk(int chunkIndex, @NotNull byte[] buffer) throws IOException {
         try {
             long start = System.nanoTime();
-            for (int i = 0; i < buffer.length; i += 4096) {
-                cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, new IvParameterSpec(Utils.toByteArray(iv)));
+            Cipher cipher = initCipher(chunkIndex);
+            int processed = 0;
+            while (buffer.length - processed > SLICE_SIZE)
+                processed += cipher.update(buffer, processed, SLICE_SIZE, buffer, processed);
 
-                int count = Math.min(4096, buffer.length - i);
-                int processed = cipher.doFinal(buffer, i, count, buffer, i);
-                if (count != processed)
-                    throw new IOException(String.format("Couldn't process all data, actual: %d, expected: %d", processed, count));
+            processed += cipher.doFinal(buffer, processed, buffer.length - processed, buffer, processed);
+            if (processed != buffer.length)
+                throw new IOException(String.format("Couldn't process all data, actual: %d, expected: %d", processed, buffer.length));
+
+            decryptTotalTime.addAndGet(System.nanoTime() - start);
+            decryptCount.incrementAndGet();
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+    }
 
-                iv = iv.add(IV_DIFF);
+    @Override
+    public void decryptChunk(int chunkIndex, @NotNull ByteBuffer in, @NotNull byte[] out) throws IOException {
+        try {
+            long start = System.nanoTime();
+            Cipher cipher = initCipher(chunkIndex);
+            ByteBuffer src = in.duplicate();
+            ByteBuffer dst = ByteBuffer.wrap(out, 0, src.remaining());
+            int length = src.remaining(), end = src.limit(), processed = 0;
+            while (end - src.position() > SLICE_SIZE) {
+                src.limit(src.position() + SLICE_SIZE);
+                processed += cipher.update(src, dst);
             }
 
-            decryptTotalTime += System.nanoTime() - start;
-            decryptCount++;
+            src.limit(end);
+            processed += cipher.doFinal(src, dst);
+            if (processed != length)
+                throw new IOException(String.format("Couldn't process all data, actual: %d, expected: %d", processed, length));
+
+            decryptTotalTime.addAndGet(System.nanoTime() - start);
+            decryptCount.incrementAndGet();
         } catch (GeneralSecurityException ex) {
             throw new IOException(ex);
         }
@@ -81,6 +132,7 @@ public final class AesAudioDecrypt implements AudioDecrypt {
      */
     @Override
     public int decryptTimeMs() {
-        return decryptCount == 0 ? 0 : (int) (((float) decryptTotalTime / decryptCount) / 1_000_000f);
+        int count = decryptCount.get();
+        return count == 0 ? 0 : (int) (((float) decryptTotalTime.get() / count) / 1_000_000f);
     }
 }
@@ -16,7 +16,10 @@
 
 package xyz.gianlu.librespot.audio.decrypt;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @author Gianlu
@@ -24,5 +27,10 @@ import java.io.IOException;
 public interface AudioDecrypt {
     void decryptChunk(int chunkIndex, byte[] buffer) throws IOException;
 
+    /**
+     * Decrypts the remaining content of {@code in} into {@code out}, leaving {@code in} untouched.
+     */
+    void decryptChunk(int chunkIndex, @NotNull ByteBuffer in, @NotNull byte[] out) throws IOException;
+
     int decryptTimeMs();
 }
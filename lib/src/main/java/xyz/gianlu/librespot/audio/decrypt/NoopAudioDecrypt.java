@@ -16,6 +16,10 @@
 
 package xyz.gianlu.librespot.audio.decrypt;
 
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
 /**
  * @author Gianlu
  */
@@ -24,6 +28,11 @@ public final class NoopAudioDecrypt implements AudioDecrypt {
     public void decryptChunk(int chunkIndex, byte[] buffer) {
     }
 
+    @Override
+    public void decryptChunk(int chunkIndex, @NotNull ByteBuffer in, @NotNull byte[] out) {
+        in.duplicate().get(out, 0, in.remaining());
+    }
+
     @Override
     public int decryptTimeMs() {
         return 0;
@@ -16,6 +16,7 @@
 
 package xyz.gianlu.librespot.audio.storage;
 
+import org.jetbrains.annotations.NotNull;
 import xyz.gianlu.librespot.audio.GeneralWritableStream;
 
 import java.io.Closeable;
@@ -30,4 +31,6 @@ public interface AudioFile extends Closeable, GeneralWritableStream {
     void writeHeader(int id, byte[] bytes, boolean cached) throws IOException;
 
     void streamError(int chunkIndex, short code);
+
+    void streamError(int chunkIndex, @NotNull IOException ex);
 }
@@ -21,6 +21,7 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xyz.gianlu.librespot.audio.AbsChunkedInputStream;
+import xyz.gianlu.librespot.audio.ChunkBufferPool;
 import xyz.gianlu.librespot.cache.CacheManager;
 import xyz.gianlu.librespot.common.Utils;
 
@@ -50,6 +51,8 @@ public class AudioFileFetch implements AudioFile {
     public void writeChunk(byte[] chunk, int chunkIndex, boolean cached) {
         if (chunkIndex != 0)
             throw new IllegalStateException("chunkIndex not zero: " + chunkIndex);
+
+        ChunkBufferPool.get().release(chunk); // Only the headers are needed
     }
 
     @Override
@@ -87,14 +90,20 @@ public class AudioFileFetch implements AudioFile {
         notifyAll();
     }
 
-    synchronized void waitChunk() throws AbsChunkedInputStream.ChunkException {
-        if (size != -1) return;
+    @Override
+    public synchronized void streamError(int chunkIndex, @NotNull IOException ex) {
+        LOGGER.error("Stream error, index: {}", chunkIndex, ex);
+
+        exception = new AbsChunkedInputStream.ChunkException(ex);
+        notifyAll();
+    }
 
+    synchronized void waitChunk() throws AbsChunkedInputStream.ChunkException {
         try {
-            exception = null;
-            wait();
+            while (size == -1 && exception == null)
+                wait();
 
-            if (exception != null)
+            if (size == -1)
                 throw exception;
         } catch (InterruptedException ex) {
             throw new IllegalStateException(ex);
@@ -23,22 +23,27 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xyz.gianlu.librespot.audio.AbsChunkedInputStream;
+import xyz.gianlu.librespot.audio.ChunkBufferPool;
 import xyz.gianlu.librespot.audio.DecodedAudioStream;
 import xyz.gianlu.librespot.audio.HaltListener;
+import xyz.gianlu.librespot.audio.decoders.AudioQuality;
 import xyz.gianlu.librespot.audio.decrypt.AesAudioDecrypt;
 import xyz.gianlu.librespot.audio.decrypt.AudioDecrypt;
 import xyz.gianlu.librespot.audio.format.SuperAudioFormat;
 import xyz.gianlu.librespot.cache.CacheManager;
 import xyz.gianlu.librespot.cache.JournalHeader;
-import xyz.gianlu.librespot.common.NameThreadFactory;
+import xyz.gianlu.librespot.common.ExecutorFactory;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.Session;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
 
 /**
  * @author devgianlu
@@ -50,7 +55,8 @@ public class AudioFileStreaming implements AudioFile, DecodedAudioStream {
     private final byte[] key;
     private final Session session;
     private final HaltListener haltListener;
-    private final ExecutorService executorService = Executors.newCachedThreadPool(new NameThreadFactory(r -> "storage-async-" + r.hashCode()));
+    private final ExecutorService executorService = ExecutorFactory.newCachedThreadPool(r -> "storage-async-" + r.hashCode());
+    private final AtomicBoolean closed = new AtomicBoolean(false);
     private int chunks = -1;
     private ChunksBuffer chunksBuffer;
 
@@ -139,21 +145,35 @@ public class AudioFileStreaming implements AudioFile, DecodedAudioStream {
 
     private void requestChunk(int index) {
         requestChunk(file.getFileId(), index, this);
-        chunksBuffer.requested[index] = true; // Just to be sure
     }
 
     @Override
     public void writeChunk(byte[] buffer, int chunkIndex, boolean cached) throws IOException {
-        if (!cached && cacheHandler != null) {
-            try {
-                cacheHandler.writeChunk(buffer, chunkIndex);
-            } catch (IOException ex) {
-                LOGGER.warn("Failed writing to cache! {index: {}}", chunkIndex, ex);
-            }
+        boolean plaintextCache = cacheHandler != null && cacheHandler.isPlaintext();
+        if (!cached && cacheHandler != null && !plaintextCache)
+            writeToCache(buffer, chunkIndex);
+
+        chunksBuffer.writeChunk(buffer, chunkIndex, !cached || !plaintextCache, !cached && plaintextCache);
+        LOGGER.trace("Chunk {}/{} completed, cached: {}, fileId: {}", chunkIndex, chunks, cached, Utils.bytesToHex(file.getFileId()));
+    }
+
+    private void writeToCache(@NotNull byte[] buffer, int chunkIndex) {
+        try {
+            cacheHandler.writeChunk(buffer, chunkIndex);
+        } catch (IOException ex) {
+            LOGGER.warn("Failed writing to cache! {index: {}}", chunkIndex, ex);
+        }
+    }
+
+    @Override
+    public void writeChunk(@NotNull ByteBuffer buffer, int chunkIndex, boolean cached) throws IOException {
+        if (!cached) {
+            AudioFile.super.writeChunk(buffer, chunkIndex, false);
+            return;
         }
 
         chunksBuffer.writeChunk(buffer, chunkIndex);
-        LOGGER.trace("Chunk {}/{} completed, cached: {}, fileId: {}", chunkIndex, chunks, cached, Utils.bytesToHex(file.getFileId()));
+        LOGGER.trace("Chunk {}/{} completed, cached: true, fileId: {}", chunkIndex, chunks, Utils.bytesToHex(file.getFileId()));
     }
 
     @Override
@@ -167,11 +187,19 @@ public class AudioFileStreaming implements AudioFile, DecodedAudioStream {
         chunksBuffer.internalStream.notifyChunkError(chunkIndex, AbsChunkedInputStream.ChunkException.fromStreamError(code));
     }
 
+    @Override
+    public void streamError(int chunkIndex, @NotNull IOException ex) {
+        LOGGER.error("Stream error, index: {}", chunkIndex, ex);
+        chunksBuffer.internalStream.notifyChunkError(chunkIndex, new AbsChunkedInputStream.ChunkException(ex));
+    }
+
     @Override
     public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+
         executorService.shutdown();
         if (chunksBuffer != null)
-            chunksBuffer.close();
+            chunksBuffer.internalStream.close();
 
         if (cacheHandler != null) {
             try {
@@ -184,28 +212,48 @@ public class AudioFileStreaming implements AudioFile, DecodedAudioStream {
     private class ChunksBuffer implements Closeable {
         private final int size;
         private final byte[][] buffer;
-        private final boolean[] available;
-        private final boolean[] requested;
         private final AudioDecrypt audioDecrypt;
         private final InternalStream internalStream;
 
         ChunksBuffer(int size, int chunks) {
             this.size = size;
             this.buffer = new byte[chunks][];
-            this.available = new boolean[chunks];
-            this.requested = new boolean[chunks];
             this.audioDecrypt = new AesAudioDecrypt(key);
-            this.internalStream = new InternalStream(session.configuration().retryOnChunkError);
+            this.internalStream = new InternalStream(session.configuration());
         }
 
-        void writeChunk(@NotNull byte[] chunk, int chunkIndex) throws IOException {
-            if (internalStream.isClosed()) return;
+        /**
+         * @param decrypt Whether the chunk is still encrypted
+         * @param cache   Whether the decrypted chunk should be written to the cache
+         */
+        void writeChunk(@NotNull byte[] chunk, int chunkIndex, boolean decrypt, boolean cache) throws IOException {
+            if (internalStream.isClosed()) {
+                ChunkBufferPool.get().release(chunk);
+                return;
+            }
+
+            int expected = Math.min(CHUNK_SIZE, size - chunkIndex * CHUNK_SIZE);
+            if (chunk.length != expected)
+                throw new IllegalArgumentException(String.format("Buffer size mismatch, required: %d, received: %d, index: %d", expected, chunk.length, chunkIndex));
 
-            if (chunk.length != buffer[chunkIndex].length)
-                throw new IllegalArgumentException(String.format("Buffer size mismatch, required: %d, received: %d, index: %d", buffer[chunkIndex].length, chunk.length, chunkIndex));
+            if (decrypt) audioDecrypt.decryptChunk(chunkIndex, chunk);
+            if (cache) writeToCache(chunk, chunkIndex);
 
             buffer[chunkIndex] = chunk;
-            audioDecrypt.decryptChunk(chunkIndex, chunk);
+            internalStream.notifyChunkAvailable(chunkIndex);
+        }
+
+        void writeChunk(@NotNull ByteBuffer chunk, int chunkIndex) throws IOException {
+            if (internalStream.isClosed()) return;
+
+            int expected = Math.min(CHUNK_SIZE, size - chunkIndex * CHUNK_SIZE);
+            if (chunk.remaining() != expected)
+                throw new IllegalArgumentException(String.format("Buffer size mismatch, required: %d, received: %d, index: %d", expected, chunk.remaining(), chunkIndex));
+
+            byte[] decrypted = expected == CHUNK_SIZE ? ChunkBufferPool.get().acquire() : new byte[expected];
+            if (cacheHandler != null && cacheHandler.isPlaintext()) chunk.duplicate().get(decrypted);
+            else audioDecrypt.decryptChunk(chunkIndex, chunk, decrypted);
+            buffer[chunkIndex] = decrypted;
             internalStream.notifyChunkAvailable(chunkIndex);
         }
 
@@ -216,14 +264,19 @@ public class AudioFileStreaming implements AudioFile, DecodedAudioStream {
 
         @Override
         public void close() {
-            internalStream.close();
             AudioFileStreaming.this.close();
         }
 
         private class InternalStream extends AbsChunkedInputStream {
 
-            private InternalStream(boolean retryOnChunkError) {
-                super(retryOnChunkError);
+            private InternalStream(@NotNull Session.Configuration conf) {
+                super(conf.retryOnChunkError, AudioQuality.getBitrate(file.getFormat()), conf.readAheadBufferMs);
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                AudioFileStreaming.this.close();
             }
 
             @Override
@@ -236,16 +289,6 @@ public class AudioFileStreaming implements AudioFile, DecodedAudioStream {
                 return size;
             }
 
-            @Override
-            protected boolean[] requestedChunks() {
-                return requested;
-            }
-
-            @Override
-            protected boolean[] availableChunks() {
-                return available;
-            }
-
             @Override
             protected int chunks() {
                 return chunks;
@@ -14,12 +14,14 @@
  * limitations under the License.
  */
 
+
 package xyz.gianlu.librespot.audio.storage;
 
 import com.google.protobuf.ByteString;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import xyz.gianlu.librespot.audio.ChunkBufferPool;
 import xyz.gianlu.librespot.common.NameThreadFactory;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.PacketsReceiver;
@@ -31,36 +33,51 @@ import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Multiplexes chunk requests over the access point connection. At most {@link #MAX_IN_FLIGHT} channels are open at
+ * the same time, further requests wait for a slot. The received data is copied straight into a pooled chunk buffer on
+ * the receiver thread, completed chunks and headers are handed to the {@link AudioFile} on a single delivery thread.
+ *
  * @author Gianlu
  */
 public class ChannelManager implements Closeable, PacketsReceiver {
     public static final int CHUNK_SIZE = 128 * 1024;
+    static final int MAX_IN_FLIGHT = 16;
+    private static final long CHANNEL_TIMEOUT_MS = 10_000;
     private static final Logger LOGGER = LoggerFactory.getLogger(ChannelManager.class);
-    private final Map<Short, Channel> channels = new HashMap<>();
+    private final Map<Short, Channel> channels = new ConcurrentHashMap<>();
     private final AtomicInteger seqHolder = new AtomicInteger(0);
-    private final ExecutorService executorService = Executors.newCachedThreadPool(new NameThreadFactory(r -> "channel-queue-" + r.hashCode()));
-    private final Session session;
+    private final ExecutorService deliveryService = Executors.newSingleThreadExecutor(new NameThreadFactory(r -> "channel-delivery"));
+    private final Semaphore window;
+    private final PacketSender sender;
+    private volatile boolean closed = false;
 
     public ChannelManager(@NotNull Session session) {
-        this.session = session;
+        this(session::send, MAX_IN_FLIGHT);
+    }
+
+    ChannelManager(@NotNull PacketSender sender, int window) {
+        this.sender = sender;
+        this.window = new Semaphore(window);
     }
 
+    /**
+     * Requests the given chunk, waiting for a free slot if too many channels are open.
+     */
     void requestChunk(@NotNull ByteString fileId, int index, @NotNull AudioFile file) throws IOException {
-        int start = index * CHUNK_SIZE / 4;
-        int end = (index + 1) * CHUNK_SIZE / 4;
+        acquireSlot();
 
         Channel channel = new Channel(file, index);
         channels.put(channel.id, channel);
 
+        int start = index * CHUNK_SIZE / 4;
+        int end = (index + 1) * CHUNK_SIZE / 4;
+
         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         DataOutputStream out = new DataOutputStream(bytes);
 
@@ -73,69 +90,162 @@ public class ChannelManager implements Closeable, PacketsReceiver {
         out.writeInt(start);
         out.writeInt(end);
 
-        session.send(Packet.Type.StreamChunk, bytes.toByteArray());
+        try {
+            sender.send(Packet.Type.StreamChunk, bytes.toByteArray());
+        } catch (IOException ex) {
+            if (channels.remove(channel.id, channel)) channel.abort();
+            throw ex;
+        }
+    }
+
+    private void acquireSlot() throws IOException {
+        try {
+            while (!window.tryAcquire(CHANNEL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (closed) throw new IOException("Channel manager is closed!");
+                expireStaleChannels();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+
+        if (closed) {
+            window.release();
+            throw new IOException("Channel manager is closed!");
+        }
+    }
+
+    /**
+     * Fails the channels that haven't received anything for too long, so that they don't hold a slot forever.
+     */
+    private void expireStaleChannels() {
+        long now = System.currentTimeMillis();
+        for (Channel channel : channels.values()) {
+            if (now - channel.lastActivity > CHANNEL_TIMEOUT_MS && channels.remove(channel.id, channel)) {
+                LOGGER.warn("Channel timed out, id: {}, chunk: {}", channel.id, channel.chunkIndex);
+                channel.abort();
+                window.release();
+                deliver(() -> channel.file.streamError(channel.chunkIndex, new IOException("Channel timed out")));
+            }
+        }
     }
 
     @Override
     public void dispatch(@NotNull Packet packet) {
-        ByteBuffer payload = ByteBuffer.wrap(packet.payload);
-        if (packet.is(Packet.Type.StreamChunkRes)) {
+        Packet.Type type = packet.type();
+        if (type == null) {
+            LOGGER.warn("Couldn't handle packet, cmd: {}, payload: {}", packet.cmd, Utils.bytesToHex(packet.payload));
+            return;
+        }
+
+        dispatch(type, ByteBuffer.wrap(packet.payload));
+    }
+
+    /**
+     * Handles the packet straight from the receive buffer, data is copied only once into the chunk buffer.
+     */
+    @Override
+    public void dispatch(@NotNull Packet.Type type, @NotNull ByteBuffer payload) {
+        if (type == Packet.Type.StreamChunkRes) {
             short id = payload.getShort();
             Channel channel = channels.get(id);
             if (channel == null) {
-                LOGGER.warn("Couldn't find channel, id: {}, received: {}", id, packet.payload.length);
+                LOGGER.warn("Couldn't find channel, id: {}, received: {}", id, payload.remaining() + 2);
                 return;
             }
 
-            channel.addToQueue(payload);
-        } else if (packet.is(Packet.Type.ChannelError)) {
+            try {
+                if (channel.handle(payload) && channels.remove(id, channel)) {
+                    window.release();
+
+                    byte[] chunk = channel.takeBuffer();
+                    deliver(() -> channel.file.writeChunk(chunk, channel.chunkIndex, false));
+                }
+            } catch (IOException ex) {
+                LOGGER.error("Failed handling packet!", ex);
+                if (channels.remove(id, channel)) {
+                    channel.abort();
+                    window.release();
+                    deliver(() -> channel.file.streamError(channel.chunkIndex, ex));
+                }
+            }
+        } else if (type == Packet.Type.ChannelError) {
             short id = payload.getShort();
-            Channel channel = channels.get(id);
+            short code = payload.getShort();
+            Channel channel = channels.remove(id);
             if (channel == null) {
-                LOGGER.warn("Dropping channel error, id: {}, code: {}", id, payload.getShort());
+                LOGGER.warn("Dropping channel error, id: {}, code: {}", id, code);
                 return;
             }
 
-            channel.streamError(payload.getShort());
+            channel.abort();
+            window.release();
+            deliver(() -> channel.file.streamError(channel.chunkIndex, code));
         } else {
-            LOGGER.warn("Couldn't handle packet, cmd: {}, payload: {}", packet.type(), Utils.bytesToHex(packet.payload));
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            LOGGER.warn("Couldn't handle packet, cmd: {}, payload: {}", type, Utils.bytesToHex(bytes));
+        }
+    }
+
+    private void deliver(@NotNull Delivery delivery) {
+        try {
+            deliveryService.execute(() -> {
+                try {
+                    delivery.run();
+                } catch (IOException ex) {
+                    LOGGER.error("Failed delivering channel data!", ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            LOGGER.trace("Dropping channel data, manager is closed.");
         }
     }
 
     @Override
     public void close() {
-        executorService.shutdown();
+        closed = true;
+        deliveryService.shutdown();
+
+        for (Channel channel : channels.values()) {
+            if (channels.remove(channel.id, channel))
+                channel.abort();
+        }
     }
 
-    public class Channel {
-        public final short id;
-        private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
-        private final AudioFile file;
-        private final int chunkIndex;
-        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(CHUNK_SIZE);
-        private volatile boolean header = true;
+    interface PacketSender {
+        void send(@NotNull Packet.Type type, byte[] payload) throws IOException;
+    }
+
+    private interface Delivery {
+        void run() throws IOException;
+    }
+
+    private class Channel {
+        final short id;
+        final AudioFile file;
+        final int chunkIndex;
+        volatile long lastActivity = System.currentTimeMillis();
+        private byte[] buffer = null;
+        private int length = 0;
+        private boolean header = true;
 
         private Channel(@NotNull AudioFile file, int chunkIndex) {
             this.file = file;
             this.chunkIndex = chunkIndex;
-            synchronized (seqHolder) {
-                id = (short) seqHolder.getAndIncrement();
-            }
-
-            executorService.execute(new Handler());
+            this.id = (short) seqHolder.getAndIncrement();
         }
 
         /**
-         * @return Whether the channel can be closed
+         * Handles the remaining of a {@link Packet.Type#StreamChunkRes} payload, after the channel ID.
+         *
+         * @return Whether the channel has been completed
          */
-        private boolean handle(@NotNull ByteBuffer payload) throws IOException {
+        private synchronized boolean handle(@NotNull ByteBuffer payload) throws IOException {
+            lastActivity = System.currentTimeMillis();
+
             if (payload.remaining() == 0) {
-                if (!header) {
-                    synchronized (buffer) {
-                        file.writeChunk(buffer.toByteArray(), chunkIndex, false);
-                        return true;
-                    }
-                }
+                if (!header) return true;
 
                 LOGGER.trace("Received empty chunk, skipping.");
                 return false;
@@ -147,49 +257,47 @@ public class ChannelManager implements Closeable, PacketsReceiver {
                     byte headerId = payload.get();
                     byte[] headerData = new byte[length - 1];
                     payload.get(headerData);
-                    file.writeHeader(headerId, headerData, false);
+                    deliver(() -> file.writeHeader(headerId, headerData, false));
                 }
 
                 header = false;
             } else {
-                byte[] bytes = new byte[payload.remaining()];
-                payload.get(bytes);
-                synchronized (buffer) {
-                    buffer.write(bytes);
-                }
+                if (buffer == null) buffer = ChunkBufferPool.get().acquire();
+
+                int count = payload.remaining();
+                if (length + count > buffer.length)
+                    throw new IOException(String.format("Chunk too big, index: %d, size: %d", chunkIndex, length + count));
+
+                payload.get(buffer, length, count);
+                length += count;
             }
 
             return false;
         }
 
-        private void addToQueue(@NotNull ByteBuffer payload) {
-            queue.add(payload);
-        }
+        /**
+         * @return The received data, pooled if it is a full chunk
+         */
+        @NotNull
+        private synchronized byte[] takeBuffer() {
+            if (buffer == null) return new byte[0];
 
-        void streamError(short code) {
-            file.streamError(chunkIndex, code);
-        }
+            byte[] chunk = buffer;
+            if (length != chunk.length) {
+                chunk = Arrays.copyOf(buffer, length);
+                ChunkBufferPool.get().release(buffer);
+            }
 
-        private class Handler implements Runnable {
-
-            @Override
-            public void run() {
-                LOGGER.trace("ChannelManager.Handler is starting");
-
-                while (true) {
-                    try {
-                        if (handle(queue.take())) {
-                            channels.remove(id);
-                            break;
-                        }
-                    } catch (IOException ex) {
-                        LOGGER.error("Failed handling packet!", ex);
-                    } catch (InterruptedException ex) {
-                        break;
-                    }
-                }
+            buffer = null;
+            length = 0;
+            return chunk;
+        }
 
-                LOGGER.trace("ChannelManager.Handler is shutting down");
+        private synchronized void abort() {
+            if (buffer != null) {
+                ChunkBufferPool.get().release(buffer);
+                buffer = null;
+                length = 0;
             }
         }
     }
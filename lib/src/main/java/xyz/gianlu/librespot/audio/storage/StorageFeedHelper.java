@@ -41,6 +41,13 @@ public final class StorageFeedHelper {
         byte[] key = session.audioKey().getAudioKey(track.getGid(), file.getFileId());
         int audioKeyTime = (int) (System.currentTimeMillis() - start);
 
+        return loadTrack(session, track, file, key, new PlayableContentFeeder.Metrics(file.getFileId(), preload, preload ? -1 : audioKeyTime), haltListener);
+    }
+
+    /**
+     * @param key The audio key, already retrieved
+     */
+    public static @NotNull PlayableContentFeeder.LoadedStream loadTrack(@NotNull Session session, @NotNull Metadata.Track track, @NotNull Metadata.AudioFile file, byte[] key, @NotNull PlayableContentFeeder.Metrics metrics, @Nullable HaltListener haltListener) throws IOException {
         AudioFileStreaming stream = new AudioFileStreaming(session, file, key, haltListener);
         stream.open();
 
@@ -50,7 +57,7 @@ public final class StorageFeedHelper {
         NormalizationData normalizationData = NormalizationData.read(in);
         if (in.skip(0xa7) != 0xa7) throw new IOException("Couldn't skip 0xa7 bytes!");
 
-        return new PlayableContentFeeder.LoadedStream(track, stream, normalizationData, new PlayableContentFeeder.Metrics(file.getFileId(), preload, preload ? -1 : audioKeyTime));
+        return new PlayableContentFeeder.LoadedStream(track, stream, normalizationData, metrics);
     }
 
     public static @NotNull PlayableContentFeeder.LoadedStream loadEpisode(@NotNull Session session, Metadata.@NotNull Episode episode, Metadata.@NotNull AudioFile file, boolean preload, @Nullable HaltListener haltListener) throws IOException {
@@ -58,6 +65,13 @@ public final class StorageFeedHelper {
         byte[] key = session.audioKey().getAudioKey(episode.getGid(), file.getFileId());
         int audioKeyTime = (int) (System.currentTimeMillis() - start);
 
+        return loadEpisode(session, episode, file, key, new PlayableContentFeeder.Metrics(file.getFileId(), preload, preload ? -1 : audioKeyTime), haltListener);
+    }
+
+    /**
+     * @param key The audio key, already retrieved
+     */
+    public static @NotNull PlayableContentFeeder.LoadedStream loadEpisode(@NotNull Session session, Metadata.@NotNull Episode episode, Metadata.@NotNull AudioFile file, byte[] key, @NotNull PlayableContentFeeder.Metrics metrics, @Nullable HaltListener haltListener) throws IOException {
         AudioFileStreaming stream = new AudioFileStreaming(session, file, key, haltListener);
         stream.open();
 
@@ -65,6 +79,6 @@ public final class StorageFeedHelper {
         NormalizationData normalizationData = NormalizationData.read(in);
         if (in.skip(0xa7) != 0xa7) throw new IOException("Couldn't skip 0xa7 bytes!");
 
-        return new PlayableContentFeeder.LoadedStream(episode, stream, normalizationData, new PlayableContentFeeder.Metrics(file.getFileId(), preload, preload ? -1 : audioKeyTime));
+        return new PlayableContentFeeder.LoadedStream(episode, stream, normalizationData, metrics);
     }
 }
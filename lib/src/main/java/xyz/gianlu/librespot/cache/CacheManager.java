@@ -20,8 +20,10 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import xyz.gianlu.librespot.audio.ChunkBufferPool;
 import xyz.gianlu.librespot.audio.GeneralWritableStream;
 import xyz.gianlu.librespot.audio.StreamId;
+import xyz.gianlu.librespot.common.NameThreadFactory;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.Session;
 
@@ -30,10 +32,18 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
 
@@ -43,6 +53,11 @@ import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
  */
 public class CacheManager implements Closeable {
     private static final long CLEAN_UP_THRESHOLD = TimeUnit.DAYS.toMillis(7);
+    private static final long EVICTION_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+    /**
+     * Eviction frees space until the cache is below this fraction of the maximum size.
+     */
+    private static final float EVICTION_LOW_WATERMARK = 0.9f;
     private static final Logger LOGGER = LoggerFactory.getLogger(CacheManager.class);
     /**
      * The header indicating when the file was last read or written to.
@@ -52,14 +67,31 @@ public class CacheManager implements Closeable {
      * The header indicating the hash of the first chunk of the file.
      */
     private static final int HEADER_HASH = 253;
+    /**
+     * The header indicating that the chunks of the file are stored already decrypted.
+     */
+    private static final int HEADER_PLAINTEXT = 252;
     private final File parent;
     private final CacheJournal journal;
-    private final Map<String, Handler> fileHandlers = Collections.synchronizedMap(new HashMap<>());
+    private final Map<String, Handler> fileHandlers = new HashMap<>();
+    /**
+     * Size and recency of every cached file, ordered from the least to the most recently used.
+     */
+    private final LinkedHashMap<String, IndexEntry> index = new LinkedHashMap<>(1024, 0.75f, true);
+    private final AtomicLong totalSize = new AtomicLong(0);
+    private final AtomicBoolean evictionPending = new AtomicBoolean(false);
+    private final long maxSize;
+    private final boolean storePlaintext;
+    private final ScheduledExecutorService evictionScheduler;
+    private volatile boolean indexLoaded = false;
 
     public CacheManager(@NotNull Session.Configuration conf) throws IOException {
         if (!conf.cacheEnabled) {
             parent = null;
             journal = null;
+            maxSize = 0;
+            storePlaintext = false;
+            evictionScheduler = null;
             return;
         }
 
@@ -67,7 +99,16 @@ public class CacheManager implements Closeable {
         if (!parent.exists() && !parent.mkdir())
             throw new IOException("Couldn't create cache directory!");
 
-        journal = new CacheJournal(parent);
+        journal = CacheJournal.open(parent, conf.cacheSyncPolicy);
+        maxSize = conf.cacheMaxSizeMb * 1024L * 1024L;
+        storePlaintext = conf.cacheStorePlaintext;
+
+        if (maxSize > 0) {
+            evictionScheduler = Executors.newSingleThreadScheduledExecutor(new NameThreadFactory(r -> "cache-eviction"));
+            evictionScheduler.scheduleWithFixedDelay(this::evict, EVICTION_INTERVAL, EVICTION_INTERVAL, TimeUnit.MILLISECONDS);
+        } else {
+            evictionScheduler = null;
+        }
 
         new Thread(() -> {
             try {
@@ -81,18 +122,30 @@ public class CacheManager implements Closeable {
                     }
                 }
 
-                if (conf.doCacheCleanUp) {
-                    for (String id : entries) {
-                        JournalHeader header = journal.getHeader(id, HEADER_TIMESTAMP);
-                        if (header == null) continue;
+                List<IndexEntry> loaded = new ArrayList<>(entries.size());
+                for (String id : entries) {
+                    JournalHeader header = journal.getHeader(id, HEADER_TIMESTAMP);
+                    long timestamp = header == null ? 0 : new BigInteger(header.value).longValue() * 1000;
+                    if (conf.doCacheCleanUp && header != null && System.currentTimeMillis() - timestamp > CLEAN_UP_THRESHOLD) {
+                        removeIfUnused(id);
+                        continue;
+                    }
+
+                    loaded.add(new IndexEntry(id, getCacheFile(parent, id).length(), timestamp));
+                }
 
-                        long timestamp = new BigInteger(header.value).longValue() * 1000;
-                        if (System.currentTimeMillis() - timestamp > CLEAN_UP_THRESHOLD)
-                            remove(id);
+                loaded.sort(Comparator.comparingLong(entry -> entry.lastAccess));
+                synchronized (index) {
+                    for (IndexEntry entry : loaded) {
+                        if (index.putIfAbsent(entry.id, entry) == null)
+                            totalSize.addAndGet(entry.size);
                     }
                 }
 
-                LOGGER.info("There are {} cached entries.", entries.size());
+                indexLoaded = true;
+                LOGGER.info("There are {} cached entries, using {} bytes.", loaded.size(), totalSize.get());
+
+                if (maxSize > 0 && totalSize.get() > maxSize) requestEviction();
             } catch (IOException ex) {
                 LOGGER.warn("Failed performing maintenance operations.", ex);
             }
@@ -113,9 +166,28 @@ public class CacheManager implements Closeable {
         return new File(parent, hex).exists();
     }
 
+    /**
+     * Removes the given file from the cache, unless it's currently being used by a {@link Handler}.
+     *
+     * @return Whether the file has been removed
+     */
+    private boolean removeIfUnused(@NotNull String streamId) throws IOException {
+        synchronized (fileHandlers) {
+            if (fileHandlers.containsKey(streamId)) return false;
+
+            remove(streamId);
+            return true;
+        }
+    }
+
     private void remove(@NotNull String streamId) throws IOException {
         journal.remove(streamId);
 
+        synchronized (index) {
+            IndexEntry entry = index.remove(streamId);
+            if (entry != null) totalSize.addAndGet(-entry.size);
+        }
+
         File file = getCacheFile(parent, streamId);
         if (file.exists() && !file.delete())
             LOGGER.warn("Couldn't delete cache file: " + file.getAbsolutePath());
@@ -123,24 +195,102 @@ public class CacheManager implements Closeable {
         LOGGER.trace("Removed {} from cache.", streamId);
     }
 
+    private void touch(@NotNull String streamId, long size) {
+        long delta;
+        synchronized (index) {
+            IndexEntry entry = index.get(streamId);
+            if (entry == null) index.put(streamId, entry = new IndexEntry(streamId, 0, 0));
+
+            entry.lastAccess = System.currentTimeMillis();
+            delta = size - entry.size;
+            entry.size = size;
+        }
+
+        if (delta == 0) return;
+
+        long total = totalSize.addAndGet(delta);
+        if (maxSize > 0 && total > maxSize) requestEviction();
+    }
+
+    private void requestEviction() {
+        if (evictionScheduler == null || !evictionPending.compareAndSet(false, true)) return;
+
+        try {
+            evictionScheduler.execute(this::evict);
+        } catch (RejectedExecutionException ex) {
+            evictionPending.set(false);
+        }
+    }
+
+    /**
+     * Removes the least recently used files until the cache is below {@link #EVICTION_LOW_WATERMARK} of the maximum size.
+     * Files that have an open {@link Handler} are never removed.
+     */
+    private void evict() {
+        evictionPending.set(false);
+        if (!indexLoaded || totalSize.get() <= maxSize) return;
+
+        long target = (long) (maxSize * EVICTION_LOW_WATERMARK);
+        List<String> candidates;
+        synchronized (index) {
+            candidates = new ArrayList<>(index.keySet());
+        }
+
+        int count = 0;
+        for (String id : candidates) {
+            if (totalSize.get() <= target) break;
+
+            try {
+                if (removeIfUnused(id)) count++;
+            } catch (IOException ex) {
+                LOGGER.warn("Failed evicting {} from cache.", id, ex);
+            }
+        }
+
+        LOGGER.debug("Evicted {} entries from cache, now using {} bytes.", count, totalSize.get());
+    }
+
+    /**
+     * @return The total size of the cached files, in bytes
+     */
+    public long size() {
+        return totalSize.get();
+    }
+
     @Override
     public void close() throws IOException {
-        for (Handler handler : new ArrayList<>(fileHandlers.values()))
-            handler.close();
+        if (evictionScheduler != null) evictionScheduler.shutdownNow();
+
+        List<Handler> handlers;
+        synchronized (fileHandlers) {
+            handlers = new ArrayList<>(fileHandlers.values());
+        }
+
+        for (Handler handler : handlers)
+            handler.closeNow();
 
         if (journal != null) journal.close();
     }
 
+    /**
+     * Gets a {@link Handler} for the given file. Every call must be matched by a call to {@link Handler#close()}.
+     */
     @Nullable
     public Handler getHandler(@NotNull String id) throws IOException {
         if (journal == null) return null;
 
-        Handler handler = fileHandlers.get(id);
-        if (handler == null) {
-            handler = new Handler(id, getCacheFile(parent, id));
-            fileHandlers.put(id, handler);
+        Handler handler;
+        synchronized (fileHandlers) {
+            handler = fileHandlers.get(id);
+            if (handler == null) {
+                handler = new Handler(id, getCacheFile(parent, id));
+                fileHandlers.put(id, handler);
+            }
+
+            handler.refs++;
         }
 
+        touch(id, handler.length());
         return handler;
     }
 
@@ -149,6 +299,24 @@ public class CacheManager implements Closeable {
         return getHandler(streamId.isEpisode() ? streamId.getEpisodeGid() : streamId.getFileId());
     }
 
+    /**
+     * When changes to the cache journal should be flushed to disk.
+     */
+    public enum SyncPolicy {
+        /**
+         * Flush after every write.
+         */
+        ALWAYS,
+        /**
+         * Flush periodically in the background.
+         */
+        PERIODIC,
+        /**
+         * Flush only when the cache is closed.
+         */
+        ON_CLOSE
+    }
+
     public static class BadChunkHashException extends Exception {
         BadChunkHashException(@NotNull String streamId, byte[] expected, byte[] actual) {
             super(String.format("Failed verifying chunk hash for %s, expected: %s, actual: %s",
@@ -156,10 +324,25 @@ public class CacheManager implements Closeable {
         }
     }
 
+    private static class IndexEntry {
+        final String id;
+        long size;
+        long lastAccess;
+
+        IndexEntry(@NotNull String id, long size, long lastAccess) {
+            this.id = id;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
     public class Handler implements Closeable {
         private final String streamId;
         private final RandomAccessFile io;
+        private final boolean plaintext;
+        private MappedByteBuffer mapping = null; // Guarded by io
         private boolean updatedTimestamp = false;
+        private int refs = 0; // Guarded by fileHandlers
 
         private Handler(@NotNull String streamId, @NotNull File file) throws IOException {
             this.streamId = streamId;
@@ -170,6 +353,32 @@ public class CacheManager implements Closeable {
             this.io = new RandomAccessFile(file, "rwd");
 
             journal.createIfNeeded(streamId);
+
+            JournalHeader mode = journal.getHeader(streamId, HEADER_PLAINTEXT);
+            if (mode != null) {
+                plaintext = mode.value.length > 0 && mode.value[0] == 1;
+            } else if (storePlaintext && io.length() == 0) {
+                journal.setHeader(streamId, HEADER_PLAINTEXT, new byte[]{1});
+                plaintext = true;
+            } else {
+                plaintext = false;
+            }
+        }
+
+        /**
+         * Whether the chunks of this file are stored already decrypted. This is decided when the file is first created
+         * and doesn't change afterwards, so files written with a different configuration are still readable.
+         *
+         * @return {@code true} if chunks must be written after decryption and must not be decrypted when read
+         */
+        public boolean isPlaintext() {
+            return plaintext;
+        }
+
+        private long length() throws IOException {
+            synchronized (io) {
+                return io.length();
+            }
         }
 
         private void updateTimestamp() {
@@ -219,54 +428,96 @@ public class CacheManager implements Closeable {
             return journal.hasChunk(streamId, index);
         }
 
+        /**
+         * Reads the given chunk directly from a memory mapping of the cache file, the buffer passed to
+         * {@link GeneralWritableStream#writeChunk(ByteBuffer, int, boolean)} is read-only and must not be retained.
+         *
+         * @param index  The index of the chunk
+         * @param stream The stream that will receive the chunk
+         * @throws BadChunkHashException If {@code index == 0} and the hash doesn't match
+         */
         public void readChunk(int index, @NotNull GeneralWritableStream stream) throws IOException, BadChunkHashException {
-            stream.writeChunk(readChunk(index), index, true);
+            updateTimestamp();
+
+            ByteBuffer chunk = mapChunk(index);
+            if (index == 0) checkHash(index, chunk);
+            stream.writeChunk(chunk, index, true);
         }
 
         /**
          * Reads the given chunk.
          *
          * @param index The index of the chunk
-         * @return The buffer containing the content of the chunk
+         * @return The buffer containing the content of the chunk, taken from the {@link ChunkBufferPool}
          * @throws BadChunkHashException If {@code index == 0} and the hash doesn't match
          */
         public byte[] readChunk(int index) throws IOException, BadChunkHashException {
             updateTimestamp();
 
-            synchronized (io) {
-                io.seek((long) index * CHUNK_SIZE);
-
-                byte[] buffer = new byte[CHUNK_SIZE];
-                int read = io.read(buffer);
-                if (read != buffer.length)
-                    throw new IOException(String.format("Couldn't read full chunk, read: %d, needed: %d", read, buffer.length));
+            byte[] buffer = ChunkBufferPool.get().acquire();
+            boolean ok = false;
+            try {
+                synchronized (io) {
+                    io.seek((long) index * CHUNK_SIZE);
 
-                if (index == 0) {
-                    JournalHeader header = journal.getHeader(streamId, HEADER_HASH);
-                    if (header != null) {
-                        try {
-                            MessageDigest digest = MessageDigest.getInstance("MD5");
-                            byte[] hash = digest.digest(buffer);
-                            if (!Arrays.equals(header.value, hash)) {
-                                journal.setChunk(streamId, index, false);
-                                throw new BadChunkHashException(streamId, header.value, hash);
-                            }
-                        } catch (NoSuchAlgorithmException ex) {
-                            LOGGER.error("Failed initializing MD5 digest.", ex);
-                        }
-                    }
+                    int read = io.read(buffer);
+                    if (read != buffer.length)
+                        throw new IOException(String.format("Couldn't read full chunk, read: %d, needed: %d", read, buffer.length));
                 }
 
+                if (index == 0) checkHash(index, ByteBuffer.wrap(buffer));
+
+                ok = true;
                 return buffer;
+            } finally {
+                if (!ok) ChunkBufferPool.get().release(buffer);
+            }
+        }
+
+        @NotNull
+        private ByteBuffer mapChunk(int index) throws IOException {
+            long start = (long) index * CHUNK_SIZE;
+            synchronized (io) {
+                long length = io.length();
+                if (length < start + CHUNK_SIZE)
+                    throw new IOException(String.format("Couldn't read full chunk, available: %d, needed: %d", length - start, CHUNK_SIZE));
+
+                if (mapping == null || mapping.capacity() < start + CHUNK_SIZE)
+                    mapping = io.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+                ByteBuffer chunk = mapping.duplicate();
+                chunk.position((int) start).limit((int) start + CHUNK_SIZE);
+                return chunk.slice().asReadOnlyBuffer();
+            }
+        }
+
+        private void checkHash(int index, @NotNull ByteBuffer chunk) throws IOException, BadChunkHashException {
+            JournalHeader header = journal.getHeader(streamId, HEADER_HASH);
+            if (header == null) return;
+
+            try {
+                MessageDigest digest = MessageDigest.getInstance("MD5");
+                digest.update(chunk.duplicate());
+                byte[] hash = digest.digest();
+                if (!Arrays.equals(header.value, hash)) {
+                    journal.setChunk(streamId, index, false);
+                    throw new BadChunkHashException(streamId, header.value, hash);
+                }
+            } catch (NoSuchAlgorithmException ex) {
+                LOGGER.error("Failed initializing MD5 digest.", ex);
             }
         }
 
         public void writeChunk(byte[] buffer, int index) throws IOException {
+            long length;
             synchronized (io) {
                 io.seek((long) index * CHUNK_SIZE);
                 io.write(buffer);
+                length = io.length();
             }
 
+            touch(streamId, length);
+
             try {
                 journal.setChunk(streamId, index, true);
 
@@ -286,9 +537,26 @@ public class CacheManager implements Closeable {
 
         @Override
         public void close() throws IOException {
-            fileHandlers.remove(streamId);
+            synchronized (fileHandlers) {
+                if (--refs > 0) return;
+                fileHandlers.remove(streamId);
+            }
+
+            synchronized (io) {
+                io.close();
+                mapping = null;
+            }
+        }
+
+        private void closeNow() throws IOException {
+            synchronized (fileHandlers) {
+                refs = 0;
+                fileHandlers.remove(streamId);
+            }
+
             synchronized (io) {
                 io.close();
+                mapping = null;
             }
         }
     }
@@ -34,6 +34,11 @@ public final class JournalHeader {
         this.value = Utils.hexToBytes(value);
     }
 
+    JournalHeader(int id, byte[] value) {
+        this.id = id;
+        this.value = value;
+    }
+
     @Nullable
     public static JournalHeader find(List<JournalHeader> headers, byte id) {
         for (JournalHeader header : headers)
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Read-only view of the legacy journal that stored fixed size entries in {@code journal.dat}. The data is stored in this order:
+ * - 40 bytes for the ID
+ * - 2048 bytes for chunks
+ * - 8 headers each of 1023 length + 1 byte for the ID
+ * <p>
+ * Headers are encoded to strings in order to take advantage of null terminators.
+ * <p>
+ * This format is only read to migrate existing caches to {@link LogCacheJournal}.
+ *
+ * @author Gianlu
+ */
+class LegacyCacheJournal implements Closeable {
+    static final String FILE_NAME = "journal.dat";
+    static final int MAX_CHUNKS_SIZE = 2048;
+    static final int MAX_HEADER_LENGTH = 1023;
+    static final int MAX_ID_LENGTH = 40;
+    static final int MAX_HEADERS = 8;
+    static final int JOURNAL_ENTRY_SIZE = MAX_ID_LENGTH + MAX_CHUNKS_SIZE + (1 + MAX_HEADER_LENGTH) * MAX_HEADERS;
+    private static final Logger LOGGER = LoggerFactory.getLogger(LegacyCacheJournal.class);
+    private final RandomAccessFile io;
+    private final Map<String, Long> entries = new LinkedHashMap<>(1024);
+
+    LegacyCacheJournal(@NotNull File parent) throws IOException {
+        io = new RandomAccessFile(new File(parent, FILE_NAME), "r");
+
+        try {
+            buildIndex();
+        } catch (IOException ex) {
+            io.close();
+            throw ex;
+        }
+    }
+
+    @NotNull
+    private static String trimArrayToNullTerminator(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++)
+            if (bytes[i] == 0)
+                return new String(bytes, 0, i, StandardCharsets.US_ASCII);
+
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private void buildIndex() throws IOException {
+        byte[] id = new byte[MAX_ID_LENGTH];
+        long count = io.length() / JOURNAL_ENTRY_SIZE;
+        for (long i = 0; i < count; i++) {
+            long offset = i * JOURNAL_ENTRY_SIZE;
+            io.seek(offset);
+            io.readFully(id);
+            if (id[0] == 0) // Empty spot
+                continue;
+
+            String idStr = trimArrayToNullTerminator(id);
+            if (entries.containsKey(idStr)) {
+                LOGGER.warn("Found duplicated journal entry, discarding it: {}", idStr);
+                continue;
+            }
+
+            entries.put(idStr, offset);
+        }
+    }
+
+    private long find(@NotNull String id) throws IOException {
+        Long offset = entries.get(id);
+        if (offset == null) throw new CacheJournal.JournalException("Couldn't find entry on journal: " + id);
+        return offset;
+    }
+
+    /**
+     * @return The IDs of all the entries, in the order they appear in the file
+     */
+    @NotNull
+    List<String> getEntries() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * @return The chunks bitmap of the given entry
+     */
+    @NotNull
+    BitSet getChunks(@NotNull String id) throws IOException {
+        byte[] bitmap = new byte[MAX_CHUNKS_SIZE];
+        io.seek(find(id) + MAX_ID_LENGTH);
+        io.readFully(bitmap);
+        return BitSet.valueOf(bitmap);
+    }
+
+    @NotNull
+    List<JournalHeader> getHeaders(@NotNull String id) throws IOException {
+        io.seek(find(id) + MAX_ID_LENGTH + MAX_CHUNKS_SIZE);
+
+        List<JournalHeader> list = new ArrayList<>(MAX_HEADERS);
+        byte[] value = new byte[MAX_HEADER_LENGTH];
+        for (int i = 0; i < MAX_HEADERS; i++) {
+            int headerId = io.read();
+            io.readFully(value);
+            if (headerId <= 0) continue;
+
+            list.add(new JournalHeader((byte) headerId, trimArrayToNullTerminator(value)));
+        }
+
+        return list;
+    }
+
+    @Override
+    public void close() throws IOException {
+        io.close();
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A compact journal implementation backed by an append-only log. The file starts with 4 bytes of magic and 1 byte
+ * for the version, followed by records stored in this order:
+ * - 4 bytes for the payload length
+ * - 4 bytes for the CRC32 of the payload
+ * - the payload: 1 byte for the type, 1 byte for the ID length, the ID and the type specific data
+ * <p>
+ * Snapshot records hold the chunks bitmap sized to the highest available chunk and the headers as length-prefixed
+ * binary values. The whole journal is kept in memory, the log is replayed when opening and compacted into one snapshot
+ * record per entry when it grows too much.
+ *
+ * @author Gianlu
+ */
+class LogCacheJournal implements CacheJournal {
+    static final String FILE_NAME = "journal.log";
+    static final int MAGIC = 0x4C534A4C;
+    static final byte VERSION = 2;
+    static final int MAX_HEADER_LENGTH = 1023;
+    private static final int FILE_HEADER_SIZE = 5;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final int PENDING_BUFFER_SIZE = 64 * 1024;
+    static final long COMPACTION_MIN_SIZE = 1024 * 1024;
+    private static final long MAINTENANCE_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    private static final byte TYPE_CREATE = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final byte TYPE_SET_CHUNK = 3;
+    private static final byte TYPE_CLEAR_CHUNK = 4;
+    private static final byte TYPE_HEADER = 5;
+    private static final byte TYPE_SNAPSHOT = 6;
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogCacheJournal.class);
+    private final File file;
+    private final CacheManager.SyncPolicy syncPolicy;
+    private final ScheduledExecutorService maintenance;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>(1024);
+    private final Object lock = new Object();
+    private final ByteBuffer pending = ByteBuffer.allocate(PENDING_BUFFER_SIZE);
+    private final ByteBuffer record = ByteBuffer.allocate(2 + 255 + 3 + MAX_HEADER_LENGTH);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private long logSize;
+    private long compactedSize;
+    private boolean dirty = false;
+    private volatile boolean closed = false;
+
+    LogCacheJournal(@NotNull File parent, @NotNull CacheManager.SyncPolicy syncPolicy) throws IOException {
+        this.file = new File(parent, FILE_NAME);
+        this.syncPolicy = syncPolicy;
+
+        File tmp = new File(parent, FILE_NAME + ".tmp");
+        if (tmp.exists() && !tmp.delete())
+            LOGGER.warn("Failed deleting leftover journal: " + tmp.getAbsolutePath());
+
+        if (!file.exists() || file.length() < FILE_HEADER_SIZE) writeSnapshot(file, Collections.emptyList());
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try {
+            replay();
+
+            compactedSize = FILE_HEADER_SIZE;
+            for (Entry entry : entries.values())
+                compactedSize += RECORD_HEADER_SIZE + entry.snapshotSize();
+
+            if (needsCompaction()) compact();
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        maintenance = Executors.newSingleThreadScheduledExecutor(CacheJournal::newMaintenanceThread);
+        maintenance.scheduleWithFixedDelay(this::maintenance, MAINTENANCE_INTERVAL, MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Converts the legacy journal into a compacted log. Does not delete the legacy journal.
+     */
+    static void migrate(@NotNull LegacyCacheJournal old, @NotNull File parent) throws IOException {
+        List<Entry> list = new ArrayList<>();
+        for (String id : old.getEntries()) {
+            Entry entry = new Entry(id);
+            entry.chunks.or(old.getChunks(id));
+            for (JournalHeader header : old.getHeaders(id))
+                entry.headers.put(header.id & 0xFF, header.value);
+
+            list.add(entry);
+        }
+
+        File tmp = new File(parent, FILE_NAME + ".tmp");
+        writeSnapshot(tmp, list);
+        Files.move(tmp.toPath(), new File(parent, FILE_NAME).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        LOGGER.info("Migrated {} entries from the legacy cache journal.", list.size());
+    }
+
+    /**
+     * Writes a file containing only snapshot records for the given entries and syncs it to disk.
+     *
+     * @return The size of the file
+     */
+    private static long writeSnapshot(@NotNull File file, @NotNull Collection<Entry> entries) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileOutputStream fos = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, PENDING_BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+
+            for (Entry entry : entries) {
+                byte[] payload = entry.snapshot();
+                crc.reset();
+                crc.update(payload);
+
+                out.writeInt(payload.length);
+                out.writeInt((int) crc.getValue());
+                out.write(payload);
+            }
+
+            out.flush();
+            fos.getFD().sync();
+            return out.size();
+        }
+    }
+
+    private void replay() throws IOException {
+        long size = channel.size();
+        long valid = FILE_HEADER_SIZE;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), PENDING_BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC) throw new JournalException("Invalid cache journal: " + file.getAbsolutePath());
+
+            byte version = in.readByte();
+            if (version != VERSION) throw new JournalException("Unsupported cache journal version: " + version);
+
+            CRC32 crc = new CRC32();
+            byte[] payload = new byte[256];
+            while (valid < size) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) break;
+
+                if (payload.length < length) payload = new byte[length];
+                in.readFully(payload, 0, length);
+
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) break;
+
+                apply(ByteBuffer.wrap(payload, 0, length));
+                valid += RECORD_HEADER_SIZE + length;
+            }
+        } catch (EOFException ignored) {
+        } catch (BufferUnderflowException ex) {
+            LOGGER.warn("Found malformed record in cache journal.", ex);
+        }
+
+        if (valid < size) {
+            LOGGER.warn("Cache journal is corrupted after {} bytes, truncating it.", valid);
+            channel.truncate(valid);
+        }
+
+        channel.position(valid);
+        logSize = valid;
+    }
+
+    private void apply(@NotNull ByteBuffer payload) throws JournalException {
+        byte type = payload.get();
+        byte[] idBytes = new byte[payload.get() & 0xFF];
+        payload.get(idBytes);
+        String id = new String(idBytes, StandardCharsets.US_ASCII);
+
+        Entry entry;
+        switch (type) {
+            case TYPE_CREATE:
+                entries.putIfAbsent(id, new Entry(id));
+                break;
+            case TYPE_REMOVE:
+                entries.remove(id);
+                break;
+            case TYPE_SET_CHUNK:
+            case TYPE_CLEAR_CHUNK:
+                entry = entries.get(id);
+                if (entry != null) entry.chunks.set(payload.getInt(), type == TYPE_SET_CHUNK);
+                break;
+            case TYPE_HEADER:
+                entry = entries.get(id);
+                int headerId = payload.get() & 0xFF;
+                byte[] value = new byte[payload.getShort() & 0xFFFF];
+                payload.get(value);
+                if (entry != null) entry.headers.put(headerId, value);
+                break;
+            case TYPE_SNAPSHOT:
+                entry = new Entry(id);
+
+                byte[] bitmap = new byte[payload.getInt()];
+                payload.get(bitmap);
+                entry.chunks.or(BitSet.valueOf(bitmap));
+
+                int count = payload.get() & 0xFF;
+                for (int i = 0; i < count; i++) {
+                    int snapshotHeaderId = payload.get() & 0xFF;
+                    byte[] snapshotValue = new byte[payload.getShort() & 0xFFFF];
+                    payload.get(snapshotValue);
+                    entry.headers.put(snapshotHeaderId, snapshotValue);
+                }
+
+                entries.put(id, entry);
+                break;
+            default:
+                throw new JournalException("Unknown journal record type: " + type);
+        }
+    }
+
+    @NotNull
+    private ByteBuffer startRecord(byte type, @NotNull Entry entry) {
+        record.clear();
+        record.put(type).put((byte) entry.idBytes.length).put(entry.idBytes);
+        return record;
+    }
+
+    private void commitRecord() throws IOException {
+        record.flip();
+        crc.reset();
+        crc.update(record.array(), 0, record.limit());
+
+        int size = RECORD_HEADER_SIZE + record.limit();
+        if (pending.remaining() < size) flushPending();
+
+        pending.putInt(record.limit()).putInt((int) crc.getValue()).put(record);
+        logSize += size;
+
+        if (syncPolicy == CacheManager.SyncPolicy.ALWAYS) {
+            flushPending();
+            channel.force(false);
+        } else {
+            dirty = true;
+        }
+    }
+
+    private void flushPending() throws IOException {
+        pending.flip();
+        while (pending.hasRemaining()) channel.write(pending);
+        pending.clear();
+    }
+
+    private boolean needsCompaction() {
+        return logSize > COMPACTION_MIN_SIZE && logSize > compactedSize * 2;
+    }
+
+    /**
+     * Rewrites the log with one snapshot record per live entry. Must be called while holding {@link #lock}.
+     */
+    private void compact() throws IOException {
+        flushPending();
+
+        long before = logSize;
+        File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        long size = writeSnapshot(tmp, entries.values());
+
+        channel.close();
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+
+        logSize = compactedSize = size;
+        dirty = false;
+
+        LOGGER.debug("Compacted cache journal from {} to {} bytes.", before, size);
+    }
+
+    private void maintenance() {
+        synchronized (lock) {
+            if (closed) return;
+
+            try {
+                if (syncPolicy == CacheManager.SyncPolicy.PERIODIC && dirty) {
+                    flushPending();
+                    channel.force(false);
+                    dirty = false;
+                }
+
+                if (needsCompaction()) compact();
+            } catch (IOException ex) {
+                LOGGER.warn("Failed performing cache journal maintenance.", ex);
+            }
+        }
+    }
+
+    /**
+     * Forces a compaction of the log.
+     */
+    void compactNow() throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            compact();
+        }
+    }
+
+    /**
+     * @return The current size of the log in bytes, including records not yet flushed
+     */
+    long logSize() {
+        synchronized (lock) {
+            return logSize;
+        }
+    }
+
+    private void checkOpen() throws JournalException {
+        if (closed) throw new JournalException("Journal has been closed.");
+    }
+
+    @NotNull
+    private Entry find(@NotNull String id) throws JournalException {
+        checkOpen();
+
+        Entry entry = entries.get(id);
+        if (entry == null) throw new JournalException("Couldn't find entry on journal: " + id);
+        return entry;
+    }
+
+    @Override
+    public boolean hasChunk(@NotNull String streamId, int index) throws IOException {
+        if (index < 0) throw new IllegalArgumentException();
+
+        Entry entry = find(streamId);
+        synchronized (entry) {
+            entry.checkValid();
+            return entry.chunks.get(index);
+        }
+    }
+
+    @Override
+    public void setChunk(@NotNull String streamId, int index, boolean val) throws IOException {
+        if (index < 0) throw new IllegalArgumentException();
+
+        synchronized (lock) {
+            Entry entry = find(streamId);
+            synchronized (entry) {
+                if (entry.chunks.get(index) == val) return;
+                entry.chunks.set(index, val);
+            }
+
+            startRecord(val ? TYPE_SET_CHUNK : TYPE_CLEAR_CHUNK, entry).putInt(index);
+            commitRecord();
+        }
+    }
+
+    @Override
+    @NotNull
+    public List<JournalHeader> getHeaders(@NotNull String streamId) throws IOException {
+        Entry entry = find(streamId);
+        synchronized (entry) {
+            entry.checkValid();
+
+            List<JournalHeader> list = new ArrayList<>(entry.headers.size());
+            for (Map.Entry<Integer, byte[]> header : entry.headers.entrySet())
+                list.add(new JournalHeader((byte) (int) header.getKey(), header.getValue().clone()));
+
+            return list;
+        }
+    }
+
+    @Override
+    @Nullable
+    public JournalHeader getHeader(@NotNull String streamId, int id) throws IOException {
+        Entry entry = find(streamId);
+        synchronized (entry) {
+            entry.checkValid();
+
+            byte[] value = entry.headers.get(id & 0xFF);
+            return value == null ? null : new JournalHeader(id, value.clone());
+        }
+    }
+
+    @Override
+    public void setHeader(@NotNull String streamId, int headerId, byte[] value) throws IOException {
+        if (value.length > MAX_HEADER_LENGTH) throw new IllegalArgumentException();
+        else if ((headerId & 0xFF) == 0) throw new IllegalArgumentException();
+
+        synchronized (lock) {
+            Entry entry = find(streamId);
+            synchronized (entry) {
+                if (Arrays.equals(entry.headers.get(headerId & 0xFF), value)) return;
+                entry.headers.put(headerId & 0xFF, value.clone());
+            }
+
+            startRecord(TYPE_HEADER, entry).put((byte) headerId).putShort((short) value.length).put(value);
+            commitRecord();
+        }
+    }
+
+    @Override
+    public void remove(@NotNull String streamId) throws IOException {
+        synchronized (lock) {
+            checkOpen();
+
+            Entry entry = entries.remove(streamId);
+            if (entry == null) return;
+
+            synchronized (entry) {
+                entry.removed = true;
+            }
+
+            startRecord(TYPE_REMOVE, entry);
+            commitRecord();
+        }
+    }
+
+    @Override
+    @NotNull
+    public List<String> getEntries() throws IOException {
+        checkOpen();
+        return new ArrayList<>(entries.keySet());
+    }
+
+    @Override
+    public void createIfNeeded(@NotNull String id) throws IOException {
+        checkOpen();
+        if (entries.containsKey(id)) return;
+
+        byte[] idBytes = id.getBytes(StandardCharsets.US_ASCII);
+        if (idBytes.length > 255) throw new IllegalArgumentException();
+
+        synchronized (lock) {
+            checkOpen();
+            if (entries.containsKey(id)) return;
+
+            Entry entry = new Entry(id);
+            entries.put(id, entry);
+
+            startRecord(TYPE_CREATE, entry);
+            commitRecord();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+
+            maintenance.shutdown();
+
+            try {
+                flushPending();
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static class Entry {
+        final String id;
+        final byte[] idBytes;
+        final BitSet chunks = new BitSet();
+        final Map<Integer, byte[]> headers = new LinkedHashMap<>(4);
+        boolean removed = false;
+
+        Entry(@NotNull String id) {
+            this.id = id;
+            this.idBytes = id.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        void checkValid() throws JournalException {
+            if (removed) throw new JournalException("Entry has been removed from journal: " + id);
+        }
+
+        int snapshotSize() {
+            int size = 2 + idBytes.length + 4 + (chunks.length() + 7) / 8 + 1;
+            for (byte[] value : headers.values()) size += 3 + value.length;
+            return size;
+        }
+
+        byte[] snapshot() {
+            byte[] bitmap = chunks.toByteArray();
+
+            ByteBuffer buffer = ByteBuffer.allocate(snapshotSize());
+            buffer.put(TYPE_SNAPSHOT).put((byte) idBytes.length).put(idBytes);
+            buffer.putInt(bitmap.length).put(bitmap);
+            buffer.put((byte) headers.size());
+            for (Map.Entry<Integer, byte[]> header : headers.entrySet()) {
+                buffer.put((byte) (int) header.getKey());
+                buffer.putShort((short) header.getValue().length);
+                buffer.put(header.getValue());
+            }
+
+            return buffer.array();
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.cache;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xyz.gianlu.librespot.core.Session;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches metadata protobufs keyed by their type and the hex ID of the entity. Parsed messages are kept in a bounded
+ * in-memory tier, and the serialized bytes can optionally be persisted in the {@code metadata} directory of the cache.
+ * Entries older than the configured TTL are revalidated with their ETag instead of being downloaded again.
+ * <p>
+ * The disk tier holds at most {@link #DISK_ENTRIES_MULTIPLIER} times the entries of the memory tier, the least
+ * recently stored or revalidated ones are deleted first. Entries that haven't been revalidated for
+ * {@link #DISK_TTL_MULTIPLIER} times the TTL are deleted regardless.
+ * <p>
+ * Metadata depends on the market of the user, so instances are per user. Sessions of the same user with the same
+ * cache directory, size and TTL share one instance, sessions with a different configuration get their own. Shared
+ * instances are reference counted and dropped once every session has {@link #release() released} them.
+ *
+ * @author devgianlu
+ */
+public final class MetadataCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataCache.class);
+    private static final Map<String, MetadataCache> INSTANCES = new HashMap<>(); // Guarded by itself
+    private static final int VERSION = 1;
+    static final int DISK_ENTRIES_MULTIPLIER = 8;
+    static final int DISK_TTL_MULTIPLIER = 7;
+    private final String instanceKey;
+    private final Map<String, Entry> memory;
+    private final File dir;
+    private final int maxEntries;
+    private final long ttlMs;
+    private final AtomicInteger writesUntilTrim = new AtomicInteger(1);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private int refs = 0; // Guarded by INSTANCES
+
+    MetadataCache(@Nullable File dir, int maxEntries, long ttlMs) {
+        this(null, dir, maxEntries, ttlMs);
+    }
+
+    private MetadataCache(@Nullable String instanceKey, @Nullable File dir, int maxEntries, long ttlMs) {
+        this.instanceKey = instanceKey;
+        this.dir = dir;
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= maxEntries) return false;
+                evictions.increment();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Every call must be matched by a call to {@link #release()}.
+     *
+     * @return The cache shared by the sessions of the given user that have the same cache configuration
+     */
+    @NotNull
+    public static MetadataCache forUser(@NotNull Session.Configuration conf, @NotNull String username) {
+        File dir = conf.cacheEnabled && conf.cacheMetadata ? new File(new File(conf.cacheDir, "metadata"), username) : null;
+        String key = username + ":" + (dir == null ? "" : dir.getAbsolutePath()) + ":" + conf.cacheMetadataEntries + ":" + conf.cacheMetadataTtl;
+
+        synchronized (INSTANCES) {
+            MetadataCache cache = INSTANCES.get(key);
+            if (cache == null) {
+                cache = new MetadataCache(key, dir, conf.cacheMetadataEntries, TimeUnit.SECONDS.toMillis(conf.cacheMetadataTtl));
+                INSTANCES.put(key, cache);
+            }
+
+            cache.refs++;
+            return cache;
+        }
+    }
+
+    /**
+     * Releases an instance obtained with {@link #forUser(Session.Configuration, String)}. The in-memory entries are
+     * dropped once no session uses the instance anymore, entries on disk are kept.
+     */
+    public void release() {
+        if (instanceKey == null) return;
+
+        synchronized (INSTANCES) {
+            if (--refs > 0) return;
+            INSTANCES.remove(instanceKey, this);
+        }
+
+        synchronized (memory) {
+            memory.clear();
+        }
+    }
+
+    @NotNull
+    private static String key(@NotNull String type, @NotNull String hexId) {
+        return type + "/" + hexId;
+    }
+
+    /**
+     * Looks up an entry in memory first and then on disk. Entries from disk are parsed and promoted to memory.
+     *
+     * @return The cached entry, possibly stale, or {@code null} if there is none
+     */
+    @Nullable
+    public <M extends Message> Entry get(@NotNull String type, @NotNull String hexId, @NotNull Parser<M> parser) {
+        String key = key(type, hexId);
+        Entry entry;
+        synchronized (memory) {
+            entry = memory.get(key);
+        }
+
+        if (entry == null && dir != null) {
+            entry = readFromDisk(type, hexId, parser);
+            if (entry != null) {
+                diskHits.increment();
+                synchronized (memory) {
+                    memory.put(key, entry);
+                }
+            }
+        }
+
+        if (entry != null && !entry.isStale()) hits.increment();
+        return entry;
+    }
+
+    /**
+     * Stores a freshly downloaded message.
+     *
+     * @param etag  The {@code ETag} returned by the server, if any
+     * @param bytes The serialized message as received
+     */
+    @NotNull
+    public Entry put(@NotNull String type, @NotNull String hexId, @NotNull Message message, @Nullable String etag, byte[] bytes) {
+        misses.increment();
+
+        Entry entry = new Entry(message, etag, System.currentTimeMillis());
+        synchronized (memory) {
+            memory.put(key(type, hexId), entry);
+        }
+
+        if (dir != null) writeToDisk(type, hexId, entry, bytes);
+        return entry;
+    }
+
+    /**
+     * Marks a stale entry as fresh again after the server confirmed that it didn't change.
+     */
+    @NotNull
+    public Entry revalidated(@NotNull String type, @NotNull String hexId, @NotNull Entry old) {
+        revalidations.increment();
+
+        Entry entry = new Entry(old.message, old.etag, System.currentTimeMillis());
+        synchronized (memory) {
+            memory.put(key(type, hexId), entry);
+        }
+
+        if (dir != null) {
+            File file = file(type, hexId);
+            if (!file.setLastModified(entry.timestamp))
+                LOGGER.trace("Failed updating timestamp of {}", file);
+        }
+
+        return entry;
+    }
+
+    public void remove(@NotNull String type, @NotNull String hexId) {
+        synchronized (memory) {
+            memory.remove(key(type, hexId));
+        }
+
+        if (dir != null) {
+            File file = file(type, hexId);
+            if (file.exists() && !file.delete())
+                LOGGER.warn("Failed deleting cached metadata: {}", file);
+        }
+    }
+
+    @NotNull
+    public Stats stats() {
+        int size;
+        synchronized (memory) {
+            size = memory.size();
+        }
+
+        return new Stats(size, hits.sum(), diskHits.sum(), misses.sum(), revalidations.sum(), evictions.sum());
+    }
+
+    @NotNull
+    private File file(@NotNull String type, @NotNull String hexId) {
+        return new File(new File(dir, type), hexId);
+    }
+
+    @Nullable
+    private <M extends Message> Entry readFromDisk(@NotNull String type, @NotNull String hexId, @NotNull Parser<M> parser) {
+        File file = file(type, hexId);
+        if (!file.exists()) return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readByte() != VERSION) throw new IOException("Unknown version!");
+
+            String etag = in.readUTF();
+            M message = parser.parseFrom(in);
+            return new Entry(message, etag.isEmpty() ? null : etag, file.lastModified());
+        } catch (IOException ex) {
+            LOGGER.warn("Failed reading cached metadata, deleting it: {}", file, ex);
+            if (!file.delete()) LOGGER.warn("Failed deleting cached metadata: {}", file);
+            return null;
+        }
+    }
+
+    private void writeToDisk(@NotNull String type, @NotNull String hexId, @NotNull Entry entry, byte[] bytes) {
+        File file = file(type, hexId);
+        File parent = file.getParentFile();
+
+        try {
+            if (!parent.exists() && !parent.mkdirs())
+                throw new IOException("Failed creating directory: " + parent);
+
+            File tmp = File.createTempFile(hexId, ".tmp", parent);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeByte(VERSION);
+                out.writeUTF(entry.etag == null ? "" : entry.etag);
+                out.write(bytes);
+            }
+
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (!file.setLastModified(entry.timestamp))
+                LOGGER.trace("Failed updating timestamp of {}", file);
+        } catch (IOException ex) {
+            LOGGER.warn("Failed storing metadata: {}", file, ex);
+        }
+
+        if (writesUntilTrim.decrementAndGet() <= 0) {
+            writesUntilTrim.set(Math.max(1, maxEntries));
+            trimDisk();
+        }
+    }
+
+    /**
+     * Deletes the entries on disk that are too old and then the least recently stored ones until the disk tier is
+     * within its size. Runs on the first write and then every {@code maxEntries} writes.
+     */
+    synchronized void trimDisk() {
+        File[] types = dir.listFiles(File::isDirectory);
+        if (types == null) return;
+
+        long expiredBefore = System.currentTimeMillis() - ttlMs * DISK_TTL_MULTIPLIER;
+        List<File> files = new ArrayList<>();
+        for (File type : types) {
+            // Temporary files are left alone unless they are leftovers of an interrupted write
+            File[] list = type.listFiles(file -> file.isFile() && (!file.getName().endsWith(".tmp") || file.lastModified() < expiredBefore));
+            if (list != null) Collections.addAll(files, list);
+        }
+
+        long maxDiskEntries = (long) maxEntries * DISK_ENTRIES_MULTIPLIER;
+        if (files.size() <= maxDiskEntries) {
+            boolean expired = false;
+            for (File file : files) {
+                if (file.lastModified() < expiredBefore) {
+                    expired = true;
+                    break;
+                }
+            }
+
+            if (!expired) return;
+        }
+
+        Map<File, Long> lastModified = new HashMap<>(files.size());
+        for (File file : files) lastModified.put(file, file.lastModified());
+        files.sort(Comparator.comparingLong(lastModified::get));
+
+        int deleted = 0;
+        for (File file : files) {
+            if (files.size() - deleted <= maxDiskEntries && lastModified.get(file) >= expiredBefore)
+                break;
+
+            if (file.delete()) deleted++;
+            else LOGGER.warn("Failed deleting cached metadata: {}", file);
+        }
+
+        if (deleted > 0) LOGGER.debug("Deleted {} metadata entries from disk.", deleted);
+    }
+
+    public final class Entry {
+        public final Message message;
+        public final String etag;
+        public final long timestamp;
+
+        private Entry(@NotNull Message message, @Nullable String etag, long timestamp) {
+            this.message = message;
+            this.etag = etag;
+            this.timestamp = timestamp;
+        }
+
+        public boolean isStale() {
+            return System.currentTimeMillis() - timestamp > ttlMs;
+        }
+    }
+
+    public static final class Stats {
+        public final int size;
+        public final long hits;
+        public final long diskHits;
+        public final long misses;
+        public final long revalidations;
+        public final long evictions;
+
+        private Stats(int size, long hits, long diskHits, long misses, long revalidations, long evictions) {
+            this.size = size;
+            this.hits = hits;
+            this.diskHits = diskHits;
+            this.misses = misses;
+            this.revalidations = revalidations;
+            this.evictions = evictions;
+        }
+
+        /**
+         * @return The fraction of lookups served without downloading the message again
+         */
+        public double hitRatio() {
+            long total = hits + misses + revalidations;
+            return total == 0 ? 0 : (hits + revalidations) / (double) total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Stats{size: %d, hits: %d, diskHits: %d, misses: %d, revalidations: %d, evictions: %d, hitRatio: %.3f}",
+                    size, hits, diskHits, misses, revalidations, evictions, hitRatio());
+        }
+    }
+}
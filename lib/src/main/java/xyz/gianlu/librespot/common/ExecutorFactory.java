@@ -0,0 +1,109 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.common;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+/**
+ * Creates the executors used for blocking I/O. By default these are cached pools of platform threads, on Java 21+
+ * they can be switched to one virtual thread per task with {@link #useVirtualThreads(boolean)} or the
+ * {@code librespot.virtualThreads} system property. The mode must be selected before creating any session.
+ *
+ * @author devgianlu
+ */
+public final class ExecutorFactory {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExecutorFactory.class);
+    private static volatile ThreadFactory virtualFactory = null;
+
+    static {
+        if (Boolean.getBoolean("librespot.virtualThreads"))
+            useVirtualThreads(true);
+    }
+
+    private ExecutorFactory() {
+    }
+
+    /**
+     * Enables or disables virtual threads for the executors created from now on.
+     *
+     * @return Whether virtual threads are in use, always {@code false} before Java 21
+     */
+    public static synchronized boolean useVirtualThreads(boolean enabled) {
+        if (!enabled) {
+            virtualFactory = null;
+            return false;
+        }
+
+        if (virtualFactory == null) {
+            virtualFactory = createVirtualFactory();
+            if (virtualFactory == null) LOGGER.warn("Virtual threads are not available, using platform threads.");
+            else LOGGER.info("Using virtual threads for blocking I/O.");
+        }
+
+        return virtualFactory != null;
+    }
+
+    public static boolean virtualThreads() {
+        return virtualFactory != null;
+    }
+
+    @Nullable
+    private static ThreadFactory createVirtualFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.trace("Virtual threads not supported.", ex);
+            return null;
+        }
+    }
+
+    /**
+     * @param nameProvider The name of the thread running the given task
+     * @return A cached thread pool or, if enabled, an executor that starts a virtual thread for every task
+     */
+    @NotNull
+    public static ExecutorService newCachedThreadPool(@NotNull Function<Runnable, String> nameProvider) {
+        ThreadFactory virtual = virtualFactory;
+        if (virtual == null)
+            return Executors.newCachedThreadPool(new NameThreadFactory(nameProvider));
+
+        ThreadFactory named = r -> {
+            Thread thread = virtual.newThread(r);
+            thread.setName(nameProvider.apply(r));
+            return thread;
+        };
+
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, named);
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.warn("Failed creating virtual thread executor, using platform threads.", ex);
+            return Executors.newCachedThreadPool(new NameThreadFactory(nameProvider));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.common;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent identical calls: while a call for a key is in flight, other callers with the same key get
+ * its result instead of starting their own. The key is forgotten as soon as the call completes, so nothing is cached.
+ *
+ * @author devgianlu
+ */
+public final class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+
+    /**
+     * @param key  The key identifying the call
+     * @param call Starts the call, invoked only if there's no call in flight for {@param key}. It may also complete
+     *             the call synchronously on the current thread.
+     * @return A future completing with the result of the shared call. Cancelling it doesn't affect other callers.
+     */
+    @NotNull
+    public CompletableFuture<V> execute(@NotNull K key, @NotNull Supplier<CompletableFuture<V>> call) {
+        calls.increment();
+
+        CompletableFuture<V> shared = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, shared);
+        if (existing != null) {
+            deduplicated.increment();
+            return existing.thenApply(v -> v);
+        }
+
+        shared.whenComplete((v, ex) -> inFlight.remove(key, shared));
+
+        try {
+            call.get().whenComplete((v, ex) -> {
+                if (ex == null) shared.complete(v);
+                else shared.completeExceptionally(ex);
+            });
+        } catch (RuntimeException ex) {
+            shared.completeExceptionally(ex);
+        }
+
+        return shared.thenApply(v -> v);
+    }
+
+    /**
+     * @return The number of calls that have been executed, including the deduplicated ones
+     */
+    public long calls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return The number of calls that joined a call already in flight
+     */
+    public long deduplicated() {
+        return deduplicated.sum();
+    }
+
+    /**
+     * @return The number of calls currently in flight
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SingleFlight{calls: %d, deduplicated: %d, inFlight: %d}", calls(), deduplicated(), inFlight());
+    }
+}
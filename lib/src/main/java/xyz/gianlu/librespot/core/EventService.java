@@ -21,7 +21,6 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xyz.gianlu.librespot.common.AsyncWorker;
-import xyz.gianlu.librespot.mercury.MercuryClient;
 import xyz.gianlu.librespot.mercury.RawMercuryRequest;
 
 import java.io.ByteArrayOutputStream;
@@ -39,19 +38,16 @@ public final class EventService implements Closeable {
 
     EventService(@NotNull Session session) {
         this.asyncWorker = new AsyncWorker<>("event-service-sender", eventBuilder -> {
-            try {
-                byte[] body = eventBuilder.toArray();
-                MercuryClient.Response resp = session.mercury().sendSync(RawMercuryRequest.newBuilder()
-                        .setUri("hm://event-service/v1/events").setMethod("POST")
-                        .addUserField("Accept-Language", "en")
-                        .addUserField("X-ClientTimeStamp", String.valueOf(TimeProvider.currentTimeMillis()))
-                        .addPayloadPart(body)
-                        .build());
-
-                LOGGER.debug("Event sent. {body: {}, result: {}}", EventBuilder.toString(body), resp.statusCode);
-            } catch (IOException ex) {
-                LOGGER.error("Failed sending event: " + eventBuilder, ex);
-            }
+            byte[] body = eventBuilder.toArray();
+            session.mercury().sendAsync(RawMercuryRequest.newBuilder()
+                    .setUri("hm://event-service/v1/events").setMethod("POST")
+                    .addUserField("Accept-Language", "en")
+                    .addUserField("X-ClientTimeStamp", String.valueOf(TimeProvider.currentTimeMillis()))
+                    .addPayloadPart(body)
+                    .build()).whenComplete((resp, ex) -> {
+                if (ex == null) LOGGER.debug("Event sent. {body: {}, result: {}}", EventBuilder.toString(body), resp.statusCode);
+                else LOGGER.error("Failed sending event: " + eventBuilder, ex);
+            });
         });
     }
 
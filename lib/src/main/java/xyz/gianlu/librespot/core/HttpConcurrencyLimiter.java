@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.core;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the number of concurrent calls of a client, in total and per host. The {@link okhttp3.Dispatcher} limits
+ * only apply to {@link okhttp3.Call#enqueue(okhttp3.Callback)}, this also covers {@link okhttp3.Call#execute()}.
+ * <p>
+ * A call holds its permit until the response body is closed, or until it fails.
+ *
+ * @author devgianlu
+ */
+final class HttpConcurrencyLimiter implements Interceptor {
+    private final Semaphore total;
+    private final int maxPerHost;
+    private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+    HttpConcurrencyLimiter(int maxRequests, int maxRequestsPerHost) {
+        this.total = new Semaphore(Math.max(1, maxRequests), true);
+        this.maxPerHost = Math.max(1, maxRequestsPerHost);
+    }
+
+    @NotNull
+    @Override
+    public Response intercept(@NotNull Chain chain) throws IOException {
+        if ("websocket".equalsIgnoreCase(chain.request().header("Upgrade")))
+            return chain.proceed(chain.request()); // Long-lived, would hold its permit forever
+
+        Permit permit = acquire(chain.request().url().host());
+
+        Response response;
+        try {
+            response = chain.proceed(chain.request());
+        } catch (IOException | RuntimeException ex) {
+            permit.release();
+            throw ex;
+        }
+
+        ResponseBody body = response.body();
+        if (body == null) {
+            permit.release();
+            return response;
+        }
+
+        return response.newBuilder().body(new ReleasingBody(body, permit)).build();
+    }
+
+    @NotNull
+    private Permit acquire(@NotNull String host) throws InterruptedIOException {
+        Semaphore perHost = hosts.computeIfAbsent(host, h -> new Semaphore(maxPerHost, true));
+        try {
+            perHost.acquire();
+            try {
+                total.acquire();
+            } catch (InterruptedException ex) {
+                perHost.release();
+                throw ex;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request slot for " + host);
+        }
+
+        return new Permit(perHost);
+    }
+
+    private final class Permit {
+        private final Semaphore perHost;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        Permit(@NotNull Semaphore perHost) {
+            this.perHost = perHost;
+        }
+
+        void release() {
+            if (!released.compareAndSet(false, true)) return;
+
+            total.release();
+            perHost.release();
+        }
+    }
+
+    private static final class ReleasingBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final BufferedSource source;
+
+        ReleasingBody(@NotNull ResponseBody delegate, @NotNull Permit permit) {
+            this.delegate = delegate;
+            this.source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        permit.release();
+                    }
+                }
+            });
+        }
+
+        @Nullable
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @NotNull
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+    }
+}
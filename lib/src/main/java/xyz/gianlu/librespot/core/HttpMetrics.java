@@ -0,0 +1,225 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.core;
+
+import okhttp3.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records where the time of every HTTP call goes, aggregated per host: DNS lookup, TCP connect, TLS handshake and
+ * time to first byte, as well as how often a pooled connection could be reused.
+ *
+ * @author devgianlu
+ */
+public final class HttpMetrics implements EventListener.Factory {
+    private final Map<String, HostMetrics> hosts = new ConcurrentHashMap<>();
+
+    @NotNull
+    @Override
+    public EventListener create(@NotNull Call call) {
+        return new CallListener(hosts.computeIfAbsent(call.request().url().host(), h -> new HostMetrics()));
+    }
+
+    /**
+     * @return The metrics of every host contacted so far, sorted by host name
+     */
+    @NotNull
+    public Map<String, HostStats> stats() {
+        Map<String, HostStats> stats = new TreeMap<>();
+        for (Map.Entry<String, HostMetrics> entry : hosts.entrySet())
+            stats.put(entry.getKey(), entry.getValue().snapshot());
+
+        return stats;
+    }
+
+    public static final class HostStats {
+        public final long calls;
+        public final long failures;
+        public final long newConnections;
+        public final long reusedConnections;
+        private final Timing dns;
+        private final Timing connect;
+        private final Timing tls;
+        private final Timing ttfb;
+
+        private HostStats(long calls, long failures, long newConnections, long reusedConnections, @NotNull Timing dns, @NotNull Timing connect, @NotNull Timing tls, @NotNull Timing ttfb) {
+            this.calls = calls;
+            this.failures = failures;
+            this.newConnections = newConnections;
+            this.reusedConnections = reusedConnections;
+            this.dns = dns;
+            this.connect = connect;
+            this.tls = tls;
+            this.ttfb = ttfb;
+        }
+
+        public double averageDnsMs() {
+            return dns.averageMs();
+        }
+
+        public double averageConnectMs() {
+            return connect.averageMs();
+        }
+
+        public double averageTlsMs() {
+            return tls.averageMs();
+        }
+
+        /**
+         * @return The average time between the start of the call and the response headers, in milliseconds
+         */
+        public double averageTtfbMs() {
+            return ttfb.averageMs();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("HostStats{calls: %d, failures: %d, newConnections: %d, reusedConnections: %d, dns: %.1fms, connect: %.1fms, tls: %.1fms, ttfb: %.1fms}",
+                    calls, failures, newConnections, reusedConnections, averageDnsMs(), averageConnectMs(), averageTlsMs(), averageTtfbMs());
+        }
+    }
+
+    private static final class Timing {
+        final long count;
+        final long totalNs;
+
+        Timing(@NotNull LongAdder count, @NotNull LongAdder totalNs) {
+            this.count = count.sum();
+            this.totalNs = totalNs.sum();
+        }
+
+        double averageMs() {
+            return count == 0 ? 0 : totalNs / (double) count / 1_000_000;
+        }
+    }
+
+    private static final class HostMetrics {
+        final LongAdder calls = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder newConnections = new LongAdder();
+        final LongAdder reusedConnections = new LongAdder();
+        final LongAdder dnsCount = new LongAdder();
+        final LongAdder dnsNs = new LongAdder();
+        final LongAdder connectCount = new LongAdder();
+        final LongAdder connectNs = new LongAdder();
+        final LongAdder tlsCount = new LongAdder();
+        final LongAdder tlsNs = new LongAdder();
+        final LongAdder ttfbCount = new LongAdder();
+        final LongAdder ttfbNs = new LongAdder();
+
+        @NotNull
+        HostStats snapshot() {
+            return new HostStats(calls.sum(), failures.sum(), newConnections.sum(), reusedConnections.sum(),
+                    new Timing(dnsCount, dnsNs), new Timing(connectCount, connectNs), new Timing(tlsCount, tlsNs), new Timing(ttfbCount, ttfbNs));
+        }
+    }
+
+    private static final class CallListener extends EventListener {
+        private final HostMetrics metrics;
+        private long callStart;
+        private long dnsStart;
+        private long connectStart;
+        private long tlsStart;
+        private boolean connected = false;
+        private boolean tcpRecorded = false;
+        private boolean firstByte = false;
+
+        CallListener(@NotNull HostMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void callStart(@NotNull Call call) {
+            callStart = System.nanoTime();
+            metrics.calls.increment();
+        }
+
+        @Override
+        public void dnsStart(@NotNull Call call, @NotNull String domainName) {
+            dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(@NotNull Call call, @NotNull String domainName, @NotNull List<InetAddress> inetAddressList) {
+            metrics.dnsCount.increment();
+            metrics.dnsNs.add(System.nanoTime() - dnsStart);
+        }
+
+        @Override
+        public void connectStart(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy) {
+            connectStart = System.nanoTime();
+            tcpRecorded = false;
+        }
+
+        @Override
+        public void secureConnectStart(@NotNull Call call) {
+            tlsStart = System.nanoTime();
+            recordTcp(tlsStart);
+        }
+
+        @Override
+        public void secureConnectEnd(@NotNull Call call, @Nullable Handshake handshake) {
+            metrics.tlsCount.increment();
+            metrics.tlsNs.add(System.nanoTime() - tlsStart);
+        }
+
+        @Override
+        public void connectEnd(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy, @Nullable Protocol protocol) {
+            connected = true;
+            recordTcp(System.nanoTime());
+        }
+
+        private void recordTcp(long end) {
+            if (tcpRecorded) return;
+
+            tcpRecorded = true;
+            metrics.connectCount.increment();
+            metrics.connectNs.add(end - connectStart);
+        }
+
+        @Override
+        public void connectionAcquired(@NotNull Call call, @NotNull Connection connection) {
+            if (connected) metrics.newConnections.increment();
+            else metrics.reusedConnections.increment();
+        }
+
+        @Override
+        public void responseHeadersStart(@NotNull Call call) {
+            if (firstByte) return;
+
+            firstByte = true;
+            metrics.ttfbCount.increment();
+            metrics.ttfbNs.add(System.nanoTime() - callStart);
+        }
+
+        @Override
+        public void callFailed(@NotNull Call call, @NotNull IOException ioe) {
+            metrics.failures.increment();
+        }
+    }
+}
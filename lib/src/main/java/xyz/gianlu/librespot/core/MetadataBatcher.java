@@ -0,0 +1,306 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.core;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+import com.spotify.extendedmetadata.EntityExtensionDataOuterClass.EntityExtensionData;
+import com.spotify.extendedmetadata.ExtendedMetadata;
+import com.spotify.extendedmetadata.ExtensionKindOuterClass.ExtensionKind;
+import com.spotify.metadata.Metadata;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xyz.gianlu.librespot.cache.MetadataCache;
+import xyz.gianlu.librespot.common.ExecutorFactory;
+import xyz.gianlu.librespot.common.NameThreadFactory;
+import xyz.gianlu.librespot.dealer.ApiClient;
+import xyz.gianlu.librespot.mercury.MercuryClient;
+import xyz.gianlu.librespot.metadata.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Collects metadata requests over a short window, or until {@link #MAX_BATCH_SIZE} entities are pending, and resolves
+ * them with a single extended metadata request. Results are stored in the {@link MetadataCache}. Entities missing
+ * from the batched response are fetched individually.
+ * <p>
+ * The scheduler thread only collects the batches, requests and completions run on a separate pool. Callers asking for
+ * the same entity share one request but get their own future, cancelling it doesn't affect the others.
+ *
+ * @author devgianlu
+ */
+public final class MetadataBatcher implements Closeable {
+    static final int MAX_BATCH_SIZE = 500;
+    static final long BATCH_WINDOW_MS = 20;
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetadataBatcher.class);
+    private final BatchFetcher batchFetcher;
+    private final MetadataCache cache;
+    private final Fallback fallback;
+    private final long windowMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NameThreadFactory((r) -> "metadata-batcher-" + r.hashCode()));
+    private final ExecutorService executor = ExecutorFactory.newCachedThreadPool((r) -> "metadata-fetch-" + r.hashCode());
+    private final Map<String, Request<?>> requests = new HashMap<>();
+    private final List<Request<?>> queue = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private boolean closed = false;
+
+    MetadataBatcher(@NotNull Session session, @NotNull MetadataCache cache) {
+        this(request -> session.api().getExtendedMetadata(request.toBuilder().setHeader(requestHeader(session)).build()),
+                cache, (kind, hexId) -> kind.fetcher.fetch(session.api(), hexId), BATCH_WINDOW_MS);
+    }
+
+    MetadataBatcher(@NotNull BatchFetcher batchFetcher, @NotNull MetadataCache cache, @NotNull Fallback fallback, long windowMs) {
+        this.batchFetcher = batchFetcher;
+        this.cache = cache;
+        this.fallback = fallback;
+        this.windowMs = windowMs;
+    }
+
+    @NotNull
+    private static ExtendedMetadata.BatchedEntityRequestHeader requestHeader(@NotNull Session session) {
+        ExtendedMetadata.BatchedEntityRequestHeader.Builder header = ExtendedMetadata.BatchedEntityRequestHeader.newBuilder()
+                .setCatalogue(session.getUserAttribute("catalogue", "premium"));
+        String country = session.countryCode();
+        if (country != null) header.setCountry(country);
+        return header.build();
+    }
+
+    @NotNull
+    public CompletableFuture<Metadata.Track> track(@NotNull TrackId id) {
+        return get(Kind.TRACK, id.toSpotifyUri(), id.hexId());
+    }
+
+    @NotNull
+    public CompletableFuture<Metadata.Episode> episode(@NotNull EpisodeId id) {
+        return get(Kind.EPISODE, id.toSpotifyUri(), id.hexId());
+    }
+
+    @NotNull
+    public CompletableFuture<Metadata.Album> album(@NotNull AlbumId id) {
+        return get(Kind.ALBUM, id.toSpotifyUri(), id.hexId());
+    }
+
+    @NotNull
+    public CompletableFuture<Metadata.Artist> artist(@NotNull ArtistId id) {
+        return get(Kind.ARTIST, id.toSpotifyUri(), id.hexId());
+    }
+
+    @NotNull
+    public CompletableFuture<Metadata.Show> show(@NotNull ShowId id) {
+        return get(Kind.SHOW, id.toSpotifyUri(), id.hexId());
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private <M extends Message> CompletableFuture<M> get(@NotNull Kind<M> kind, @NotNull String uri, @NotNull String hexId) {
+        MetadataCache.Entry entry = cache.get(kind.type, hexId, kind.parser);
+        if (entry != null && !entry.isStale()) return CompletableFuture.completedFuture((M) entry.message);
+
+        synchronized (this) {
+            if (closed) {
+                CompletableFuture<M> future = new CompletableFuture<>();
+                future.completeExceptionally(new IOException("Metadata batcher is closed!"));
+                return future;
+            }
+
+            Request<?> existing = requests.get(uri);
+            if (existing != null) return ((CompletableFuture<M>) existing.future).thenApply(m -> m);
+
+            Request<M> request = new Request<>(kind, uri, hexId, entry);
+            request.future.whenComplete((m, ex) -> {
+                synchronized (this) {
+                    requests.remove(uri, request);
+                }
+            });
+
+            requests.put(uri, request);
+            queue.add(request);
+
+            if (!flushScheduled) {
+                flushScheduled = true;
+                scheduler.schedule(() -> flush(true), windowMs, TimeUnit.MILLISECONDS);
+            } else if (queue.size() == MAX_BATCH_SIZE) {
+                scheduler.execute(() -> flush(false));
+            }
+
+            return request.future.thenApply(m -> m);
+        }
+    }
+
+    /**
+     * @param window Whether the batch window expired, otherwise only full batches are sent and the rest keeps waiting
+     */
+    private void flush(boolean window) {
+        List<Request<?>> pending;
+        synchronized (this) {
+            if (window) flushScheduled = false;
+
+            int count = window ? queue.size() : queue.size() - queue.size() % MAX_BATCH_SIZE;
+            if (count == 0) return;
+
+            List<Request<?>> taken = queue.subList(0, count);
+            pending = new ArrayList<>(taken);
+            taken.clear();
+        }
+
+        for (int i = 0; i < pending.size(); i += MAX_BATCH_SIZE) {
+            List<Request<?>> batch = pending.subList(i, Math.min(pending.size(), i + MAX_BATCH_SIZE));
+            submit(() -> resolve(batch), batch);
+        }
+    }
+
+    /**
+     * Runs the task on the fetch pool, failing the given requests if the batcher has been closed in the meantime.
+     */
+    private void submit(@NotNull Runnable task, @NotNull List<Request<?>> requests) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            for (Request<?> request : requests)
+                request.future.completeExceptionally(new IOException("Metadata batcher is closed!"));
+        }
+    }
+
+    private void resolve(@NotNull List<Request<?>> batch) {
+        ExtendedMetadata.BatchedEntityRequest.Builder builder = ExtendedMetadata.BatchedEntityRequest.newBuilder();
+        Map<String, Request<?>> byUri = new HashMap<>(batch.size());
+        for (Request<?> request : batch) {
+            ExtendedMetadata.ExtensionQuery.Builder query = ExtendedMetadata.ExtensionQuery.newBuilder().setExtensionKind(request.kind.extension);
+            if (request.stale != null && request.stale.etag != null) query.setEtag(request.stale.etag);
+
+            builder.addEntityRequest(ExtendedMetadata.EntityRequest.newBuilder().setEntityUri(request.uri).addQuery(query));
+            byUri.put(request.uri, request);
+        }
+
+        try {
+            ExtendedMetadata.BatchedExtensionResponse resp = batchFetcher.fetch(builder.build());
+            for (ExtendedMetadata.EntityExtensionDataArray array : resp.getExtendedMetadataList()) {
+                for (EntityExtensionData data : array.getExtensionDataList()) {
+                    Request<?> request = byUri.get(data.getEntityUri());
+                    if (request != null && request.kind.extension == array.getExtensionKind()) request.handle(data);
+                }
+            }
+
+            LOGGER.trace("Resolved batched metadata. {requested: {}}", batch.size());
+        } catch (IOException | MercuryClient.MercuryException | RuntimeException ex) {
+            LOGGER.warn("Failed resolving batched metadata, fetching individually. {requested: {}}", batch.size(), ex);
+        }
+
+        for (Request<?> request : batch)
+            if (!request.future.isDone()) submit(request::fetchIndividually, Collections.singletonList(request));
+    }
+
+    @Override
+    public void close() {
+        List<Request<?>> pending;
+        synchronized (this) {
+            closed = true;
+            pending = new ArrayList<>(requests.values());
+        }
+
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+        for (Request<?> request : pending)
+            request.future.completeExceptionally(new IOException("Metadata batcher is closed!"));
+    }
+
+    /**
+     * Resolves a batch of entities, the request header is left to the implementation.
+     */
+    interface BatchFetcher {
+        @NotNull
+        ExtendedMetadata.BatchedExtensionResponse fetch(@NotNull ExtendedMetadata.BatchedEntityRequest request) throws IOException, MercuryClient.MercuryException;
+    }
+
+    /**
+     * Fetches a single entity that couldn't be resolved through its batch.
+     */
+    interface Fallback {
+        @NotNull
+        Message fetch(@NotNull Kind<?> kind, @NotNull String hexId) throws IOException, MercuryClient.MercuryException;
+    }
+
+    private interface Fetcher<M extends Message> {
+        @NotNull
+        M fetch(@NotNull ApiClient api, @NotNull String hexId) throws IOException, MercuryClient.MercuryException;
+    }
+
+    static final class Kind<M extends Message> {
+        static final Kind<Metadata.Track> TRACK = new Kind<>("track", ExtensionKind.TRACK_V4, Metadata.Track.parser(), (api, hex) -> api.getMetadata4Track(TrackId.fromHex(hex)));
+        static final Kind<Metadata.Episode> EPISODE = new Kind<>("episode", ExtensionKind.EPISODE_V4, Metadata.Episode.parser(), (api, hex) -> api.getMetadata4Episode(EpisodeId.fromHex(hex)));
+        static final Kind<Metadata.Album> ALBUM = new Kind<>("album", ExtensionKind.ALBUM_V4, Metadata.Album.parser(), (api, hex) -> api.getMetadata4Album(AlbumId.fromHex(hex)));
+        static final Kind<Metadata.Artist> ARTIST = new Kind<>("artist", ExtensionKind.ARTIST_V4, Metadata.Artist.parser(), (api, hex) -> api.getMetadata4Artist(ArtistId.fromHex(hex)));
+        static final Kind<Metadata.Show> SHOW = new Kind<>("show", ExtensionKind.SHOW_V4, Metadata.Show.parser(), (api, hex) -> api.getMetadata4Show(ShowId.fromHex(hex)));
+        final String type;
+        final ExtensionKind extension;
+        final Parser<M> parser;
+        final Fetcher<M> fetcher;
+
+        private Kind(@NotNull String type, @NotNull ExtensionKind extension, @NotNull Parser<M> parser, @NotNull Fetcher<M> fetcher) {
+            this.type = type;
+            this.extension = extension;
+            this.parser = parser;
+            this.fetcher = fetcher;
+        }
+    }
+
+    private final class Request<M extends Message> {
+        final Kind<M> kind;
+        final String uri;
+        final String hexId;
+        final MetadataCache.Entry stale;
+        final CompletableFuture<M> future = new CompletableFuture<>();
+
+        Request(@NotNull Kind<M> kind, @NotNull String uri, @NotNull String hexId, @Nullable MetadataCache.Entry stale) {
+            this.kind = kind;
+            this.uri = uri;
+            this.hexId = hexId;
+            this.stale = stale;
+        }
+
+        @SuppressWarnings("unchecked")
+        void handle(@NotNull EntityExtensionData data) {
+            if (data.getHeader().getStatusCode() == 304 && stale != null) {
+                future.complete((M) cache.revalidated(kind.type, hexId, stale).message);
+            } else if (data.hasExtensionData() && !data.getExtensionData().getValue().isEmpty()) {
+                byte[] bytes = data.getExtensionData().getValue().toByteArray();
+                try {
+                    M message = kind.parser.parseFrom(bytes);
+                    String etag = data.getHeader().hasEtag() ? data.getHeader().getEtag() : null;
+                    cache.put(kind.type, hexId, message, etag, bytes);
+                    future.complete(message);
+                } catch (IOException ex) {
+                    LOGGER.debug("Failed parsing batched metadata for {}.", uri, ex);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void fetchIndividually() {
+            try {
+                future.complete((M) fallback.fetch(kind, hexId));
+            } catch (IOException | MercuryClient.MercuryException | RuntimeException ex) {
+                future.completeExceptionally(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import xyz.gianlu.librespot.common.NameThreadFactory;
+import xyz.gianlu.librespot.crypto.Packet;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dispatches the received packets on separate lanes, so that a slow handler only delays packets of the same kind.
+ * Audio data is handled directly on the receiver thread, because the channels only copy it into the chunk buffers.
+ * The other lanes have their own thread and a bounded queue, the receiver waits if a queue is full.
+ *
+ * @author devgianlu
+ */
+public final class PacketDispatcher implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PacketDispatcher.class);
+    private final Map<Lane, LaneExecutor> lanes = new EnumMap<>(Lane.class);
+    private final Handler handler;
+
+    PacketDispatcher(@NotNull Handler handler) {
+        this.handler = handler;
+        for (Lane lane : Lane.values())
+            lanes.put(lane, new LaneExecutor(lane));
+    }
+
+    @NotNull
+    public static Lane laneOf(@NotNull Packet.Type type) {
+        switch (type) {
+            case StreamChunkRes:
+            case ChannelError:
+                return Lane.AUDIO;
+            case MercuryReq:
+            case MercurySub:
+            case MercuryUnsub:
+            case MercuryEvent:
+                return Lane.MERCURY;
+            default:
+                return Lane.CONTROL;
+        }
+    }
+
+    /**
+     * Dispatches the packet on its lane. The payload is copied if the packet isn't handled before returning.
+     */
+    void dispatch(@NotNull Packet.Type type, @NotNull ByteBuffer payload) {
+        lanes.get(laneOf(type)).dispatch(type, payload);
+    }
+
+    /**
+     * @return A snapshot of the statistics of every lane
+     */
+    @NotNull
+    public Map<Lane, LaneStats> stats() {
+        Map<Lane, LaneStats> map = new EnumMap<>(Lane.class);
+        for (LaneExecutor executor : lanes.values())
+            map.put(executor.lane, executor.stats());
+
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public void close() {
+        for (LaneExecutor executor : lanes.values())
+            executor.close();
+    }
+
+    public enum Lane {
+        AUDIO(0), MERCURY(1024), CONTROL(256);
+
+        /**
+         * The size of the queue, {@code 0} if packets are handled on the receiver thread
+         */
+        final int queueSize;
+
+        Lane(int queueSize) {
+            this.queueSize = queueSize;
+        }
+    }
+
+    interface Handler {
+        void handle(@NotNull Packet.Type type, @NotNull ByteBuffer payload);
+    }
+
+    public static final class LaneStats {
+        public final int depth;
+        public final int maxDepth;
+        public final long dispatched;
+        public final long totalLatencyNs;
+        public final long maxLatencyNs;
+
+        private LaneStats(int depth, int maxDepth, long dispatched, long totalLatencyNs, long maxLatencyNs) {
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.dispatched = dispatched;
+            this.totalLatencyNs = totalLatencyNs;
+            this.maxLatencyNs = maxLatencyNs;
+        }
+
+        /**
+         * @return The average time between receiving a packet and its handler returning, in milliseconds
+         */
+        public double averageLatencyMs() {
+            return dispatched == 0 ? 0 : totalLatencyNs / (double) dispatched / 1_000_000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("LaneStats{depth: %d, maxDepth: %d, dispatched: %d, avgLatency: %.3fms, maxLatency: %.3fms}",
+                    depth, maxDepth, dispatched, averageLatencyMs(), maxLatencyNs / 1_000_000.0);
+        }
+    }
+
+    private class LaneExecutor {
+        final Lane lane;
+        private final ThreadPoolExecutor executor;
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final LongAdder dispatched = new LongAdder();
+        private final LongAdder totalLatency = new LongAdder();
+        private final AtomicLong maxLatency = new AtomicLong();
+
+        LaneExecutor(@NotNull Lane lane) {
+            this.lane = lane;
+
+            if (lane.queueSize == 0) {
+                executor = null;
+            } else {
+                String name = "packet-dispatch-" + lane.name().toLowerCase();
+                executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(lane.queueSize), new NameThreadFactory(r -> name), (r, e) -> {
+                    if (e.isShutdown()) return;
+
+                    try {
+                        e.getQueue().put(r);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+        }
+
+        void dispatch(@NotNull Packet.Type type, @NotNull ByteBuffer payload) {
+            long start = System.nanoTime();
+            if (executor == null) {
+                handle(type, payload, start);
+                return;
+            }
+
+            ByteBuffer copy = ByteBuffer.wrap(Packet.copyOf(type.val, payload).payload);
+            executor.execute(() -> handle(type, copy, start));
+            maxDepth.accumulateAndGet(executor.getQueue().size(), Math::max);
+        }
+
+        private void handle(@NotNull Packet.Type type, @NotNull ByteBuffer payload, long start) {
+            try {
+                handler.handle(type, payload);
+            } catch (RuntimeException ex) {
+                LOGGER.error("Failed handling packet, cmd: {}", type, ex);
+            }
+
+            long latency = System.nanoTime() - start;
+            dispatched.increment();
+            totalLatency.add(latency);
+            maxLatency.accumulateAndGet(latency, Math::max);
+        }
+
+        @NotNull
+        LaneStats stats() {
+            int depth = executor == null ? 0 : executor.getQueue().size();
+            return new LaneStats(depth, maxDepth.get(), dispatched.sum(), totalLatency.sum(), maxLatency.get());
+        }
+
+        void close() {
+            if (executor != null) executor.shutdownNow();
+        }
+    }
+}
@@ -19,9 +19,18 @@ package xyz.gianlu.librespot.core;
 import org.jetbrains.annotations.NotNull;
 import xyz.gianlu.librespot.crypto.Packet;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author Gianlu
  */
 public interface PacketsReceiver {
     void dispatch(@NotNull Packet packet);
+
+    /**
+     * Dispatches a packet whose payload is a slice of the receive buffer, only valid until this method returns.
+     */
+    default void dispatch(@NotNull Packet.Type type, @NotNull ByteBuffer payload) {
+        dispatch(Packet.copyOf(type.val, payload));
+    }
 }
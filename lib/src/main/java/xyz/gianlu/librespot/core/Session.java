@@ -39,16 +39,21 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 import xyz.gianlu.librespot.Version;
 import xyz.gianlu.librespot.audio.AudioKeyManager;
+import xyz.gianlu.librespot.audio.AudioKeyStore;
 import xyz.gianlu.librespot.audio.PlayableContentFeeder;
+import xyz.gianlu.librespot.audio.ReadAheadWindow;
 import xyz.gianlu.librespot.audio.cdn.CdnManager;
 import xyz.gianlu.librespot.audio.storage.ChannelManager;
 import xyz.gianlu.librespot.cache.CacheManager;
+import xyz.gianlu.librespot.cache.MetadataCache;
 import xyz.gianlu.librespot.common.NameThreadFactory;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.crypto.CipherPair;
 import xyz.gianlu.librespot.crypto.DiffieHellman;
 import xyz.gianlu.librespot.crypto.PBKDF2;
 import xyz.gianlu.librespot.crypto.Packet;
+import xyz.gianlu.librespot.crypto.PacketReader;
+import xyz.gianlu.librespot.crypto.PacketWriter;
 import xyz.gianlu.librespot.dealer.ApiClient;
 import xyz.gianlu.librespot.dealer.DealerClient;
 import xyz.gianlu.librespot.mercury.MercuryClient;
@@ -65,6 +70,10 @@ import java.io.*;
 import java.math.BigInteger;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.*;
 import java.security.spec.RSAPublicKeySpec;
 import java.util.*;
@@ -104,14 +113,18 @@ public final class Session implements Closeable {
     private final DiffieHellman keys;
     private final Inner inner;
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NameThreadFactory(r -> "session-scheduler-" + r.hashCode()));
+    private final PacketDispatcher dispatcher = new PacketDispatcher(this::handlePacket);
     private final AtomicBoolean authLock = new AtomicBoolean(false);
+    private final HttpMetrics httpMetrics = new HttpMetrics();
     private final OkHttpClient client;
+    private final OkHttpClient audioClient;
     private final List<CloseListener> closeListeners = Collections.synchronizedList(new ArrayList<>());
     private final List<ReconnectionListener> reconnectionListeners = Collections.synchronizedList(new ArrayList<>());
     private final Map<String, String> userAttributes = Collections.synchronizedMap(new HashMap<>());
     private ConnectionHolder conn;
     private volatile CipherPair cipherPair;
     private Receiver receiver;
+    private volatile Sender sender;
     private Authentication.APWelcome apWelcome = null;
     private MercuryClient mercuryClient;
     private AudioKeyManager audioKeyManager;
@@ -119,6 +132,8 @@ public final class Session implements Closeable {
     private TokenProvider tokenProvider;
     private CdnManager cdnManager;
     private CacheManager cacheManager;
+    private MetadataCache metadataCache;
+    private MetadataBatcher metadataBatcher;
     private DealerClient dealer;
     private ApiClient api;
     private SearchManager search;
@@ -132,7 +147,17 @@ public final class Session implements Closeable {
     private Session(@NotNull Inner inner) throws IOException {
         this.inner = inner;
         this.keys = new DiffieHellman(inner.random);
-        this.client = createClient(inner.conf);
+        OkHttpClient base = createClient(inner.conf, httpMetrics);
+        this.client = base.newBuilder()
+                .dispatcher(createDispatcher(inner.conf.httpMaxRequests, inner.conf.apiMaxRequestsPerHost))
+                .addInterceptor(new HttpConcurrencyLimiter(inner.conf.httpMaxRequests, inner.conf.apiMaxRequestsPerHost))
+                .connectionPool(new ConnectionPool(inner.conf.httpMaxIdleConnections, inner.conf.httpKeepAliveSeconds, TimeUnit.SECONDS))
+                .build();
+        this.audioClient = base.newBuilder()
+                .dispatcher(createDispatcher(inner.conf.httpMaxRequests, inner.conf.audioMaxRequestsPerHost))
+                .addInterceptor(new HttpConcurrencyLimiter(inner.conf.httpMaxRequests, inner.conf.audioMaxRequestsPerHost))
+                .connectionPool(new ConnectionPool(inner.conf.httpMaxIdleConnections, inner.conf.httpKeepAliveSeconds, TimeUnit.SECONDS))
+                .build();
         this.apResolver = new ApResolver(client);
         String addr = apResolver.getRandomAccesspoint();
         this.conn = ConnectionHolder.create(addr, inner.conf);
@@ -141,9 +166,18 @@ public final class Session implements Closeable {
     }
 
     @NotNull
-    private static OkHttpClient createClient(@NotNull Configuration conf) {
+    private static Dispatcher createDispatcher(int maxRequests, int maxRequestsPerHost) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        return dispatcher;
+    }
+
+    @NotNull
+    private static OkHttpClient createClient(@NotNull Configuration conf, @NotNull HttpMetrics metrics) {
         OkHttpClient.Builder builder = new OkHttpClient.Builder();
         builder.retryOnConnectionFailure(true);
+        builder.eventListenerFactory(metrics);
 
         if (conf.proxyEnabled && conf.proxyType != Proxy.Type.DIRECT) {
             builder.proxy(new Proxy(conf.proxyType, new InetSocketAddress(conf.proxyAddress, conf.proxyPort)));
@@ -207,11 +241,30 @@ public final class Session implements Closeable {
         return lo & 0x7f | hi << 7;
     }
 
+    /**
+     * @return The client for latency-sensitive requests: API calls, websockets and so on
+     */
     @NotNull
     public OkHttpClient client() {
         return client;
     }
 
+    /**
+     * @return The client for bulk audio downloads, it doesn't share dispatcher and connection pool with {@link #client()}
+     */
+    @NotNull
+    public OkHttpClient audioClient() {
+        return audioClient;
+    }
+
+    /**
+     * @return The per-host timings of the requests made by both {@link #client()} and {@link #audioClient()}
+     */
+    @NotNull
+    public HttpMetrics httpMetrics() {
+        return httpMetrics;
+    }
+
     private void connect() throws IOException, GeneralSecurityException, SpotifyAuthenticationException {
         Accumulator acc = new Accumulator();
 
@@ -327,6 +380,8 @@ public final class Session implements Closeable {
             // Init Shannon cipher
             cipherPair = new CipherPair(Arrays.copyOfRange(data.toByteArray(), 0x14, 0x34),
                     Arrays.copyOfRange(data.toByteArray(), 0x34, 0x54));
+            conn.reader = new PacketReader(cipherPair, conn.readChannel);
+            conn.writer = new PacketWriter(cipherPair, conn.writeChannel);
 
             authLock.set(true);
         }
@@ -343,13 +398,19 @@ public final class Session implements Closeable {
 
         synchronized (authLock) {
             mercuryClient = new MercuryClient(this);
-            tokenProvider = new TokenProvider(this);
-            audioKeyManager = new AudioKeyManager(this);
+            tokenProvider = new TokenProvider(this, scheduler);
+            AudioKeyStore audioKeyStore = null;
+            if (inner.conf.cacheEnabled && inner.conf.cacheAudioKeys)
+                audioKeyStore = new AudioKeyStore(inner.conf.cacheDir, apWelcome.getCanonicalUsername());
+
+            audioKeyManager = new AudioKeyManager(this, audioKeyStore);
             channelManager = new ChannelManager(this);
             api = new ApiClient(this);
             cdnManager = new CdnManager(this);
             contentFeeder = new PlayableContentFeeder(this);
             cacheManager = new CacheManager(inner.conf);
+            metadataCache = MetadataCache.forUser(inner.conf, apWelcome.getCanonicalUsername());
+            metadataBatcher = new MetadataBatcher(this, metadataCache);
             dealer = new DealerClient(this);
             search = new SearchManager(this);
             eventService = new EventService(this);
@@ -412,11 +473,14 @@ public final class Session implements Closeable {
 
         sendUnchecked(Packet.Type.Login, clientResponseEncrypted.toByteArray());
 
-        Packet packet = cipherPair.receiveEncoded(conn.in);
+        PacketReader reader = conn.reader;
+        ByteBuffer payload = reader.next();
+        Packet packet = Packet.copyOf(reader.cmd(), payload);
         if (packet.is(Packet.Type.APWelcome)) {
             apWelcome = Authentication.APWelcome.parseFrom(packet.payload);
 
             receiver = new Receiver();
+            sender = new Sender();
 
             byte[] bytes0x0f = new byte[20];
             random().nextBytes(bytes0x0f);
@@ -471,7 +535,13 @@ public final class Session implements Closeable {
             dealer = null;
         }
 
+        if (contentFeeder != null) {
+            contentFeeder.close();
+            contentFeeder = null;
+        }
+
         if (audioKeyManager != null) {
+            audioKeyManager.close();
             audioKeyManager = null;
         }
 
@@ -485,6 +555,16 @@ public final class Session implements Closeable {
             eventService = null;
         }
 
+        if (metadataBatcher != null) {
+            metadataBatcher.close();
+            metadataBatcher = null;
+        }
+
+        if (metadataCache != null) {
+            metadataCache.release();
+            metadataCache = null;
+        }
+
         if (mercuryClient != null) {
             mercuryClient.close();
             mercuryClient = null;
@@ -495,8 +575,24 @@ public final class Session implements Closeable {
             receiver = null;
         }
 
+        if (sender != null) {
+            Sender old = sender;
+            sender = null;
+            old.stop();
+        }
+
+        dispatcher.close();
+
+        if (cacheManager != null) {
+            cacheManager.close();
+            cacheManager = null;
+        }
+
+        LOGGER.debug("HTTP metrics: {}", httpMetrics.stats());
         client.dispatcher().executorService().shutdownNow();
         client.connectionPool().evictAll();
+        audioClient.dispatcher().executorService().shutdownNow();
+        audioClient.connectionPool().evictAll();
 
         if (conn != null) {
             conn.socket.close();
@@ -522,11 +618,14 @@ public final class Session implements Closeable {
         LOGGER.info("Closed session. {deviceId: {}} ", inner.deviceId);
     }
 
+    /**
+     * Writes the packet synchronously, used by the handshake before the {@link Sender} is running.
+     */
     private void sendUnchecked(Packet.Type cmd, byte[] payload) throws IOException {
         if (conn == null)
             throw new IOException("Cannot write to missing connection.");
 
-        cipherPair.sendEncoded(conn.out, cmd.val, payload);
+        conn.writer.send(cmd.val, payload);
     }
 
     private void waitAuthLock() {
@@ -548,6 +647,11 @@ public final class Session implements Closeable {
         }
     }
 
+    /**
+     * Queues the packet to be sent by the {@link Sender} and waits for it to be written.
+     *
+     * @throws IOException If the packet couldn't be queued or written in time, or the sender was stopped
+     */
     public void send(Packet.Type cmd, byte[] payload) throws IOException {
         if (closing && conn == null) {
             LOGGER.debug("Connection was broken while closing.");
@@ -556,17 +660,25 @@ public final class Session implements Closeable {
 
         if (closed) throw new IllegalStateException("Session is closed!");
 
+        Sender sender;
         synchronized (authLock) {
             if (cipherPair == null || authLock.get()) {
                 try {
                     authLock.wait();
                 } catch (InterruptedException ex) {
-                    return;
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for authentication.");
                 }
             }
 
-            sendUnchecked(cmd, payload);
+            sender = this.sender;
+            if (sender == null) {
+                sendUnchecked(cmd, payload);
+                return;
+            }
         }
+
+        sender.send(cmd, payload);
     }
 
     @NotNull
@@ -595,6 +707,20 @@ public final class Session implements Closeable {
         return cacheManager;
     }
 
+    @NotNull
+    public MetadataCache metadataCache() {
+        waitAuthLock();
+        if (metadataCache == null) throw new IllegalStateException("Session isn't authenticated!");
+        return metadataCache;
+    }
+
+    @NotNull
+    public MetadataBatcher metadataBatcher() {
+        waitAuthLock();
+        if (metadataBatcher == null) throw new IllegalStateException("Session isn't authenticated!");
+        return metadataBatcher;
+    }
+
     @NotNull
     public CdnManager cdn() {
         waitAuthLock();
@@ -602,6 +728,11 @@ public final class Session implements Closeable {
         return cdnManager;
     }
 
+    @NotNull
+    public PacketDispatcher dispatcher() {
+        return dispatcher;
+    }
+
     @NotNull
     public ChannelManager channel() {
         waitAuthLock();
@@ -720,6 +851,11 @@ public final class Session implements Closeable {
         try {
             if (conn != null) {
                 receiver.stop();
+
+                Sender old = sender;
+                sender = null;
+                if (old != null) old.stop();
+
                 conn.socket.close();
             }
 
@@ -1079,6 +1215,13 @@ public final class Session implements Closeable {
         public final boolean cacheEnabled;
         public final File cacheDir;
         public final boolean doCacheCleanUp;
+        public final CacheManager.SyncPolicy cacheSyncPolicy;
+        public final int cacheMaxSizeMb;
+        public final boolean cacheStorePlaintext;
+        public final boolean cacheAudioKeys;
+        public final boolean cacheMetadata;
+        public final int cacheMetadataEntries;
+        public final int cacheMetadataTtl;
 
         // Stored credentials
         public final boolean storeCredentials;
@@ -1086,16 +1229,26 @@ public final class Session implements Closeable {
 
         // Fetching
         public final boolean retryOnChunkError;
+        public final int readAheadBufferMs;
 
         // Network
         public final int connectionTimeout;
+        public final int cdnMaxConcurrentRequests;
+        public final int httpMaxRequests;
+        public final int apiMaxRequestsPerHost;
+        public final int audioMaxRequestsPerHost;
+        public final int httpMaxIdleConnections;
+        public final int httpKeepAliveSeconds;
 
         private Configuration(boolean proxyEnabled, Proxy.Type proxyType, boolean proxySSL, String proxyAddress,
                               int proxyPort, boolean proxyAuth, String proxyUsername, String proxyPassword,
                               TimeProvider.Method timeSynchronizationMethod, int timeManualCorrection,
-                              boolean cacheEnabled, File cacheDir, boolean doCacheCleanUp,
-                              boolean storeCredentials, File storedCredentialsFile,
-                              boolean retryOnChunkError, int connectionTimeout) {
+                              boolean cacheEnabled, File cacheDir, boolean doCacheCleanUp, CacheManager.SyncPolicy cacheSyncPolicy, int cacheMaxSizeMb,
+                              boolean cacheStorePlaintext, boolean cacheAudioKeys, boolean cacheMetadata, int cacheMetadataEntries,
+                              int cacheMetadataTtl, boolean storeCredentials, File storedCredentialsFile,
+                              boolean retryOnChunkError, int readAheadBufferMs, int connectionTimeout, int cdnMaxConcurrentRequests,
+                              int httpMaxRequests, int apiMaxRequestsPerHost, int audioMaxRequestsPerHost, int httpMaxIdleConnections,
+                              int httpKeepAliveSeconds) {
             this.proxyEnabled = proxyEnabled;
             this.proxyType = proxyType;
             this.proxySSL = proxySSL;
@@ -1109,10 +1262,24 @@ public final class Session implements Closeable {
             this.cacheEnabled = cacheEnabled;
             this.cacheDir = cacheDir;
             this.doCacheCleanUp = doCacheCleanUp;
+            this.cacheSyncPolicy = cacheSyncPolicy;
+            this.cacheMaxSizeMb = cacheMaxSizeMb;
+            this.cacheStorePlaintext = cacheStorePlaintext;
+            this.cacheAudioKeys = cacheAudioKeys;
+            this.cacheMetadata = cacheMetadata;
+            this.cacheMetadataEntries = cacheMetadataEntries;
+            this.cacheMetadataTtl = cacheMetadataTtl;
             this.storeCredentials = storeCredentials;
             this.storedCredentialsFile = storedCredentialsFile;
             this.retryOnChunkError = retryOnChunkError;
+            this.readAheadBufferMs = readAheadBufferMs;
             this.connectionTimeout = connectionTimeout;
+            this.cdnMaxConcurrentRequests = cdnMaxConcurrentRequests;
+            this.httpMaxRequests = httpMaxRequests;
+            this.apiMaxRequestsPerHost = apiMaxRequestsPerHost;
+            this.audioMaxRequestsPerHost = audioMaxRequestsPerHost;
+            this.httpMaxIdleConnections = httpMaxIdleConnections;
+            this.httpKeepAliveSeconds = httpKeepAliveSeconds;
         }
 
         public static final class Builder {
@@ -1134,6 +1301,13 @@ public final class Session implements Closeable {
             private boolean cacheEnabled = true;
             private File cacheDir = new File("cache");
             private boolean doCacheCleanUp;
+            private CacheManager.SyncPolicy cacheSyncPolicy = CacheManager.SyncPolicy.PERIODIC;
+            private int cacheMaxSizeMb = 0;
+            private boolean cacheStorePlaintext = false;
+            private boolean cacheAudioKeys = false;
+            private boolean cacheMetadata = false;
+            private int cacheMetadataEntries = 2048;
+            private int cacheMetadataTtl = 86400;
 
             // Stored credentials
             private boolean storeCredentials = true;
@@ -1141,9 +1315,16 @@ public final class Session implements Closeable {
 
             // Fetching
             private boolean retryOnChunkError;
+            private int readAheadBufferMs = ReadAheadWindow.DEFAULT_TARGET_BUFFER_MS;
 
             // Network
             private int connectionTimeout;
+            private int cdnMaxConcurrentRequests = 4;
+            private int httpMaxRequests = 64;
+            private int apiMaxRequestsPerHost = 16;
+            private int audioMaxRequestsPerHost = 16;
+            private int httpMaxIdleConnections = 8;
+            private int httpKeepAliveSeconds = 300;
 
             public Builder() {
             }
@@ -1213,6 +1394,61 @@ public final class Session implements Closeable {
                 return this;
             }
 
+            public Builder setCacheSyncPolicy(CacheManager.SyncPolicy cacheSyncPolicy) {
+                this.cacheSyncPolicy = cacheSyncPolicy;
+                return this;
+            }
+
+            /**
+             * Sets the maximum size of the cache in megabytes, {@code 0} means unlimited.
+             */
+            public Builder setCacheMaxSizeMb(int cacheMaxSizeMb) {
+                this.cacheMaxSizeMb = cacheMaxSizeMb;
+                return this;
+            }
+
+            /**
+             * Sets whether new cache files should store decrypted audio, so that replays don't need to decrypt it again.
+             */
+            public Builder setCacheStorePlaintext(boolean cacheStorePlaintext) {
+                this.cacheStorePlaintext = cacheStorePlaintext;
+                return this;
+            }
+
+            /**
+             * Sets whether audio keys should be stored in the cache directory to survive restarts. They are encrypted with a
+             * key stored in the same directory, see {@link AudioKeyStore}.
+             */
+            public Builder setCacheAudioKeys(boolean cacheAudioKeys) {
+                this.cacheAudioKeys = cacheAudioKeys;
+                return this;
+            }
+
+            /**
+             * Sets whether metadata should also be stored in the cache directory, not just in memory.
+             */
+            public Builder setCacheMetadata(boolean cacheMetadata) {
+                this.cacheMetadata = cacheMetadata;
+                return this;
+            }
+
+            /**
+             * Sets the maximum number of metadata messages kept in memory, up to 8 times as many
+             * are kept on disk.
+             */
+            public Builder setCacheMetadataEntries(int cacheMetadataEntries) {
+                this.cacheMetadataEntries = cacheMetadataEntries;
+                return this;
+            }
+
+            /**
+             * Sets after how many seconds cached metadata must be revalidated with the server.
+             */
+            public Builder setCacheMetadataTtl(int cacheMetadataTtl) {
+                this.cacheMetadataTtl = cacheMetadataTtl;
+                return this;
+            }
+
             public Builder setStoreCredentials(boolean storeCredentials) {
                 this.storeCredentials = storeCredentials;
                 return this;
@@ -1228,19 +1464,73 @@ public final class Session implements Closeable {
                 return this;
             }
 
+            /**
+             * Sets the amount of audio, in milliseconds, that the read-ahead tries to keep buffered in addition to the measured fetch latency.
+             */
+            public Builder setReadAheadBufferMs(int readAheadBufferMs) {
+                this.readAheadBufferMs = readAheadBufferMs;
+                return this;
+            }
+
             public Builder setConnectionTimeout(int connectionTimeout) {
                 this.connectionTimeout = connectionTimeout;
                 return this;
             }
 
+            /**
+             * Sets how many range requests every CDN stream may have in flight at the same time.
+             */
+            public Builder setCdnMaxConcurrentRequests(int cdnMaxConcurrentRequests) {
+                this.cdnMaxConcurrentRequests = cdnMaxConcurrentRequests;
+                return this;
+            }
+
+            /**
+             * Sets how many HTTP requests may be in flight at the same time, for API and audio traffic each.
+             */
+            public Builder setHttpMaxRequests(int httpMaxRequests) {
+                this.httpMaxRequests = httpMaxRequests;
+                return this;
+            }
+
+            /**
+             * Sets how many API requests may be in flight at the same time to the same host.
+             */
+            public Builder setApiMaxRequestsPerHost(int apiMaxRequestsPerHost) {
+                this.apiMaxRequestsPerHost = apiMaxRequestsPerHost;
+                return this;
+            }
+
+            /**
+             * Sets how many audio requests may be in flight at the same time to the same CDN host.
+             */
+            public Builder setAudioMaxRequestsPerHost(int audioMaxRequestsPerHost) {
+                this.audioMaxRequestsPerHost = audioMaxRequestsPerHost;
+                return this;
+            }
+
+            /**
+             * Sets how many idle connections every connection pool keeps around.
+             */
+            public Builder setHttpMaxIdleConnections(int httpMaxIdleConnections) {
+                this.httpMaxIdleConnections = httpMaxIdleConnections;
+                return this;
+            }
+
+            public Builder setHttpKeepAliveSeconds(int httpKeepAliveSeconds) {
+                this.httpKeepAliveSeconds = httpKeepAliveSeconds;
+                return this;
+            }
+
             @NotNull
             public Configuration build() {
                 return new Configuration(proxyEnabled, proxyType, proxySSL, proxyAddress, proxyPort, proxyAuth,
                         proxyUsername, proxyPassword,
                         timeSynchronizationMethod, timeManualCorrection,
-                        cacheEnabled, cacheDir, doCacheCleanUp,
-                        storeCredentials, storedCredentialsFile,
-                        retryOnChunkError, connectionTimeout);
+                        cacheEnabled, cacheDir, doCacheCleanUp, cacheSyncPolicy, cacheMaxSizeMb,
+                        cacheStorePlaintext, cacheAudioKeys, cacheMetadata, cacheMetadataEntries, cacheMetadataTtl, storeCredentials, storedCredentialsFile,
+                        retryOnChunkError, readAheadBufferMs, connectionTimeout, cdnMaxConcurrentRequests,
+                        httpMaxRequests, apiMaxRequestsPerHost, audioMaxRequestsPerHost, httpMaxIdleConnections, httpKeepAliveSeconds);
             }
         }
     }
@@ -1269,15 +1559,38 @@ public final class Session implements Closeable {
         }
     }
 
+    /**
+     * Direct connections use a {@link SocketChannel}, proxied ones a plain {@link Socket} wrapped in channels. The
+     * streams are used for the handshake only, encrypted packets go through {@link #reader} and {@link #writer}.
+     */
+    /**
+     * Holds the connection to the access point. Reads are blocking and happen on the {@link Receiver} thread: a session
+     * has a single connection, so a selector would not save any thread. Proxied connections are wrapped with
+     * {@link Channels} because sockets created for a proxy have no {@link SocketChannel}.
+     */
     private static class ConnectionHolder {
         final Socket socket;
         final DataInputStream in;
         final DataOutputStream out;
+        final ReadableByteChannel readChannel;
+        final WritableByteChannel writeChannel;
+        volatile PacketReader reader;
+        volatile PacketWriter writer;
 
         private ConnectionHolder(@NotNull Socket socket) throws IOException {
             this.socket = socket;
             this.in = new DataInputStream(socket.getInputStream());
             this.out = new DataOutputStream(socket.getOutputStream());
+            this.readChannel = Channels.newChannel(socket.getInputStream());
+            this.writeChannel = Channels.newChannel(socket.getOutputStream());
+        }
+
+        private ConnectionHolder(@NotNull SocketChannel channel) throws IOException {
+            this.socket = channel.socket();
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = new DataOutputStream(socket.getOutputStream());
+            this.readChannel = channel;
+            this.writeChannel = channel;
         }
 
         @NotNull
@@ -1285,8 +1598,11 @@ public final class Session implements Closeable {
             String[] split = addr.split(":");
             String apAddr = split[0];
             int apPort = Integer.parseInt(split[1]);
-            if (!conf.proxyEnabled || conf.proxyType == Proxy.Type.DIRECT)
-                return new ConnectionHolder(new Socket(apAddr, apPort));
+            if (!conf.proxyEnabled || conf.proxyType == Proxy.Type.DIRECT) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(apAddr, apPort));
+                channel.socket().setTcpNoDelay(true);
+                return new ConnectionHolder(channel);
+            }
 
             switch (conf.proxyType) {
                 case HTTP:
@@ -1394,11 +1710,177 @@ public final class Session implements Closeable {
         }
     }
 
+    /**
+     * Writes the queued packets in order, packets that are queued together are sent with a single write.
+     * Every packet is completed once it has been flushed, so that write errors are reported to the caller.
+     */
+    private class Sender implements Runnable {
+        private static final int QUEUE_SIZE = 256;
+        private static final long SEND_TIMEOUT = 10_000;
+        private final BlockingQueue<Outgoing> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final Thread thread;
+        private final PacketWriter writer;
+        private volatile boolean running = true;
+
+        private Sender() {
+            writer = conn.writer;
+            thread = new Thread(this, "session-packet-sender");
+            thread.start();
+        }
+
+        void send(@NotNull Packet.Type cmd, byte[] payload) throws IOException {
+            if (!running) throw new IOException("Sender has been stopped.");
+
+            Outgoing packet = new Outgoing(cmd, payload);
+            try {
+                if (!queue.offer(packet, SEND_TIMEOUT, TimeUnit.MILLISECONDS))
+                    throw new IOException("Timed out queuing packet: " + cmd);
+
+                if (!running) failQueued(); // Stopped while we were queuing
+
+                packet.done.get(SEND_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending packet: " + cmd);
+            } catch (TimeoutException ex) {
+                throw new IOException("Timed out sending packet: " + cmd);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+                else throw new IOException(ex.getCause());
+            }
+        }
+
+        void stop() {
+            running = false;
+            thread.interrupt();
+            failQueued();
+        }
+
+        private void failQueued() {
+            Outgoing packet;
+            while ((packet = queue.poll()) != null)
+                packet.done.completeExceptionally(new IOException("Sender has been stopped."));
+        }
+
+        @Override
+        public void run() {
+            LOGGER.trace("Session.Sender started");
+
+            List<Outgoing> batch = new ArrayList<>(QUEUE_SIZE);
+            while (running) {
+                try {
+                    Outgoing packet = queue.take();
+                    do {
+                        batch.add(packet);
+                        writer.write(packet.cmd.val, packet.payload);
+                    } while ((packet = queue.poll()) != null);
+
+                    writer.flush();
+                    for (Outgoing written : batch) written.done.complete(null);
+                } catch (InterruptedException ex) {
+                    break;
+                } catch (IOException ex) {
+                    if (running && !closing)
+                        LOGGER.error("Failed sending packets!", ex);
+
+                    for (Outgoing failed : batch) failed.done.completeExceptionally(ex);
+                } finally {
+                    batch.clear();
+                }
+            }
+
+            failQueued();
+            LOGGER.trace("Session.Sender stopped");
+        }
+    }
+
+    private static class Outgoing {
+        final Packet.Type cmd;
+        final byte[] payload;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Outgoing(@NotNull Packet.Type cmd, byte[] payload) {
+            this.cmd = cmd;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Handles a packet on its {@link PacketDispatcher.Lane}.
+     */
+    private void handlePacket(@NotNull Packet.Type cmd, @NotNull ByteBuffer payload) {
+        switch (cmd) {
+            case Ping:
+                byte[] ping = Packet.copyOf(cmd.val, payload).payload;
+                if (scheduledReconnect != null) scheduledReconnect.cancel(true);
+                scheduledReconnect = scheduler.schedule(() -> {
+                    LOGGER.warn("Socket timed out. Reconnecting...");
+                    reconnect();
+                }, 2 * 60 + configuration().connectionTimeout, TimeUnit.SECONDS);
+
+                TimeProvider.updateWithPing(ping);
+
+                try {
+                    send(Packet.Type.Pong, ping);
+                } catch (IOException ex) {
+                    LOGGER.error("Failed sending Pong!", ex);
+                }
+                break;
+            case PongAck:
+                // Silent
+                break;
+            case CountryCode:
+                countryCode = new String(Packet.copyOf(cmd.val, payload).payload);
+                LOGGER.info("Received CountryCode: " + countryCode);
+                break;
+            case LicenseVersion:
+                ByteBuffer licenseVersion = payload;
+                short id = licenseVersion.getShort();
+                if (id != 0) {
+                    byte[] buffer = new byte[licenseVersion.get()];
+                    licenseVersion.get(buffer);
+                    LOGGER.info("Received LicenseVersion: {}, {}", id, new String(buffer));
+                } else {
+                    LOGGER.info("Received LicenseVersion: {}", id);
+                }
+                break;
+            case Unknown_0x10:
+                LOGGER.debug("Received 0x10: " + Utils.bytesToHex(Packet.copyOf(cmd.val, payload).payload));
+                break;
+            case MercurySub:
+            case MercuryUnsub:
+            case MercuryEvent:
+            case MercuryReq:
+                mercury().dispatch(cmd, payload);
+                break;
+            case AesKey:
+            case AesKeyError:
+                audioKey().dispatch(cmd, payload);
+                break;
+            case ChannelError:
+            case StreamChunkRes:
+                channel().dispatch(cmd, payload);
+                break;
+            case ProductInfo:
+                try {
+                    parseProductInfo(new ByteArrayInputStream(Packet.copyOf(cmd.val, payload).payload));
+                } catch (IOException | ParserConfigurationException | SAXException ex) {
+                    LOGGER.warn("Failed parsing product info!", ex);
+                }
+                break;
+            default:
+                LOGGER.info("Skipping " + cmd.name());
+                break;
+        }
+    }
+
     private class Receiver implements Runnable {
         private final Thread thread;
+        private final PacketReader reader;
         private volatile boolean running = true;
 
         private Receiver() {
+            reader = conn.reader;
             thread = new Thread(this, "session-packet-receiver");
             thread.start();
         }
@@ -1413,13 +1895,13 @@ public final class Session implements Closeable {
             LOGGER.trace("Session.Receiver started");
 
             while (running) {
-                Packet packet;
+                ByteBuffer payload;
                 Packet.Type cmd;
                 try {
-                    packet = cipherPair.receiveEncoded(conn.in);
-                    cmd = Packet.Type.parse(packet.cmd);
+                    payload = reader.next();
+                    cmd = Packet.Type.parse(reader.cmd());
                     if (cmd == null) {
-                        LOGGER.info("Skipping unknown command {cmd: 0x{}, payload: {}}", Integer.toHexString(packet.cmd), Utils.bytesToHex(packet.payload));
+                        LOGGER.info("Skipping unknown command {cmd: 0x{}, payload: {}}", Integer.toHexString(reader.cmd()), Utils.bytesToHex(Packet.copyOf(reader.cmd(), payload).payload));
                         continue;
                     }
                 } catch (IOException | GeneralSecurityException ex) {
@@ -1433,68 +1915,7 @@ public final class Session implements Closeable {
 
                 if (!running) break;
 
-                switch (cmd) {
-                    case Ping:
-                        if (scheduledReconnect != null) scheduledReconnect.cancel(true);
-                        scheduledReconnect = scheduler.schedule(() -> {
-                            LOGGER.warn("Socket timed out. Reconnecting...");
-                            reconnect();
-                        }, 2 * 60 + configuration().connectionTimeout, TimeUnit.SECONDS);
-
-                        TimeProvider.updateWithPing(packet.payload);
-
-                        try {
-                            send(Packet.Type.Pong, packet.payload);
-                        } catch (IOException ex) {
-                            LOGGER.error("Failed sending Pong!", ex);
-                        }
-                        break;
-                    case PongAck:
-                        // Silent
-                        break;
-                    case CountryCode:
-                        countryCode = new String(packet.payload);
-                        LOGGER.info("Received CountryCode: " + countryCode);
-                        break;
-                    case LicenseVersion:
-                        ByteBuffer licenseVersion = ByteBuffer.wrap(packet.payload);
-                        short id = licenseVersion.getShort();
-                        if (id != 0) {
-                            byte[] buffer = new byte[licenseVersion.get()];
-                            licenseVersion.get(buffer);
-                            LOGGER.info("Received LicenseVersion: {}, {}", id, new String(buffer));
-                        } else {
-                            LOGGER.info("Received LicenseVersion: {}", id);
-                        }
-                        break;
-                    case Unknown_0x10:
-                        LOGGER.debug("Received 0x10: " + Utils.bytesToHex(packet.payload));
-                        break;
-                    case MercurySub:
-                    case MercuryUnsub:
-                    case MercuryEvent:
-                    case MercuryReq:
-                        mercury().dispatch(packet);
-                        break;
-                    case AesKey:
-                    case AesKeyError:
-                        audioKey().dispatch(packet);
-                        break;
-                    case ChannelError:
-                    case StreamChunkRes:
-                        channel().dispatch(packet);
-                        break;
-                    case ProductInfo:
-                        try {
-                            parseProductInfo(new ByteArrayInputStream(packet.payload));
-                        } catch (IOException | ParserConfigurationException | SAXException ex) {
-                            LOGGER.warn("Failed parsing product info!", ex);
-                        }
-                        break;
-                    default:
-                        LOGGER.info("Skipping " + cmd.name());
-                        break;
-                }
+                dispatcher.dispatch(cmd, payload);
             }
 
             LOGGER.trace("Session.Receiver stopped");
@@ -23,56 +23,152 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xyz.gianlu.librespot.common.Utils;
-import xyz.gianlu.librespot.json.GenericJson;
 import xyz.gianlu.librespot.mercury.MercuryClient;
 import xyz.gianlu.librespot.mercury.MercuryRequests;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
+ * Tokens are kept in an immutable snapshot keyed by their scopes, so that lookups never lock. Tokens that have been
+ * used are refreshed in the background once {@link #REFRESH_AHEAD_FACTOR} of their lifetime has passed, and
+ * concurrent requests for the same scopes share the same Mercury round-trip.
+ *
  * @author Gianlu
  */
 public final class TokenProvider {
     private final static Logger LOGGER = LoggerFactory.getLogger(TokenProvider.class);
     private final static int TOKEN_EXPIRE_THRESHOLD = 10;
+    private final static double REFRESH_AHEAD_FACTOR = 0.8;
     private final Session session;
-    private final List<StoredToken> tokens = new ArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private final Map<Set<String>, CompletableFuture<StoredToken>> requests = new ConcurrentHashMap<>();
+    private volatile Map<Set<String>, Slot> tokens = Collections.emptyMap();
 
-    TokenProvider(@NotNull Session session) {
+    TokenProvider(@NotNull Session session, @NotNull ScheduledExecutorService scheduler) {
         this.session = session;
+        this.scheduler = scheduler;
+    }
+
+    @NotNull
+    private static Set<String> scopesKey(@NotNull String[] scopes) {
+        return Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(scopes)));
     }
 
     @Nullable
-    private StoredToken findTokenWithAllScopes(String[] scopes) {
-        for (StoredToken token : tokens)
-            if (token.hasScopes(scopes))
-                return token;
+    private Slot findTokenWithAllScopes(@NotNull Set<String> key, String[] scopes) {
+        Map<Set<String>, Slot> snapshot = tokens;
+        Slot slot = snapshot.get(key);
+        if (slot != null) return slot;
+
+        for (Slot s : snapshot.values())
+            if (s.token.hasScopes(scopes))
+                return s;
 
         return null;
     }
 
+    private synchronized void store(@NotNull Set<String> key, @Nullable Slot slot) {
+        Map<Set<String>, Slot> copy = new HashMap<>(tokens);
+        if (slot == null) copy.remove(key);
+        else copy.put(key, slot);
+        tokens = Collections.unmodifiableMap(copy);
+    }
+
+    private synchronized void remove(@NotNull Set<String> key, @NotNull Slot slot) {
+        if (tokens.get(key) == slot) store(key, null);
+    }
+
     @NotNull
-    public synchronized StoredToken getToken(@NotNull String... scopes) throws IOException, MercuryClient.MercuryException {
+    public StoredToken getToken(@NotNull String... scopes) throws IOException, MercuryClient.MercuryException {
+        try {
+            return getTokenAsync(scopes).get();
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            else if (cause instanceof MercuryClient.MercuryException) throw (MercuryClient.MercuryException) cause;
+            else throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Retrieves a token without blocking.
+     */
+    @NotNull
+    public CompletableFuture<StoredToken> getTokenAsync(@NotNull String... scopes) {
         if (scopes.length == 0) throw new IllegalArgumentException();
 
-        StoredToken token = findTokenWithAllScopes(scopes);
-        if (token != null) {
-            if (token.expired()) tokens.remove(token);
-            else return token;
+        Set<String> key = scopesKey(scopes);
+        Slot slot = findTokenWithAllScopes(key, scopes);
+        if (slot != null) {
+            if (!slot.token.expired()) {
+                slot.used = true;
+                return CompletableFuture.completedFuture(slot.token);
+            }
+
+            remove(key, slot);
         }
 
-        LOGGER.debug("Token expired or not suitable, requesting again. {scopes: {}, oldToken: {}}", Arrays.asList(scopes), token);
-        GenericJson resp = session.mercury().sendSync(MercuryRequests.requestToken(session.deviceId(), String.join(",", scopes)));
-        token = new StoredToken(resp.obj);
+        LOGGER.debug("Token expired or not suitable, requesting again. {scopes: {}, oldToken: {}}", key, slot == null ? null : slot.token);
+        return request(key);
+    }
 
-        LOGGER.debug("Updated token successfully! {scopes: {}, newToken: {}}", Arrays.asList(scopes), token);
-        tokens.add(token);
+    /**
+     * Requests a new token for the given scopes, unless a request for them is already in flight.
+     */
+    @NotNull
+    private CompletableFuture<StoredToken> request(@NotNull Set<String> key) {
+        CompletableFuture<StoredToken> future = new CompletableFuture<>();
+        CompletableFuture<StoredToken> existing = requests.putIfAbsent(key, future);
+        if (existing != null) return existing;
+
+        future.whenComplete((token, ex) -> requests.remove(key, future));
+        session.mercury().sendAsync(MercuryRequests.requestToken(session.deviceId(), String.join(",", key))).whenComplete((resp, ex) -> {
+            if (ex != null) {
+                future.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+                return;
+            }
+
+            StoredToken token = new StoredToken(resp.obj);
+            LOGGER.debug("Updated token successfully! {scopes: {}, newToken: {}}", key, token);
+
+            Slot slot = new Slot(token);
+            store(key, slot);
+            scheduleRefresh(key, slot);
+            future.complete(token);
+        });
+
+        return future;
+    }
 
-        return token;
+    private void scheduleRefresh(@NotNull Set<String> key, @NotNull Slot slot) {
+        long delay = (long) (slot.token.expiresIn * REFRESH_AHEAD_FACTOR * 1000);
+        try {
+            scheduler.schedule(() -> refresh(key, slot), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            LOGGER.trace("Cannot schedule token refresh, session is closing.", ex);
+        }
+    }
+
+    /**
+     * Replaces the token ahead of its expiration, if it's still the current one and it has been used since it was stored.
+     */
+    private void refresh(@NotNull Set<String> key, @NotNull Slot slot) {
+        if (tokens.get(key) != slot) return;
+
+        if (!slot.used) {
+            LOGGER.debug("Dropping unused token. {scopes: {}}", key);
+            remove(key, slot);
+            return;
+        }
+
+        LOGGER.debug("Refreshing token ahead of expiration. {scopes: {}}", key);
+        request(key).whenComplete((token, ex) -> {
+            if (ex != null) LOGGER.warn("Failed refreshing token. {scopes: {}}", key, ex);
+        });
     }
 
     @NotNull
@@ -80,6 +176,15 @@ public final class TokenProvider {
         return getToken(scope).accessToken;
     }
 
+    private static final class Slot {
+        final StoredToken token;
+        volatile boolean used = false;
+
+        Slot(@NotNull StoredToken token) {
+            this.token = token;
+        }
+    }
+
     public static class StoredToken {
         public final int expiresIn;
         public final String accessToken;
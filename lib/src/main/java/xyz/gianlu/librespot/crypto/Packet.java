@@ -19,6 +19,8 @@ package xyz.gianlu.librespot.crypto;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author Gianlu
  */
@@ -32,6 +34,16 @@ public class Packet {
         this.payload = payload;
     }
 
+    /**
+     * Creates a packet with a copy of the remaining bytes of the given buffer.
+     */
+    @NotNull
+    public static Packet copyOf(byte cmd, @NotNull ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return new Packet(cmd, bytes);
+    }
+
     @Nullable
     public Type type() {
         if (type == null) type = Type.parse(cmd);
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.crypto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Reads and decrypts packets from a channel without allocating. Frames are decrypted in place inside a single
+ * buffer, many small frames are usually read with a single call to the channel.
+ * <p>
+ * Not thread safe, meant to be used by the receiver thread only.
+ *
+ * @author devgianlu
+ */
+public final class PacketReader {
+    static final int MAX_FRAME = 3 + 0xFFFF + 4;
+    private final CipherPair cipher;
+    private final ReadableByteChannel channel;
+    private final byte[] data = new byte[MAX_FRAME * 2];
+    private final ByteBuffer buffer = ByteBuffer.wrap(data);
+    private final ByteBuffer payload = buffer.duplicate();
+    private final byte[] nonce = new byte[4];
+    private final byte[] mac = new byte[4];
+    private int start = 0;
+    private int end = 0;
+    private byte cmd;
+
+    public PacketReader(@NotNull CipherPair cipher, @NotNull ReadableByteChannel channel) {
+        this.cipher = cipher;
+        this.channel = channel;
+    }
+
+    /**
+     * Reads the next packet, blocking until it is available.
+     *
+     * @return The payload of the packet, only valid until the next call
+     */
+    @NotNull
+    public ByteBuffer next() throws IOException, GeneralSecurityException {
+        Shannon recv = cipher.recvCipher;
+        synchronized (recv) {
+            int n = cipher.recvNonce.getAndIncrement();
+            nonce[0] = (byte) (n >>> 24);
+            nonce[1] = (byte) (n >>> 16);
+            nonce[2] = (byte) (n >>> 8);
+            nonce[3] = (byte) n;
+            recv.nonce(nonce);
+
+            ensure(3);
+            recv.decrypt(data, start, 3);
+            int length = (data[start + 1] & 0xFF) << 8 | (data[start + 2] & 0xFF);
+
+            ensure(3 + length + 4);
+            recv.decrypt(data, start + 3, length);
+            recv.finish(mac);
+
+            int macOff = start + 3 + length;
+            int diff = 0;
+            for (int i = 0; i < 4; i++) diff |= mac[i] ^ data[macOff + i];
+            if (diff != 0) throw new GeneralSecurityException("MACs don't match!");
+
+            cmd = data[start];
+            payload.clear();
+            payload.limit(start + 3 + length).position(start + 3);
+            start = macOff + 4;
+            return payload;
+        }
+    }
+
+    /**
+     * @return The command of the last packet returned by {@link #next()}
+     */
+    public byte cmd() {
+        return cmd;
+    }
+
+    /**
+     * Makes sure that at least {@code count} bytes of the current frame are in the buffer.
+     */
+    private void ensure(int count) throws IOException {
+        if (end - start >= count) return;
+
+        if (start + count > data.length) {
+            System.arraycopy(data, start, data, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+
+        while (end - start < count) {
+            buffer.limit(data.length).position(end);
+            int read = channel.read(buffer);
+            if (read == -1) throw new EOFException();
+            end += read;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.crypto;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Encrypts packets into a single reusable buffer. Packets added with {@link #write(byte, byte[])} are sent together
+ * by {@link #flush()}, so that small control packets go out with a single write.
+ *
+ * @author devgianlu
+ */
+public final class PacketWriter {
+    private final CipherPair cipher;
+    private final WritableByteChannel channel;
+    private final byte[] data = new byte[PacketReader.MAX_FRAME * 2];
+    private final ByteBuffer buffer = ByteBuffer.wrap(data);
+    private final byte[] nonce = new byte[4];
+    private final byte[] mac = new byte[4];
+    private int end = 0;
+
+    public PacketWriter(@NotNull CipherPair cipher, @NotNull WritableByteChannel channel) {
+        this.cipher = cipher;
+        this.channel = channel;
+    }
+
+    /**
+     * Encrypts and sends the given packet, together with any packet that has been written before.
+     */
+    public synchronized void send(byte cmd, byte[] payload) throws IOException {
+        write(cmd, payload);
+        flush();
+    }
+
+    /**
+     * Encrypts the given packet into the buffer, flushing it first if there isn't enough space.
+     */
+    public synchronized void write(byte cmd, byte[] payload) throws IOException {
+        if (payload.length > 0xFFFF)
+            throw new IllegalArgumentException("Payload too big: " + payload.length);
+
+        if (end + 3 + payload.length + 4 > data.length) flush();
+
+        Shannon send = cipher.sendCipher;
+        synchronized (send) {
+            int n = cipher.sendNonce.getAndIncrement();
+            nonce[0] = (byte) (n >>> 24);
+            nonce[1] = (byte) (n >>> 16);
+            nonce[2] = (byte) (n >>> 8);
+            nonce[3] = (byte) n;
+            send.nonce(nonce);
+
+            data[end] = cmd;
+            data[end + 1] = (byte) (payload.length >> 8);
+            data[end + 2] = (byte) payload.length;
+            System.arraycopy(payload, 0, data, end + 3, payload.length);
+            send.encrypt(data, end, 3 + payload.length);
+            send.finish(mac);
+            System.arraycopy(mac, 0, data, end + 3 + payload.length, 4);
+        }
+
+        end += 3 + payload.length + 4;
+    }
+
+    /**
+     * Sends all the buffered packets.
+     */
+    public synchronized void flush() throws IOException {
+        if (end == 0) return;
+
+        buffer.limit(end).position(0);
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } finally {
+            end = 0;
+        }
+    }
+}
@@ -16,10 +16,13 @@
 
 package xyz.gianlu.librespot.crypto;
 
+import java.nio.ByteBuffer;
+
 /**
  * Implementation of the Shannon stream-cipher.
  * <p>
- * Based on original reference implementation in C.
+ * Based on original reference implementation in C. Whole words are processed by an unrolled loop that keeps the
+ * register in local variables, see {@link #encryptWords(byte[], int, int)}.
  *
  * @author Felix Bruns (felixbruns@web.de)
  */
@@ -37,9 +40,9 @@ public class Shannon {
     private static final int INITKONST = 0x6996c53a; /* Value of konst to use during key loading. */
     private static final int KEYP = 13;         /* Where to insert key/MAC/counter words. */
 
-    private int[] R;     /* Working storage for the shift register. */
-    private int[] CRC;   /* Working storage for CRC accumulation. */
-    private int[] initR; /* Saved register contents. */
+    private final int[] R;     /* Working storage for the shift register. */
+    private final int[] CRC;   /* Working storage for CRC accumulation. */
+    private final int[] initR; /* Saved register contents. */
     private int konst; /* Key dependant semi-constant. */
     private int sbuf;  /* Encryption buffer. */
     private int mbuf;  /* Partial word MAC buffer. */
@@ -56,14 +59,14 @@ public class Shannon {
     }
 
     /* Nonlinear transform (sbox) of a word. There are two slightly different combinations. */
-    private int sbox(int i) {
+    private static int sbox(int i) {
         i ^= Integer.rotateLeft(i, 5) | Integer.rotateLeft(i, 7);
         i ^= Integer.rotateLeft(i, 19) | Integer.rotateLeft(i, 22);
 
         return i;
     }
 
-    private int sbox2(int i) {
+    private static int sbox2(int i) {
         i ^= Integer.rotateLeft(i, 7) | Integer.rotateLeft(i, 22);
         i ^= Integer.rotateLeft(i, 5) | Integer.rotateLeft(i, 19);
 
@@ -77,7 +80,7 @@ public class Shannon {
 
         /* Nonlinear feedback function. */
         t = this.R[12] ^ this.R[13] ^ this.konst;
-        t = this.sbox(t) ^ Integer.rotateLeft(this.R[0], 1);
+        t = sbox(t) ^ Integer.rotateLeft(this.R[0], 1);
 
         /* Shift register. */
         for (int i = 1; i < N; i++) {
@@ -407,8 +410,15 @@ public class Shannon {
      * Note that plaintext is accumulated for MAC.
      */
     public void encrypt(byte[] buffer, int n) {
-        int i = 0, j;
-        int t;
+        this.encrypt(buffer, 0, n);
+    }
+
+    /*
+     * Combined MAC and encryption of n bytes starting at off.
+     * Note that plaintext is accumulated for MAC.
+     */
+    public void encrypt(byte[] buffer, int off, int n) {
+        int i = off;
 
         /* Handle any previously buffered bytes. */
         if (this.nbuf != 0) {
@@ -433,30 +443,7 @@ public class Shannon {
         }
 
         /* Handle whole words. */
-        j = n & ~0x03;
-
-        while (i < j) {
-            /* Cycle register. */
-            this.cycle();
-
-            /* Shift 4 bytes into one word. */
-            t = ((buffer[i + 3] & 0xFF) << 24) |
-                    ((buffer[i + 2] & 0xFF) << 16) |
-                    ((buffer[i + 1] & 0xFF) << 8) |
-                    ((buffer[i] & 0xFF));
-
-            this.macFunc(t);
-
-            t ^= this.sbuf;
-
-            /* Put word into byte buffer. */
-            buffer[i + 3] = (byte) ((t >> 24) & 0xFF);
-            buffer[i + 2] = (byte) ((t >> 16) & 0xFF);
-            buffer[i + 1] = (byte) ((t >> 8) & 0xFF);
-            buffer[i] = (byte) ((t) & 0xFF);
-
-            i += 4;
-        }
+        i = this.encryptWords(buffer, i, i + (n & ~0x03));
 
         /* Handle any trailing bytes. */
         n &= 0x03;
@@ -494,8 +481,15 @@ public class Shannon {
      * Note that plaintext is accumulated for MAC.
      */
     public void decrypt(byte[] buffer, int n) {
-        int i = 0, j;
-        int t;
+        this.decrypt(buffer, 0, n);
+    }
+
+    /*
+     * Combined MAC and decryption of n bytes starting at off.
+     * Note that plaintext is accumulated for MAC.
+     */
+    public void decrypt(byte[] buffer, int off, int n) {
+        int i = off;
 
         /* Handle any previously buffered bytes. */
         if (this.nbuf != 0) {
@@ -520,30 +514,7 @@ public class Shannon {
         }
 
         /* Handle whole words. */
-        j = n & ~0x03;
-
-        while (i < j) {
-            /* Cycle register. */
-            this.cycle();
-
-            /* Shift 4 bytes into one word. */
-            t = ((buffer[i + 3] & 0xFF) << 24) |
-                    ((buffer[i + 2] & 0xFF) << 16) |
-                    ((buffer[i + 1] & 0xFF) << 8) |
-                    ((buffer[i] & 0xFF));
-
-            t ^= this.sbuf;
-
-            this.macFunc(t);
-
-            /* Put word into byte buffer. */
-            buffer[i + 3] = (byte) ((t >> 24) & 0xFF);
-            buffer[i + 2] = (byte) ((t >> 16) & 0xFF);
-            buffer[i + 1] = (byte) ((t >> 8) & 0xFF);
-            buffer[i] = (byte) ((t) & 0xFF);
-
-            i += 4;
-        }
+        i = this.decryptWords(buffer, i, i + (n & ~0x03));
 
         /* Handle any trailing bytes. */
         n &= 0x03;
@@ -568,6 +539,566 @@ public class Shannon {
         }
     }
 
+    /*
+     * Combined MAC and encryption of whole words, 16 words at a time with the register
+     * kept in local variables. After 16 cycles every word is back in its place,
+     * so the shift register never has to be shifted.
+     */
+    private int encryptWords(byte[] buffer, int i, int end) {
+        if (end - i >= 64) {
+            int r0 = R[0], r1 = R[1], r2 = R[2], r3 = R[3], r4 = R[4], r5 = R[5], r6 = R[6], r7 = R[7];
+            int r8 = R[8], r9 = R[9], r10 = R[10], r11 = R[11], r12 = R[12], r13 = R[13], r14 = R[14], r15 = R[15];
+            int c0 = CRC[0], c1 = CRC[1], c2 = CRC[2], c3 = CRC[3], c4 = CRC[4], c5 = CRC[5], c6 = CRC[6], c7 = CRC[7];
+            int c8 = CRC[8], c9 = CRC[9], c10 = CRC[10], c11 = CRC[11], c12 = CRC[12], c13 = CRC[13], c14 = CRC[14], c15 = CRC[15];
+            int k = konst, s = sbuf, t, w;
+
+            for (; end - i >= 64; i += 64) {
+                t = sbox(r12 ^ r13 ^ k) ^ Integer.rotateLeft(r0, 1);
+                r0 = t;
+                t = sbox2(r3 ^ t);
+                r1 ^= t;
+                s = t ^ r9 ^ r13;
+                w = (buffer[i] & 0xFF) | (buffer[i + 1] & 0xFF) << 8 | (buffer[i + 2] & 0xFF) << 16 | buffer[i + 3] << 24;
+                c0 = c0 ^ c2 ^ c15 ^ w;
+                r14 ^= w;
+                w ^= s;
+                buffer[i] = (byte) w;
+                buffer[i + 1] = (byte) (w >> 8);
+                buffer[i + 2] = (byte) (w >> 16);
+                buffer[i + 3] = (byte) (w >> 24);
+
+                t = sbox(r13 ^ r14 ^ k) ^ Integer.rotateLeft(r1, 1);
+                r1 = t;
+                t = sbox2(r4 ^ t);
+                r2 ^= t;
+                s = t ^ r10 ^ r14;
+                w = (buffer[i + 4] & 0xFF) | (buffer[i + 5] & 0xFF) << 8 | (buffer[i + 6] & 0xFF) << 16 | buffer[i + 7] << 24;
+                c1 = c1 ^ c3 ^ c0 ^ w;
+                r15 ^= w;
+                w ^= s;
+                buffer[i + 4] = (byte) w;
+                buffer[i + 5] = (byte) (w >> 8);
+                buffer[i + 6] = (byte) (w >> 16);
+                buffer[i + 7] = (byte) (w >> 24);
+
+                t = sbox(r14 ^ r15 ^ k) ^ Integer.rotateLeft(r2, 1);
+                r2 = t;
+                t = sbox2(r5 ^ t);
+                r3 ^= t;
+                s = t ^ r11 ^ r15;
+                w = (buffer[i + 8] & 0xFF) | (buffer[i + 9] & 0xFF) << 8 | (buffer[i + 10] & 0xFF) << 16 | buffer[i + 11] << 24;
+                c2 = c2 ^ c4 ^ c1 ^ w;
+                r0 ^= w;
+                w ^= s;
+                buffer[i + 8] = (byte) w;
+                buffer[i + 9] = (byte) (w >> 8);
+                buffer[i + 10] = (byte) (w >> 16);
+                buffer[i + 11] = (byte) (w >> 24);
+
+                t = sbox(r15 ^ r0 ^ k) ^ Integer.rotateLeft(r3, 1);
+                r3 = t;
+                t = sbox2(r6 ^ t);
+                r4 ^= t;
+                s = t ^ r12 ^ r0;
+                w = (buffer[i + 12] & 0xFF) | (buffer[i + 13] & 0xFF) << 8 | (buffer[i + 14] & 0xFF) << 16 | buffer[i + 15] << 24;
+                c3 = c3 ^ c5 ^ c2 ^ w;
+                r1 ^= w;
+                w ^= s;
+                buffer[i + 12] = (byte) w;
+                buffer[i + 13] = (byte) (w >> 8);
+                buffer[i + 14] = (byte) (w >> 16);
+                buffer[i + 15] = (byte) (w >> 24);
+
+                t = sbox(r0 ^ r1 ^ k) ^ Integer.rotateLeft(r4, 1);
+                r4 = t;
+                t = sbox2(r7 ^ t);
+                r5 ^= t;
+                s = t ^ r13 ^ r1;
+                w = (buffer[i + 16] & 0xFF) | (buffer[i + 17] & 0xFF) << 8 | (buffer[i + 18] & 0xFF) << 16 | buffer[i + 19] << 24;
+                c4 = c4 ^ c6 ^ c3 ^ w;
+                r2 ^= w;
+                w ^= s;
+                buffer[i + 16] = (byte) w;
+                buffer[i + 17] = (byte) (w >> 8);
+                buffer[i + 18] = (byte) (w >> 16);
+                buffer[i + 19] = (byte) (w >> 24);
+
+                t = sbox(r1 ^ r2 ^ k) ^ Integer.rotateLeft(r5, 1);
+                r5 = t;
+                t = sbox2(r8 ^ t);
+                r6 ^= t;
+                s = t ^ r14 ^ r2;
+                w = (buffer[i + 20] & 0xFF) | (buffer[i + 21] & 0xFF) << 8 | (buffer[i + 22] & 0xFF) << 16 | buffer[i + 23] << 24;
+                c5 = c5 ^ c7 ^ c4 ^ w;
+                r3 ^= w;
+                w ^= s;
+                buffer[i + 20] = (byte) w;
+                buffer[i + 21] = (byte) (w >> 8);
+                buffer[i + 22] = (byte) (w >> 16);
+                buffer[i + 23] = (byte) (w >> 24);
+
+                t = sbox(r2 ^ r3 ^ k) ^ Integer.rotateLeft(r6, 1);
+                r6 = t;
+                t = sbox2(r9 ^ t);
+                r7 ^= t;
+                s = t ^ r15 ^ r3;
+                w = (buffer[i + 24] & 0xFF) | (buffer[i + 25] & 0xFF) << 8 | (buffer[i + 26] & 0xFF) << 16 | buffer[i + 27] << 24;
+                c6 = c6 ^ c8 ^ c5 ^ w;
+                r4 ^= w;
+                w ^= s;
+                buffer[i + 24] = (byte) w;
+                buffer[i + 25] = (byte) (w >> 8);
+                buffer[i + 26] = (byte) (w >> 16);
+                buffer[i + 27] = (byte) (w >> 24);
+
+                t = sbox(r3 ^ r4 ^ k) ^ Integer.rotateLeft(r7, 1);
+                r7 = t;
+                t = sbox2(r10 ^ t);
+                r8 ^= t;
+                s = t ^ r0 ^ r4;
+                w = (buffer[i + 28] & 0xFF) | (buffer[i + 29] & 0xFF) << 8 | (buffer[i + 30] & 0xFF) << 16 | buffer[i + 31] << 24;
+                c7 = c7 ^ c9 ^ c6 ^ w;
+                r5 ^= w;
+                w ^= s;
+                buffer[i + 28] = (byte) w;
+                buffer[i + 29] = (byte) (w >> 8);
+                buffer[i + 30] = (byte) (w >> 16);
+                buffer[i + 31] = (byte) (w >> 24);
+
+                t = sbox(r4 ^ r5 ^ k) ^ Integer.rotateLeft(r8, 1);
+                r8 = t;
+                t = sbox2(r11 ^ t);
+                r9 ^= t;
+                s = t ^ r1 ^ r5;
+                w = (buffer[i + 32] & 0xFF) | (buffer[i + 33] & 0xFF) << 8 | (buffer[i + 34] & 0xFF) << 16 | buffer[i + 35] << 24;
+                c8 = c8 ^ c10 ^ c7 ^ w;
+                r6 ^= w;
+                w ^= s;
+                buffer[i + 32] = (byte) w;
+                buffer[i + 33] = (byte) (w >> 8);
+                buffer[i + 34] = (byte) (w >> 16);
+                buffer[i + 35] = (byte) (w >> 24);
+
+                t = sbox(r5 ^ r6 ^ k) ^ Integer.rotateLeft(r9, 1);
+                r9 = t;
+                t = sbox2(r12 ^ t);
+                r10 ^= t;
+                s = t ^ r2 ^ r6;
+                w = (buffer[i + 36] & 0xFF) | (buffer[i + 37] & 0xFF) << 8 | (buffer[i + 38] & 0xFF) << 16 | buffer[i + 39] << 24;
+                c9 = c9 ^ c11 ^ c8 ^ w;
+                r7 ^= w;
+                w ^= s;
+                buffer[i + 36] = (byte) w;
+                buffer[i + 37] = (byte) (w >> 8);
+                buffer[i + 38] = (byte) (w >> 16);
+                buffer[i + 39] = (byte) (w >> 24);
+
+                t = sbox(r6 ^ r7 ^ k) ^ Integer.rotateLeft(r10, 1);
+                r10 = t;
+                t = sbox2(r13 ^ t);
+                r11 ^= t;
+                s = t ^ r3 ^ r7;
+                w = (buffer[i + 40] & 0xFF) | (buffer[i + 41] & 0xFF) << 8 | (buffer[i + 42] & 0xFF) << 16 | buffer[i + 43] << 24;
+                c10 = c10 ^ c12 ^ c9 ^ w;
+                r8 ^= w;
+                w ^= s;
+                buffer[i + 40] = (byte) w;
+                buffer[i + 41] = (byte) (w >> 8);
+                buffer[i + 42] = (byte) (w >> 16);
+                buffer[i + 43] = (byte) (w >> 24);
+
+                t = sbox(r7 ^ r8 ^ k) ^ Integer.rotateLeft(r11, 1);
+                r11 = t;
+                t = sbox2(r14 ^ t);
+                r12 ^= t;
+                s = t ^ r4 ^ r8;
+                w = (buffer[i + 44] & 0xFF) | (buffer[i + 45] & 0xFF) << 8 | (buffer[i + 46] & 0xFF) << 16 | buffer[i + 47] << 24;
+                c11 = c11 ^ c13 ^ c10 ^ w;
+                r9 ^= w;
+                w ^= s;
+                buffer[i + 44] = (byte) w;
+                buffer[i + 45] = (byte) (w >> 8);
+                buffer[i + 46] = (byte) (w >> 16);
+                buffer[i + 47] = (byte) (w >> 24);
+
+                t = sbox(r8 ^ r9 ^ k) ^ Integer.rotateLeft(r12, 1);
+                r12 = t;
+                t = sbox2(r15 ^ t);
+                r13 ^= t;
+                s = t ^ r5 ^ r9;
+                w = (buffer[i + 48] & 0xFF) | (buffer[i + 49] & 0xFF) << 8 | (buffer[i + 50] & 0xFF) << 16 | buffer[i + 51] << 24;
+                c12 = c12 ^ c14 ^ c11 ^ w;
+                r10 ^= w;
+                w ^= s;
+                buffer[i + 48] = (byte) w;
+                buffer[i + 49] = (byte) (w >> 8);
+                buffer[i + 50] = (byte) (w >> 16);
+                buffer[i + 51] = (byte) (w >> 24);
+
+                t = sbox(r9 ^ r10 ^ k) ^ Integer.rotateLeft(r13, 1);
+                r13 = t;
+                t = sbox2(r0 ^ t);
+                r14 ^= t;
+                s = t ^ r6 ^ r10;
+                w = (buffer[i + 52] & 0xFF) | (buffer[i + 53] & 0xFF) << 8 | (buffer[i + 54] & 0xFF) << 16 | buffer[i + 55] << 24;
+                c13 = c13 ^ c15 ^ c12 ^ w;
+                r11 ^= w;
+                w ^= s;
+                buffer[i + 52] = (byte) w;
+                buffer[i + 53] = (byte) (w >> 8);
+                buffer[i + 54] = (byte) (w >> 16);
+                buffer[i + 55] = (byte) (w >> 24);
+
+                t = sbox(r10 ^ r11 ^ k) ^ Integer.rotateLeft(r14, 1);
+                r14 = t;
+                t = sbox2(r1 ^ t);
+                r15 ^= t;
+                s = t ^ r7 ^ r11;
+                w = (buffer[i + 56] & 0xFF) | (buffer[i + 57] & 0xFF) << 8 | (buffer[i + 58] & 0xFF) << 16 | buffer[i + 59] << 24;
+                c14 = c14 ^ c0 ^ c13 ^ w;
+                r12 ^= w;
+                w ^= s;
+                buffer[i + 56] = (byte) w;
+                buffer[i + 57] = (byte) (w >> 8);
+                buffer[i + 58] = (byte) (w >> 16);
+                buffer[i + 59] = (byte) (w >> 24);
+
+                t = sbox(r11 ^ r12 ^ k) ^ Integer.rotateLeft(r15, 1);
+                r15 = t;
+                t = sbox2(r2 ^ t);
+                r0 ^= t;
+                s = t ^ r8 ^ r12;
+                w = (buffer[i + 60] & 0xFF) | (buffer[i + 61] & 0xFF) << 8 | (buffer[i + 62] & 0xFF) << 16 | buffer[i + 63] << 24;
+                c15 = c15 ^ c1 ^ c14 ^ w;
+                r13 ^= w;
+                w ^= s;
+                buffer[i + 60] = (byte) w;
+                buffer[i + 61] = (byte) (w >> 8);
+                buffer[i + 62] = (byte) (w >> 16);
+                buffer[i + 63] = (byte) (w >> 24);
+            }
+
+            R[0] = r0; R[1] = r1; R[2] = r2; R[3] = r3; R[4] = r4; R[5] = r5; R[6] = r6; R[7] = r7;
+            R[8] = r8; R[9] = r9; R[10] = r10; R[11] = r11; R[12] = r12; R[13] = r13; R[14] = r14; R[15] = r15;
+            CRC[0] = c0; CRC[1] = c1; CRC[2] = c2; CRC[3] = c3; CRC[4] = c4; CRC[5] = c5; CRC[6] = c6; CRC[7] = c7;
+            CRC[8] = c8; CRC[9] = c9; CRC[10] = c10; CRC[11] = c11; CRC[12] = c12; CRC[13] = c13; CRC[14] = c14; CRC[15] = c15;
+            sbuf = s;
+        }
+
+        /* Remaining words, one cycle at a time. */
+        for (; i < end; i += 4) {
+            this.cycle();
+
+            int t = (buffer[i] & 0xFF) | (buffer[i + 1] & 0xFF) << 8 | (buffer[i + 2] & 0xFF) << 16 | buffer[i + 3] << 24;
+            this.macFunc(t);
+            t ^= this.sbuf;
+
+            buffer[i] = (byte) t;
+            buffer[i + 1] = (byte) (t >> 8);
+            buffer[i + 2] = (byte) (t >> 16);
+            buffer[i + 3] = (byte) (t >> 24);
+        }
+
+        return i;
+    }
+
+    /*
+     * Combined MAC and decryption of whole words, 16 words at a time with the register
+     * kept in local variables. After 16 cycles every word is back in its place,
+     * so the shift register never has to be shifted.
+     */
+    private int decryptWords(byte[] buffer, int i, int end) {
+        if (end - i >= 64) {
+            int r0 = R[0], r1 = R[1], r2 = R[2], r3 = R[3], r4 = R[4], r5 = R[5], r6 = R[6], r7 = R[7];
+            int r8 = R[8], r9 = R[9], r10 = R[10], r11 = R[11], r12 = R[12], r13 = R[13], r14 = R[14], r15 = R[15];
+            int c0 = CRC[0], c1 = CRC[1], c2 = CRC[2], c3 = CRC[3], c4 = CRC[4], c5 = CRC[5], c6 = CRC[6], c7 = CRC[7];
+            int c8 = CRC[8], c9 = CRC[9], c10 = CRC[10], c11 = CRC[11], c12 = CRC[12], c13 = CRC[13], c14 = CRC[14], c15 = CRC[15];
+            int k = konst, s = sbuf, t, w;
+
+            for (; end - i >= 64; i += 64) {
+                t = sbox(r12 ^ r13 ^ k) ^ Integer.rotateLeft(r0, 1);
+                r0 = t;
+                t = sbox2(r3 ^ t);
+                r1 ^= t;
+                s = t ^ r9 ^ r13;
+                w = (buffer[i] & 0xFF) | (buffer[i + 1] & 0xFF) << 8 | (buffer[i + 2] & 0xFF) << 16 | buffer[i + 3] << 24;
+                w ^= s;
+                c0 = c0 ^ c2 ^ c15 ^ w;
+                r14 ^= w;
+                buffer[i] = (byte) w;
+                buffer[i + 1] = (byte) (w >> 8);
+                buffer[i + 2] = (byte) (w >> 16);
+                buffer[i + 3] = (byte) (w >> 24);
+
+                t = sbox(r13 ^ r14 ^ k) ^ Integer.rotateLeft(r1, 1);
+                r1 = t;
+                t = sbox2(r4 ^ t);
+                r2 ^= t;
+                s = t ^ r10 ^ r14;
+                w = (buffer[i + 4] & 0xFF) | (buffer[i + 5] & 0xFF) << 8 | (buffer[i + 6] & 0xFF) << 16 | buffer[i + 7] << 24;
+                w ^= s;
+                c1 = c1 ^ c3 ^ c0 ^ w;
+                r15 ^= w;
+                buffer[i + 4] = (byte) w;
+                buffer[i + 5] = (byte) (w >> 8);
+                buffer[i + 6] = (byte) (w >> 16);
+                buffer[i + 7] = (byte) (w >> 24);
+
+                t = sbox(r14 ^ r15 ^ k) ^ Integer.rotateLeft(r2, 1);
+                r2 = t;
+                t = sbox2(r5 ^ t);
+                r3 ^= t;
+                s = t ^ r11 ^ r15;
+                w = (buffer[i + 8] & 0xFF) | (buffer[i + 9] & 0xFF) << 8 | (buffer[i + 10] & 0xFF) << 16 | buffer[i + 11] << 24;
+                w ^= s;
+                c2 = c2 ^ c4 ^ c1 ^ w;
+                r0 ^= w;
+                buffer[i + 8] = (byte) w;
+                buffer[i + 9] = (byte) (w >> 8);
+                buffer[i + 10] = (byte) (w >> 16);
+                buffer[i + 11] = (byte) (w >> 24);
+
+                t = sbox(r15 ^ r0 ^ k) ^ Integer.rotateLeft(r3, 1);
+                r3 = t;
+                t = sbox2(r6 ^ t);
+                r4 ^= t;
+                s = t ^ r12 ^ r0;
+                w = (buffer[i + 12] & 0xFF) | (buffer[i + 13] & 0xFF) << 8 | (buffer[i + 14] & 0xFF) << 16 | buffer[i + 15] << 24;
+                w ^= s;
+                c3 = c3 ^ c5 ^ c2 ^ w;
+                r1 ^= w;
+                buffer[i + 12] = (byte) w;
+                buffer[i + 13] = (byte) (w >> 8);
+                buffer[i + 14] = (byte) (w >> 16);
+                buffer[i + 15] = (byte) (w >> 24);
+
+                t = sbox(r0 ^ r1 ^ k) ^ Integer.rotateLeft(r4, 1);
+                r4 = t;
+                t = sbox2(r7 ^ t);
+                r5 ^= t;
+                s = t ^ r13 ^ r1;
+                w = (buffer[i + 16] & 0xFF) | (buffer[i + 17] & 0xFF) << 8 | (buffer[i + 18] & 0xFF) << 16 | buffer[i + 19] << 24;
+                w ^= s;
+                c4 = c4 ^ c6 ^ c3 ^ w;
+                r2 ^= w;
+                buffer[i + 16] = (byte) w;
+                buffer[i + 17] = (byte) (w >> 8);
+                buffer[i + 18] = (byte) (w >> 16);
+                buffer[i + 19] = (byte) (w >> 24);
+
+                t = sbox(r1 ^ r2 ^ k) ^ Integer.rotateLeft(r5, 1);
+                r5 = t;
+                t = sbox2(r8 ^ t);
+                r6 ^= t;
+                s = t ^ r14 ^ r2;
+                w = (buffer[i + 20] & 0xFF) | (buffer[i + 21] & 0xFF) << 8 | (buffer[i + 22] & 0xFF) << 16 | buffer[i + 23] << 24;
+                w ^= s;
+                c5 = c5 ^ c7 ^ c4 ^ w;
+                r3 ^= w;
+                buffer[i + 20] = (byte) w;
+                buffer[i + 21] = (byte) (w >> 8);
+                buffer[i + 22] = (byte) (w >> 16);
+                buffer[i + 23] = (byte) (w >> 24);
+
+                t = sbox(r2 ^ r3 ^ k) ^ Integer.rotateLeft(r6, 1);
+                r6 = t;
+                t = sbox2(r9 ^ t);
+                r7 ^= t;
+                s = t ^ r15 ^ r3;
+                w = (buffer[i + 24] & 0xFF) | (buffer[i + 25] & 0xFF) << 8 | (buffer[i + 26] & 0xFF) << 16 | buffer[i + 27] << 24;
+                w ^= s;
+                c6 = c6 ^ c8 ^ c5 ^ w;
+                r4 ^= w;
+                buffer[i + 24] = (byte) w;
+                buffer[i + 25] = (byte) (w >> 8);
+                buffer[i + 26] = (byte) (w >> 16);
+                buffer[i + 27] = (byte) (w >> 24);
+
+                t = sbox(r3 ^ r4 ^ k) ^ Integer.rotateLeft(r7, 1);
+                r7 = t;
+                t = sbox2(r10 ^ t);
+                r8 ^= t;
+                s = t ^ r0 ^ r4;
+                w = (buffer[i + 28] & 0xFF) | (buffer[i + 29] & 0xFF) << 8 | (buffer[i + 30] & 0xFF) << 16 | buffer[i + 31] << 24;
+                w ^= s;
+                c7 = c7 ^ c9 ^ c6 ^ w;
+                r5 ^= w;
+                buffer[i + 28] = (byte) w;
+                buffer[i + 29] = (byte) (w >> 8);
+                buffer[i + 30] = (byte) (w >> 16);
+                buffer[i + 31] = (byte) (w >> 24);
+
+                t = sbox(r4 ^ r5 ^ k) ^ Integer.rotateLeft(r8, 1);
+                r8 = t;
+                t = sbox2(r11 ^ t);
+                r9 ^= t;
+                s = t ^ r1 ^ r5;
+                w = (buffer[i + 32] & 0xFF) | (buffer[i + 33] & 0xFF) << 8 | (buffer[i + 34] & 0xFF) << 16 | buffer[i + 35] << 24;
+                w ^= s;
+                c8 = c8 ^ c10 ^ c7 ^ w;
+                r6 ^= w;
+                buffer[i + 32] = (byte) w;
+                buffer[i + 33] = (byte) (w >> 8);
+                buffer[i + 34] = (byte) (w >> 16);
+                buffer[i + 35] = (byte) (w >> 24);
+
+                t = sbox(r5 ^ r6 ^ k) ^ Integer.rotateLeft(r9, 1);
+                r9 = t;
+                t = sbox2(r12 ^ t);
+                r10 ^= t;
+                s = t ^ r2 ^ r6;
+                w = (buffer[i + 36] & 0xFF) | (buffer[i + 37] & 0xFF) << 8 | (buffer[i + 38] & 0xFF) << 16 | buffer[i + 39] << 24;
+                w ^= s;
+                c9 = c9 ^ c11 ^ c8 ^ w;
+                r7 ^= w;
+                buffer[i + 36] = (byte) w;
+                buffer[i + 37] = (byte) (w >> 8);
+                buffer[i + 38] = (byte) (w >> 16);
+                buffer[i + 39] = (byte) (w >> 24);
+
+                t = sbox(r6 ^ r7 ^ k) ^ Integer.rotateLeft(r10, 1);
+                r10 = t;
+                t = sbox2(r13 ^ t);
+                r11 ^= t;
+                s = t ^ r3 ^ r7;
+                w = (buffer[i + 40] & 0xFF) | (buffer[i + 41] & 0xFF) << 8 | (buffer[i + 42] & 0xFF) << 16 | buffer[i + 43] << 24;
+                w ^= s;
+                c10 = c10 ^ c12 ^ c9 ^ w;
+                r8 ^= w;
+                buffer[i + 40] = (byte) w;
+                buffer[i + 41] = (byte) (w >> 8);
+                buffer[i + 42] = (byte) (w >> 16);
+                buffer[i + 43] = (byte) (w >> 24);
+
+                t = sbox(r7 ^ r8 ^ k) ^ Integer.rotateLeft(r11, 1);
+                r11 = t;
+                t = sbox2(r14 ^ t);
+                r12 ^= t;
+                s = t ^ r4 ^ r8;
+                w = (buffer[i + 44] & 0xFF) | (buffer[i + 45] & 0xFF) << 8 | (buffer[i + 46] & 0xFF) << 16 | buffer[i + 47] << 24;
+                w ^= s;
+                c11 = c11 ^ c13 ^ c10 ^ w;
+                r9 ^= w;
+                buffer[i + 44] = (byte) w;
+                buffer[i + 45] = (byte) (w >> 8);
+                buffer[i + 46] = (byte) (w >> 16);
+                buffer[i + 47] = (byte) (w >> 24);
+
+                t = sbox(r8 ^ r9 ^ k) ^ Integer.rotateLeft(r12, 1);
+                r12 = t;
+                t = sbox2(r15 ^ t);
+                r13 ^= t;
+                s = t ^ r5 ^ r9;
+                w = (buffer[i + 48] & 0xFF) | (buffer[i + 49] & 0xFF) << 8 | (buffer[i + 50] & 0xFF) << 16 | buffer[i + 51] << 24;
+                w ^= s;
+                c12 = c12 ^ c14 ^ c11 ^ w;
+                r10 ^= w;
+                buffer[i + 48] = (byte) w;
+                buffer[i + 49] = (byte) (w >> 8);
+                buffer[i + 50] = (byte) (w >> 16);
+                buffer[i + 51] = (byte) (w >> 24);
+
+                t = sbox(r9 ^ r10 ^ k) ^ Integer.rotateLeft(r13, 1);
+                r13 = t;
+                t = sbox2(r0 ^ t);
+                r14 ^= t;
+                s = t ^ r6 ^ r10;
+                w = (buffer[i + 52] & 0xFF) | (buffer[i + 53] & 0xFF) << 8 | (buffer[i + 54] & 0xFF) << 16 | buffer[i + 55] << 24;
+                w ^= s;
+                c13 = c13 ^ c15 ^ c12 ^ w;
+                r11 ^= w;
+                buffer[i + 52] = (byte) w;
+                buffer[i + 53] = (byte) (w >> 8);
+                buffer[i + 54] = (byte) (w >> 16);
+                buffer[i + 55] = (byte) (w >> 24);
+
+                t = sbox(r10 ^ r11 ^ k) ^ Integer.rotateLeft(r14, 1);
+                r14 = t;
+                t = sbox2(r1 ^ t);
+                r15 ^= t;
+                s = t ^ r7 ^ r11;
+                w = (buffer[i + 56] & 0xFF) | (buffer[i + 57] & 0xFF) << 8 | (buffer[i + 58] & 0xFF) << 16 | buffer[i + 59] << 24;
+                w ^= s;
+                c14 = c14 ^ c0 ^ c13 ^ w;
+                r12 ^= w;
+                buffer[i + 56] = (byte) w;
+                buffer[i + 57] = (byte) (w >> 8);
+                buffer[i + 58] = (byte) (w >> 16);
+                buffer[i + 59] = (byte) (w >> 24);
+
+                t = sbox(r11 ^ r12 ^ k) ^ Integer.rotateLeft(r15, 1);
+                r15 = t;
+                t = sbox2(r2 ^ t);
+                r0 ^= t;
+                s = t ^ r8 ^ r12;
+                w = (buffer[i + 60] & 0xFF) | (buffer[i + 61] & 0xFF) << 8 | (buffer[i + 62] & 0xFF) << 16 | buffer[i + 63] << 24;
+                w ^= s;
+                c15 = c15 ^ c1 ^ c14 ^ w;
+                r13 ^= w;
+                buffer[i + 60] = (byte) w;
+                buffer[i + 61] = (byte) (w >> 8);
+                buffer[i + 62] = (byte) (w >> 16);
+                buffer[i + 63] = (byte) (w >> 24);
+            }
+
+            R[0] = r0; R[1] = r1; R[2] = r2; R[3] = r3; R[4] = r4; R[5] = r5; R[6] = r6; R[7] = r7;
+            R[8] = r8; R[9] = r9; R[10] = r10; R[11] = r11; R[12] = r12; R[13] = r13; R[14] = r14; R[15] = r15;
+            CRC[0] = c0; CRC[1] = c1; CRC[2] = c2; CRC[3] = c3; CRC[4] = c4; CRC[5] = c5; CRC[6] = c6; CRC[7] = c7;
+            CRC[8] = c8; CRC[9] = c9; CRC[10] = c10; CRC[11] = c11; CRC[12] = c12; CRC[13] = c13; CRC[14] = c14; CRC[15] = c15;
+            sbuf = s;
+        }
+
+        /* Remaining words, one cycle at a time. */
+        for (; i < end; i += 4) {
+            this.cycle();
+
+            int t = (buffer[i] & 0xFF) | (buffer[i + 1] & 0xFF) << 8 | (buffer[i + 2] & 0xFF) << 16 | buffer[i + 3] << 24;
+            t ^= this.sbuf;
+            this.macFunc(t);
+
+            buffer[i] = (byte) t;
+            buffer[i + 1] = (byte) (t >> 8);
+            buffer[i + 2] = (byte) (t >> 16);
+            buffer[i + 3] = (byte) (t >> 24);
+        }
+
+        return i;
+    }
+
+    /*
+     * Combined MAC and encryption of the remaining bytes of the buffer, in place.
+     * Buffers without a backing array are processed through a temporary copy.
+     */
+    public void encrypt(ByteBuffer buffer) {
+        int n = buffer.remaining();
+        if (buffer.hasArray() && !buffer.isReadOnly()) {
+            this.encrypt(buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+            buffer.position(buffer.limit());
+        } else {
+            byte[] tmp = new byte[n];
+            buffer.duplicate().get(tmp);
+            this.encrypt(tmp, 0, n);
+            buffer.put(tmp);
+        }
+    }
+
+    /*
+     * Combined MAC and decryption of the remaining bytes of the buffer, in place.
+     * Buffers without a backing array are processed through a temporary copy.
+     */
+    public void decrypt(ByteBuffer buffer) {
+        int n = buffer.remaining();
+        if (buffer.hasArray() && !buffer.isReadOnly()) {
+            this.decrypt(buffer.array(), buffer.arrayOffset() + buffer.position(), n);
+            buffer.position(buffer.limit());
+        } else {
+            byte[] tmp = new byte[n];
+            buffer.duplicate().get(tmp);
+            this.decrypt(tmp, 0, n);
+            buffer.put(tmp);
+        }
+    }
+
     /*
      * Having accumulated a MAC, finish processing and return it.
      * Note that any unprocessed bytes are treated as if they were
@@ -19,6 +19,7 @@ package xyz.gianlu.librespot.dealer;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
 import com.spotify.clienttoken.data.v0.Connectivity;
 import com.spotify.clienttoken.http.v0.ClientToken;
 import com.spotify.connectstate.Connect;
@@ -32,6 +33,8 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xyz.gianlu.librespot.Version;
+import xyz.gianlu.librespot.cache.MetadataCache;
+import xyz.gianlu.librespot.common.SingleFlight;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.json.StationsWrapper;
 import xyz.gianlu.librespot.mercury.MercuryClient;
@@ -40,6 +43,8 @@ import xyz.gianlu.librespot.metadata.*;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import static com.spotify.canvaz.CanvazOuterClass.EntityCanvazRequest;
 import static com.spotify.canvaz.CanvazOuterClass.EntityCanvazResponse;
@@ -51,6 +56,7 @@ public final class ApiClient {
     private static final Logger LOGGER = LoggerFactory.getLogger(ApiClient.class);
     private final Session session;
     private final String baseUrl;
+    private final SingleFlight<String, BufferedResponse> coalescing = new SingleFlight<>();
     private String clientToken = null;
 
     public ApiClient(@NotNull Session session) {
@@ -95,7 +101,8 @@ public final class ApiClient {
     }
 
     /**
-     * Sends a request to the Spotify API.
+     * Sends a request to the Spotify API. Concurrent identical {@code GET} requests share the same round-trip, every
+     * caller gets its own copy of the buffered response.
      *
      * @param method  The request method
      * @param suffix  The suffix to be appended to {@link #baseUrl} also know as path
@@ -108,12 +115,42 @@ public final class ApiClient {
      */
     @NotNull
     public Response send(@NotNull String method, @NotNull String suffix, @Nullable Headers headers, @Nullable RequestBody body, int tries) throws IOException, MercuryClient.MercuryException {
+        if (body != null || !method.equals("GET"))
+            return sendUncoalesced(method, suffix, headers, body, tries);
+
+        String key = headers == null ? suffix : suffix + "\n" + headers;
+        CompletableFuture<BufferedResponse> future = coalescing.execute(key, () -> {
+            CompletableFuture<BufferedResponse> result = new CompletableFuture<>();
+            try (Response resp = sendUncoalesced(method, suffix, headers, null, tries)) {
+                result.complete(new BufferedResponse(resp));
+            } catch (IOException | MercuryClient.MercuryException | RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+
+            return result;
+        });
+
+        try {
+            return future.get().newResponse();
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            else if (cause instanceof MercuryClient.MercuryException) throw (MercuryClient.MercuryException) cause;
+            else throw new IOException(cause);
+        }
+    }
+
+    @NotNull
+    private Response sendUncoalesced(@NotNull String method, @NotNull String suffix, @Nullable Headers headers, @Nullable RequestBody body, int tries) throws IOException, MercuryClient.MercuryException {
         IOException lastEx;
         do {
             try {
                 Response resp = session.client().newCall(buildRequest(method, suffix, headers, body)).execute();
                 if (resp.code() == 503) {
                     lastEx = new StatusCodeException(resp);
+                    resp.close();
                     continue;
                 }
 
@@ -141,59 +178,58 @@ public final class ApiClient {
         }
     }
 
+    /**
+     * Retrieves metadata through the {@link MetadataCache}, revalidating stale entries with {@code If-None-Match}.
+     */
     @NotNull
-    public Metadata.Track getMetadata4Track(@NotNull TrackId track) throws IOException, MercuryClient.MercuryException {
-        try (Response resp = send("GET", "/metadata/4/track/" + track.hexId(), null, null)) {
+    @SuppressWarnings("unchecked")
+    private <M extends Message> M getMetadata4(@NotNull String type, @NotNull String hexId, @NotNull Parser<M> parser) throws IOException, MercuryClient.MercuryException {
+        MetadataCache cache = session.metadataCache();
+        MetadataCache.Entry entry = cache.get(type, hexId, parser);
+        if (entry != null && !entry.isStale()) return (M) entry.message;
+
+        Headers headers = null;
+        if (entry != null && entry.etag != null)
+            headers = new Headers.Builder().add("If-None-Match", entry.etag).build();
+
+        try (Response resp = send("GET", "/metadata/4/" + type + "/" + hexId, headers, null)) {
+            if (entry != null && resp.code() == 304)
+                return (M) cache.revalidated(type, hexId, entry).message;
+
             StatusCodeException.checkStatus(resp);
 
             ResponseBody body;
             if ((body = resp.body()) == null) throw new IOException();
-            return Metadata.Track.parseFrom(body.byteStream());
+            byte[] bytes = body.bytes();
+            M message = parser.parseFrom(bytes);
+            cache.put(type, hexId, message, resp.header("ETag"), bytes);
+            return message;
         }
     }
 
     @NotNull
-    public Metadata.Episode getMetadata4Episode(@NotNull EpisodeId episode) throws IOException, MercuryClient.MercuryException {
-        try (Response resp = send("GET", "/metadata/4/episode/" + episode.hexId(), null, null)) {
-            StatusCodeException.checkStatus(resp);
+    public Metadata.Track getMetadata4Track(@NotNull TrackId track) throws IOException, MercuryClient.MercuryException {
+        return getMetadata4("track", track.hexId(), Metadata.Track.parser());
+    }
 
-            ResponseBody body;
-            if ((body = resp.body()) == null) throw new IOException();
-            return Metadata.Episode.parseFrom(body.byteStream());
-        }
+    @NotNull
+    public Metadata.Episode getMetadata4Episode(@NotNull EpisodeId episode) throws IOException, MercuryClient.MercuryException {
+        return getMetadata4("episode", episode.hexId(), Metadata.Episode.parser());
     }
 
     @NotNull
     public Metadata.Album getMetadata4Album(@NotNull AlbumId album) throws IOException, MercuryClient.MercuryException {
-        try (Response resp = send("GET", "/metadata/4/album/" + album.hexId(), null, null)) {
-            StatusCodeException.checkStatus(resp);
-
-            ResponseBody body;
-            if ((body = resp.body()) == null) throw new IOException();
-            return Metadata.Album.parseFrom(body.byteStream());
-        }
+        return getMetadata4("album", album.hexId(), Metadata.Album.parser());
     }
 
     @NotNull
     public Metadata.Artist getMetadata4Artist(@NotNull ArtistId artist) throws IOException, MercuryClient.MercuryException {
-        try (Response resp = send("GET", "/metadata/4/artist/" + artist.hexId(), null, null)) {
-            StatusCodeException.checkStatus(resp);
-
-            ResponseBody body;
-            if ((body = resp.body()) == null) throw new IOException();
-            return Metadata.Artist.parseFrom(body.byteStream());
-        }
+        return getMetadata4("artist", artist.hexId(), Metadata.Artist.parser());
     }
 
     @NotNull
     public Metadata.Show getMetadata4Show(@NotNull ShowId show) throws IOException, MercuryClient.MercuryException {
-        try (Response resp = send("GET", "/metadata/4/show/" + show.hexId(), null, null)) {
-            StatusCodeException.checkStatus(resp);
-
-            ResponseBody body;
-            if ((body = resp.body()) == null) throw new IOException();
-            return Metadata.Show.parseFrom(body.byteStream());
-        }
+        return getMetadata4("show", show.hexId(), Metadata.Show.parser());
     }
 
     @NotNull
@@ -350,10 +386,40 @@ public final class ApiClient {
         }
     }
 
+    /**
+     * @return The counters of the coalesced {@code GET} requests
+     */
+    @NotNull
+    public SingleFlight<String, ?> coalescing() {
+        return coalescing;
+    }
+
     public void setClientToken(@Nullable String clientToken) {
         this.clientToken = clientToken;
     }
 
+    /**
+     * A response whose body has been read into memory, so that it can be handed to multiple callers.
+     */
+    private static final class BufferedResponse {
+        private final Response response;
+        private final byte[] body;
+        private final MediaType contentType;
+
+        BufferedResponse(@NotNull Response response) throws IOException {
+            ResponseBody body = response.body();
+            this.body = body == null ? null : body.bytes();
+            this.contentType = body == null ? null : body.contentType();
+            this.response = response;
+        }
+
+        @NotNull
+        Response newResponse() {
+            if (body == null) return response;
+            else return response.newBuilder().body(ResponseBody.create(body, contentType)).build();
+        }
+    }
+
     public static class StatusCodeException extends IOException {
         public final int code;
 
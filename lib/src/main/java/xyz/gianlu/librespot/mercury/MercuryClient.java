@@ -18,6 +18,7 @@ package xyz.gianlu.librespot.mercury;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.spotify.Mercury;
@@ -27,7 +28,9 @@ import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xyz.gianlu.librespot.common.BytesArrayList;
+import xyz.gianlu.librespot.common.NameThreadFactory;
 import xyz.gianlu.librespot.common.ProtobufToJson;
+import xyz.gianlu.librespot.common.SingleFlight;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.PacketsReceiver;
 import xyz.gianlu.librespot.core.Session;
@@ -40,24 +43,36 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Every request is tracked by a {@link CompletableFuture} with its own deadline. Deadlines are enforced by a single
+ * shared timer thread, and the pending entry and any partial response are dropped as soon as the future completes,
+ * whether by response, timeout or cancellation.
+ *
  * @author Gianlu
  */
 public final class MercuryClient implements PacketsReceiver, Closeable {
     private static final Logger LOGGER = LoggerFactory.getLogger(MercuryClient.class);
     private static final int MERCURY_REQUEST_TIMEOUT = 3000;
     private final AtomicInteger seqHolder = new AtomicInteger(1);
-    private final Map<Long, Callback> callbacks = Collections.synchronizedMap(new HashMap<>());
-    private final Object removeCallbackLock = new Object();
+    private final Map<Long, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+    private final Lock removeCallbackLock = new ReentrantLock();
+    private final Condition callbackRemoved = removeCallbackLock.newCondition();
     private final List<InternalSubListener> subscriptions = Collections.synchronizedList(new ArrayList<>());
-    private final Map<Long, BytesArrayList> partials = new HashMap<>();
+    private final Map<Long, BytesArrayList> partials = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timeoutScheduler;
+    private final SingleFlight<ByteString, Response> coalescing = new SingleFlight<>();
     private final Session session;
 
     public MercuryClient(@NotNull Session session) {
         this.session = session;
+        this.timeoutScheduler = new ScheduledThreadPoolExecutor(1, new NameThreadFactory((r) -> "mercury-timeout-" + r.hashCode()));
+        this.timeoutScheduler.setRemoveOnCancelPolicy(true);
     }
 
     public void subscribe(@NotNull String uri, @NotNull SubListener listener) throws IOException, PubSubException {
@@ -86,17 +101,16 @@ public final class MercuryClient implements PacketsReceiver, Closeable {
 
     @NotNull
     public Response sendSync(@NotNull RawMercuryRequest request) throws IOException {
-        SyncCallback callback = new SyncCallback();
-        int seq = send(request, callback);
+        CompletableFuture<Response> future = sendAsync(request);
 
         try {
-            Response resp = callback.waitResponse();
-            if (resp == null)
-                throw new IOException(String.format("Request timeout out, %d passed, yet no response. {seq: %d}", MERCURY_REQUEST_TIMEOUT, seq));
-
-            return resp;
+            return future.get();
         } catch (InterruptedException ex) {
+            future.cancel(false);
             throw new IOException(ex); // Wrapping to avoid having to dispatch yet another exception down the call stack
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            else throw new IOException(ex.getCause());
         }
     }
 
@@ -107,66 +121,148 @@ public final class MercuryClient implements PacketsReceiver, Closeable {
         else throw new MercuryException(resp);
     }
 
-    public <W extends JsonWrapper> void send(@NotNull JsonMercuryRequest<W> request, @NotNull JsonCallback<W> callback) {
+    /**
+     * Sends the request with the default timeout of {@value MERCURY_REQUEST_TIMEOUT} milliseconds.
+     */
+    @NotNull
+    public CompletableFuture<Response> sendAsync(@NotNull RawMercuryRequest request) {
+        return sendAsync(request, MERCURY_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Sends the request without blocking. The returned future fails with an {@link IOException} if no response arrives
+     * within {@param timeoutMs}, cancelling it forgets about the request. Concurrent identical {@code GET} requests
+     * share the same response.
+     */
+    @NotNull
+    public CompletableFuture<Response> sendAsync(@NotNull RawMercuryRequest request, long timeoutMs) {
+        if (request.payload.length == 0 && "GET".equalsIgnoreCase(request.header.getMethod()))
+            return coalescing.execute(request.header.toByteString(), () -> sendUncoalesced(request, timeoutMs));
+        else
+            return sendUncoalesced(request, timeoutMs);
+    }
+
+    @NotNull
+    private CompletableFuture<Response> sendUncoalesced(@NotNull RawMercuryRequest request, long timeoutMs) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
         try {
-            send(request.request, resp -> {
-                if (resp.statusCode >= 200 && resp.statusCode < 300) callback.response(request.instantiate(resp));
-                else callback.exception(new MercuryException(resp));
-            });
+            send(request, future, timeoutMs);
         } catch (IOException ex) {
-            callback.exception(ex);
+            future.completeExceptionally(ex);
         }
+
+        return future;
+    }
+
+    /**
+     * Sends the request without blocking, the future fails with a {@link MercuryException} for non-2xx responses.
+     */
+    @NotNull
+    public <W extends JsonWrapper> CompletableFuture<W> sendAsync(@NotNull JsonMercuryRequest<W> request) {
+        return sendAsync(request.request).thenApply(resp -> {
+            if (resp.statusCode >= 200 && resp.statusCode < 300) return request.instantiate(resp);
+            else throw new CompletionException(new MercuryException(resp));
+        });
+    }
+
+    public <W extends JsonWrapper> void send(@NotNull JsonMercuryRequest<W> request, @NotNull JsonCallback<W> callback) {
+        sendAsync(request).whenComplete((json, ex) -> {
+            if (ex == null) callback.response(json);
+            else callback.exception(unwrap(ex));
+        });
     }
 
     public <P extends Message> void send(@NotNull ProtobufMercuryRequest<P> request, @NotNull ProtoCallback<P> callback) {
-        try {
-            send(request.request, resp -> {
-                if (resp.statusCode >= 200 && resp.statusCode < 300) {
-                    try {
-                        callback.response(new ProtoWrapperResponse<>(request.parser.parseFrom(resp.payload.stream())));
-                    } catch (InvalidProtocolBufferException ex) {
-                        callback.exception(ex);
-                    }
-                } else {
-                    callback.exception(new MercuryException(resp));
+        sendAsync(request.request).whenComplete((resp, ex) -> {
+            if (ex != null) {
+                callback.exception(unwrap(ex));
+            } else if (resp.statusCode >= 200 && resp.statusCode < 300) {
+                try {
+                    callback.response(new ProtoWrapperResponse<>(request.parser.parseFrom(resp.payload.stream())));
+                } catch (IOException iex) {
+                    callback.exception(iex);
                 }
-            });
-        } catch (IOException ex) {
-            callback.exception(ex);
-        }
+            } else {
+                callback.exception(new MercuryException(resp));
+            }
+        });
     }
 
     public int send(@NotNull RawMercuryRequest request, @NotNull Callback callback) throws IOException {
-        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-        DataOutputStream out = new DataOutputStream(bytesOut);
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        int seq = send(request, future, MERCURY_REQUEST_TIMEOUT);
+        future.whenComplete((resp, ex) -> {
+            if (resp != null) callback.response(resp);
+            else callback.exception(unwrap(ex));
+        });
+
+        return seq;
+    }
+
+    private int send(@NotNull RawMercuryRequest request, @NotNull CompletableFuture<Response> future, long timeoutMs) throws IOException {
+        long seq = seqHolder.getAndIncrement();
 
-        int seq;
-        synchronized (seqHolder) {
-            seq = seqHolder.getAndIncrement();
+        ScheduledFuture<?> timeout;
+        try {
+            timeout = timeoutScheduler.schedule(() -> {
+                future.completeExceptionally(new IOException(String.format("Request timeout out, %d passed, yet no response. {seq: %d}", timeoutMs, seq)));
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            throw new IOException("Mercury client is closed!");
         }
 
+        pending.put(seq, future);
+        future.whenComplete((resp, ex) -> {
+            timeout.cancel(false);
+            if (ex != null) {
+                pending.remove(seq, future);
+                partials.remove(seq);
+            }
+        });
+
         LOGGER.trace("Send Mercury request, seq: {}, uri: {}, method: {}", seq, request.header.getUri(), request.header.getMethod());
 
-        out.writeShort((short) 4); // Seq length
-        out.writeInt(seq); // Seq
+        try {
+            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytesOut);
+
+            out.writeShort((short) 4); // Seq length
+            out.writeInt((int) seq); // Seq
 
-        out.writeByte(1); // Flags
-        out.writeShort(1 + request.payload.length); // Parts count
+            out.writeByte(1); // Flags
+            out.writeShort(1 + request.payload.length); // Parts count
 
-        byte[] headerBytes = request.header.toByteArray();
-        out.writeShort(headerBytes.length); // Header length
-        out.write(headerBytes); // Header
+            byte[] headerBytes = request.header.toByteArray();
+            out.writeShort(headerBytes.length); // Header length
+            out.write(headerBytes); // Header
 
-        for (byte[] part : request.payload) { // Parts
-            out.writeShort(part.length);
-            out.write(part);
+            for (byte[] part : request.payload) { // Parts
+                out.writeShort(part.length);
+                out.write(part);
+            }
+
+            Packet.Type cmd = Packet.Type.forMethod(request.header.getMethod());
+            session.send(cmd, bytesOut.toByteArray());
+        } catch (IOException ex) {
+            future.completeExceptionally(ex);
+            throw ex;
         }
 
-        Packet.Type cmd = Packet.Type.forMethod(request.header.getMethod());
-        session.send(cmd, bytesOut.toByteArray());
+        return (int) seq;
+    }
 
-        callbacks.put((long) seq, callback);
-        return seq;
+    /**
+     * @return The counters of the coalesced {@code GET} requests
+     */
+    @NotNull
+    public SingleFlight<ByteString, Response> coalescing() {
+        return coalescing;
+    }
+
+    @NotNull
+    private static Exception unwrap(@NotNull Throwable ex) {
+        if (ex instanceof CompletionException && ex.getCause() != null) ex = ex.getCause();
+        return ex instanceof Exception ? (Exception) ex : new IOException(ex);
     }
 
     @Override
@@ -225,14 +321,17 @@ public final class MercuryClient implements PacketsReceiver, Closeable {
             if (!dispatched)
                 LOGGER.debug("Couldn't dispatch Mercury event {seq: {}, uri: {}, code: {}, payload: {}}", seq, header.getUri(), header.getStatusCode(), resp.payload.toHex());
         } else if (packet.is(Packet.Type.MercuryReq) || packet.is(Packet.Type.MercurySub) || packet.is(Packet.Type.MercuryUnsub)) {
-            Callback callback = callbacks.remove(seq);
-            if (callback != null)
-                callback.response(resp);
+            CompletableFuture<Response> future = pending.remove(seq);
+            if (future != null)
+                future.complete(resp);
             else
                 LOGGER.warn("Skipped Mercury response, seq: {}, uri: {}, code: {}", seq, header.getUri(), header.getStatusCode());
 
-            synchronized (removeCallbackLock) {
-                removeCallbackLock.notifyAll();
+            removeCallbackLock.lock();
+            try {
+                callbackRemoved.signalAll();
+            } finally {
+                removeCallbackLock.unlock();
             }
         } else {
             LOGGER.warn("Couldn't handle packet, seq: {}, uri: {}, code: {}", seq, header.getUri(), header.getStatusCode());
@@ -260,16 +359,22 @@ public final class MercuryClient implements PacketsReceiver, Closeable {
             }
         }
 
-        if (!callbacks.isEmpty()) {
-            synchronized (removeCallbackLock) {
-                try {
-                    removeCallbackLock.wait(MERCURY_REQUEST_TIMEOUT + 100);
-                } catch (InterruptedException ignored) {
-                }
+        if (!pending.isEmpty()) {
+            removeCallbackLock.lock();
+            try {
+                callbackRemoved.await(MERCURY_REQUEST_TIMEOUT + 100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignored) {
+            } finally {
+                removeCallbackLock.unlock();
             }
         }
 
-        callbacks.clear();
+        timeoutScheduler.shutdownNow();
+        for (CompletableFuture<Response> future : new ArrayList<>(pending.values()))
+            future.completeExceptionally(new IOException("Mercury client is closed!"));
+
+        pending.clear();
+        partials.clear();
     }
 
     public interface JsonCallback<W extends JsonWrapper> {
@@ -286,25 +391,12 @@ public final class MercuryClient implements PacketsReceiver, Closeable {
 
     public interface Callback {
         void response(@NotNull Response response);
-    }
-
-    private static class SyncCallback implements Callback {
-        private final AtomicReference<Response> reference = new AtomicReference<>();
-
-        @Override
-        public void response(@NotNull Response response) {
-            synchronized (reference) {
-                reference.set(response);
-                reference.notifyAll();
-            }
-        }
 
-        @Nullable
-        Response waitResponse() throws InterruptedException {
-            synchronized (reference) {
-                reference.wait(MERCURY_REQUEST_TIMEOUT);
-                return reference.get();
-            }
+        /**
+         * Called if the request times out or the connection fails, only logs by default.
+         */
+        default void exception(@NotNull Exception ex) {
+            LOGGER.warn("Mercury request failed.", ex);
         }
     }
 
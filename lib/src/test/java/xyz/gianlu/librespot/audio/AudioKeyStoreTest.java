@@ -0,0 +1,84 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.audio;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class AudioKeyStoreTest {
+
+    @Test
+    void testRoundTrip(@TempDir File dir) throws IOException {
+        AudioKeyStore store = new AudioKeyStore(dir, "user");
+        Assertions.assertTrue(store.load().isEmpty());
+
+        Random random = new Random(42);
+        Map<String, byte[]> keys = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] key = new byte[16];
+            random.nextBytes(key);
+            keys.put("gid" + i + ":file" + i, key);
+        }
+
+        store.save(keys);
+
+        byte[] raw = Files.readAllBytes(new File(dir, AudioKeyStore.FILE_NAME).toPath());
+        for (byte[] key : keys.values())
+            Assertions.assertFalse(new String(raw, "ISO-8859-1").contains(new String(key, "ISO-8859-1")));
+
+        Map<String, byte[]> loaded = new AudioKeyStore(dir, "user").load();
+        Assertions.assertEquals(keys.keySet(), loaded.keySet());
+        for (Map.Entry<String, byte[]> entry : keys.entrySet())
+            Assertions.assertArrayEquals(entry.getValue(), loaded.get(entry.getKey()));
+    }
+
+    @Test
+    void testKeyGeneratedOnce(@TempDir File dir) throws IOException {
+        Map<String, byte[]> keys = new LinkedHashMap<>();
+        keys.put("gid:file", new byte[16]);
+
+        new AudioKeyStore(dir, "user").save(keys);
+        File keyFile = new File(dir, AudioKeyStore.KEY_FILE_NAME);
+        byte[] key = Files.readAllBytes(keyFile.toPath());
+        Assertions.assertEquals(16, key.length);
+
+        new AudioKeyStore(dir, "user").save(keys);
+        Assertions.assertArrayEquals(key, Files.readAllBytes(keyFile.toPath()));
+        Assertions.assertEquals(1, new AudioKeyStore(dir, "user").load().size());
+
+        Assertions.assertTrue(keyFile.delete());
+        Assertions.assertThrows(IOException.class, () -> new AudioKeyStore(dir, "user").load());
+    }
+
+    @Test
+    void testWrongUser(@TempDir File dir) throws IOException {
+        Map<String, byte[]> keys = new LinkedHashMap<>();
+        keys.put("gid:file", new byte[16]);
+        new AudioKeyStore(dir, "user").save(keys);
+
+        Assertions.assertThrows(IOException.class, () -> new AudioKeyStore(dir, "another").load());
+    }
+}
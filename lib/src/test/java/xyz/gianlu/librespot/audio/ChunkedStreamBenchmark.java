@@ -0,0 +1,95 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.audio;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Measures how fast a single reader can consume a stream while its chunks arrive concurrently from many threads.
+ * Run with {@code mvn -pl lib test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=xyz.gianlu.librespot.audio.ChunkedStreamBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkedStreamBenchmark {
+    private static final int CHUNKS = 64;
+    @Param({"1", "4", "16"})
+    public int arrivalThreads;
+    private ExecutorService executor;
+    private byte[] buffer;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ChunkedStreamBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        executor = Executors.newFixedThreadPool(arrivalThreads);
+        buffer = new byte[4096];
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public int readWhileArriving() throws IOException {
+        AbsChunkedInputStream stream = new MockChunkedStream(CHUNKS * CHUNK_SIZE, executor).stream();
+
+        int total = 0, read;
+        while ((read = stream.read(buffer)) != -1)
+            total += read;
+
+        stream.close();
+        return total;
+    }
+
+    @Benchmark
+    public int readWhileObserved() throws IOException, InterruptedException {
+        AbsChunkedInputStream stream = new MockChunkedStream(CHUNKS * CHUNK_SIZE, executor).stream();
+
+        Thread observer = new Thread(() -> {
+            while (!stream.isClosed()) {
+                for (int i = 0; i < CHUNKS; i++)
+                    stream.isChunkAvailable(i);
+            }
+        });
+        observer.start();
+
+        int total = 0, read;
+        while ((read = stream.read(buffer)) != -1)
+            total += read;
+
+        stream.close();
+        observer.join();
+        return total;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.audio;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
+
+public class ChunkedStreamTest {
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testConcurrentArrivals() throws IOException {
+        int size = CHUNK_SIZE * 40 + 1234;
+        MockChunkedStream source = new MockChunkedStream(size, executor);
+        AbsChunkedInputStream stream = source.stream();
+
+        byte[] buf = new byte[4096];
+        int pos = 0, read;
+        while ((read = stream.read(buf)) != -1) {
+            for (int i = 0; i < read; i++)
+                Assertions.assertEquals(MockChunkedStream.expected(pos + i), buf[i]);
+
+            pos += read;
+        }
+
+        Assertions.assertEquals(size, pos);
+        Assertions.assertEquals(size, stream.decodedLength());
+        Assertions.assertEquals(41, source.requests.get(), "Every chunk must be requested exactly once");
+    }
+
+    @Test
+    void testSeekAndRetry() throws IOException {
+        MockChunkedStream source = new MockChunkedStream(CHUNK_SIZE * 10, executor);
+        source.failuresLeft.set(1);
+        AbsChunkedInputStream stream = source.stream();
+
+        stream.seek(CHUNK_SIZE * 5 + 7);
+        Assertions.assertEquals(MockChunkedStream.expected(CHUNK_SIZE * 5 + 7) & 0xff, stream.read());
+        Assertions.assertTrue(stream.isChunkAvailable(5));
+        Assertions.assertFalse(stream.isChunkAvailable(0));
+    }
+
+    @Test
+    void testCloseWakesReader() throws InterruptedException {
+        AbsChunkedInputStream stream = new MockChunkedStream(CHUNK_SIZE * 4, command -> {
+        }).stream();
+
+        AtomicReference<Exception> thrown = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                stream.read();
+            } catch (IOException ex) {
+                thrown.set(ex);
+            }
+        });
+        reader.start();
+        Thread.sleep(100);
+        stream.close();
+        reader.join(1000);
+        Assertions.assertFalse(reader.isAlive());
+        Assertions.assertNotNull(thrown.get());
+    }
+
+    @Test
+    void testReadAheadWindow() {
+        int lan = ReadAheadWindow.computeWindow(160_000, 10_000, 5);
+        int slow = ReadAheadWindow.computeWindow(160_000, 10_000, 4_000);
+        Assertions.assertTrue(slow > lan, "Slow links must read further ahead");
+        Assertions.assertTrue(ReadAheadWindow.computeWindow(320_000, 10_000, 5) > lan, "Higher bitrates must read further ahead");
+        Assertions.assertEquals(ReadAheadWindow.MAX_CHUNKS, ReadAheadWindow.computeWindow(320_000, 10_000, 60_000));
+        Assertions.assertEquals(ReadAheadWindow.MIN_CHUNKS, ReadAheadWindow.computeWindow(24_000, 100, 1));
+
+        ReadAheadWindow window = new ReadAheadWindow(4, 160_000, 10_000);
+        Assertions.assertEquals(ReadAheadWindow.INITIAL_CHUNKS, window.window());
+        Assertions.assertEquals(-1, window.throughput());
+        window.onRequested(1);
+        window.onAvailable(1, CHUNK_SIZE);
+        Assertions.assertTrue(window.throughput() > 0);
+        Assertions.assertEquals(lan, window.window());
+    }
+
+    @Test
+    void testBuffersReturnedToPool() throws IOException {
+        ChunkBufferPool pool = ChunkBufferPool.get();
+        AbsChunkedInputStream stream = new MockChunkedStream(CHUNK_SIZE * 4, executor).stream();
+
+        byte[] buf = new byte[CHUNK_SIZE];
+        while (stream.read(buf) != -1) ;
+
+        long releases = pool.releases() + pool.discards();
+        stream.close();
+        Assertions.assertEquals(releases + 4, pool.releases() + pool.discards());
+        Assertions.assertThrows(IOException.class, stream::read);
+
+        long allocations = pool.allocations();
+        stream = new MockChunkedStream(CHUNK_SIZE * 4, executor).stream();
+        while (stream.read(buf) != -1) ;
+        Assertions.assertEquals(allocations, pool.allocations(), "Buffers should be reused");
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.audio;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * A source of chunks filled with a predictable pattern by the given executor.
+ */
+class MockChunkedStream {
+    final AtomicInteger requests = new AtomicInteger();
+    final AtomicInteger failuresLeft = new AtomicInteger();
+    private final int size;
+    private final int chunks;
+    private final byte[][] buffer;
+    private final Executor executor;
+    private final InternalStream stream;
+
+    MockChunkedStream(int size, Executor executor) {
+        this.size = size;
+        this.chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.buffer = new byte[chunks][];
+        this.executor = executor;
+        this.stream = new InternalStream();
+    }
+
+    static byte expected(int pos) {
+        return (byte) (pos * 31 + (pos >>> 8));
+    }
+
+    AbsChunkedInputStream stream() {
+        return stream;
+    }
+
+    private void fill(int index) {
+        if (failuresLeft.getAndUpdate(i -> Math.max(0, i - 1)) > 0) {
+            stream.notifyChunkError(index, new AbsChunkedInputStream.ChunkException(new Exception("Simulated failure")));
+            return;
+        }
+
+        int length = Math.min(CHUNK_SIZE, size - index * CHUNK_SIZE);
+        byte[] chunk = length == CHUNK_SIZE ? ChunkBufferPool.get().acquire() : new byte[length];
+        for (int i = 0; i < chunk.length; i++)
+            chunk[i] = expected(index * CHUNK_SIZE + i);
+
+        buffer[index] = chunk;
+        stream.notifyChunkAvailable(index);
+    }
+
+    private class InternalStream extends AbsChunkedInputStream {
+
+        InternalStream() {
+            super(false);
+        }
+
+        @Override
+        protected byte[][] buffer() {
+            return buffer;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        protected int chunks() {
+            return chunks;
+        }
+
+        @Override
+        protected void requestChunkFromStream(int index) {
+            requests.incrementAndGet();
+            executor.execute(() -> fill(index));
+        }
+
+        @Override
+        public void streamReadHalted(int chunk, long time) {
+        }
+
+        @Override
+        public void streamReadResumed(int chunk, long time) {
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.audio.cdn;
+
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+public class CdnHostRegistryTest {
+    private static final int BODY_SIZE = 64 * 1024;
+    private final List<HttpServer> servers = new ArrayList<>();
+    private OkHttpClient client;
+    private HttpUrl fast;
+    private HttpUrl slow;
+    private HttpUrl failing;
+
+    private static HttpHandler partialContent(long delayMs) {
+        return exchange -> {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException ignored) {
+            }
+
+            exchange.getResponseHeaders().add("Content-Range", "bytes 0-" + (BODY_SIZE - 1) + "/" + BODY_SIZE);
+            exchange.sendResponseHeaders(206, BODY_SIZE);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(new byte[BODY_SIZE]);
+            }
+        };
+    }
+
+    private HttpUrl start(HttpHandler handler) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", handler);
+        server.start();
+        servers.add(server);
+        return HttpUrl.get("http://127.0.0.1:" + server.getAddress().getPort() + "/audio/file");
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        client = new OkHttpClient();
+        fast = start(partialContent(0));
+        slow = start(partialContent(150));
+        failing = start(exchange -> {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (HttpServer server : servers) server.stop(0);
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    /**
+     * Performs a range request measuring it like {@link CdnManager.Streamer} does.
+     */
+    private void fetch(CdnHostRegistry registry, HttpUrl url) {
+        CdnHostRegistry.Sample sample = registry.track(url);
+        try (Response resp = client.newCall(new Request.Builder().url(url).header("Range", "bytes=0-" + (BODY_SIZE - 1)).build()).execute()) {
+            sample.responded();
+            if (resp.code() != 206) throw new IOException(resp.code() + ": " + resp.message());
+
+            ResponseBody body = resp.body();
+            if (body == null) throw new IOException("Response body is empty!");
+            sample.completed(body.bytes().length);
+        } catch (IOException ex) {
+            sample.failed();
+        }
+    }
+
+    @Test
+    void testPrefersHealthyHosts() {
+        CdnHostRegistry registry = new CdnHostRegistry(new Random(42));
+        for (int i = 0; i < 5; i++) {
+            fetch(registry, fast);
+            fetch(registry, slow);
+            fetch(registry, failing);
+        }
+
+        Map<String, CdnHostRegistry.HostStats> stats = registry.stats();
+        Assertions.assertEquals(3, stats.size());
+
+        CdnHostRegistry.HostStats fastStats = stats.get(CdnHostRegistry.hostOf(fast));
+        CdnHostRegistry.HostStats slowStats = stats.get(CdnHostRegistry.hostOf(slow));
+        CdnHostRegistry.HostStats failingStats = stats.get(CdnHostRegistry.hostOf(failing));
+        Assertions.assertEquals(5, fastStats.requests());
+        Assertions.assertEquals(0, fastStats.errorRate());
+        Assertions.assertEquals(1, failingStats.errorRate());
+        Assertions.assertEquals(5, failingStats.consecutiveFailures());
+        Assertions.assertTrue(slowStats.latencyMs() >= 150, slowStats.toString());
+        Assertions.assertTrue(fastStats.latencyMs() < slowStats.latencyMs(), fastStats + " " + slowStats);
+        Assertions.assertTrue(fastStats.throughput() > 0);
+
+        Map<HttpUrl, Integer> picks = new HashMap<>();
+        List<HttpUrl> candidates = Arrays.asList(fast, slow, failing);
+        for (int i = 0; i < 1000; i++)
+            picks.merge(registry.select(candidates, null), 1, Integer::sum);
+
+        int fastPicks = picks.getOrDefault(fast, 0);
+        int slowPicks = picks.getOrDefault(slow, 0);
+        int failingPicks = picks.getOrDefault(failing, 0);
+        Assertions.assertTrue(fastPicks > slowPicks, picks.toString());
+        Assertions.assertTrue(slowPicks > failingPicks, picks.toString());
+        Assertions.assertTrue(failingPicks < 10, picks.toString());
+    }
+
+    @Test
+    void testFailover() {
+        CdnHostRegistry registry = new CdnHostRegistry(new Random(42));
+        List<HttpUrl> candidates = Arrays.asList(fast, slow, failing);
+
+        fetch(registry, failing);
+        fetch(registry, failing);
+        for (int i = 0; i < 100; i++) {
+            HttpUrl next = registry.select(candidates, failing);
+            Assertions.assertNotEquals(failing, next);
+        }
+
+        Assertions.assertEquals(failing, registry.select(Collections.singletonList(failing), failing));
+
+        HttpUrl knownIssues = HttpUrl.get("https://audio4-gm-fb.spotifycdn.com/audio/file");
+        for (int i = 0; i < 100; i++)
+            Assertions.assertEquals(fast, registry.select(Arrays.asList(knownIssues, fast), null));
+
+        Assertions.assertEquals(knownIssues, registry.select(Collections.singletonList(knownIssues), null));
+        Assertions.assertFalse(registry.stats().containsKey(knownIssues.host()));
+    }
+}
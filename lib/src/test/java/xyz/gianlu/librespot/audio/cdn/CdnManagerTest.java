@@ -0,0 +1,171 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.audio.cdn;
+
+import com.google.protobuf.ByteString;
+import com.spotify.metadata.Metadata;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import xyz.gianlu.librespot.audio.AbsChunkedInputStream;
+import xyz.gianlu.librespot.audio.decrypt.AesAudioDecrypt;
+import xyz.gianlu.librespot.core.Session;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Streams a file through a {@link CdnManager.Streamer} from a host that stops working after the first chunk.
+ */
+public class CdnManagerTest {
+    private static final int SIZE = CHUNK_SIZE * 6 + 1234;
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final byte[] data = new byte[SIZE];
+    private final byte[] key = new byte[16];
+    private final AtomicInteger flakyRequests = new AtomicInteger(0);
+    private final AtomicInteger healthyRequests = new AtomicInteger(0);
+    private OkHttpClient client;
+    private HttpUrl flaky;
+    private HttpUrl healthy;
+
+    /**
+     * Serves the requested range of {@link #data}.
+     */
+    private void serveRange(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String[] split = range.substring("bytes=".length()).split("-");
+        int start = Integer.parseInt(split[0]);
+        int end = Math.min(Integer.parseInt(split[1]), SIZE - 1);
+
+        exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + SIZE);
+        exchange.sendResponseHeaders(206, end - start + 1);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data, start, end - start + 1);
+        }
+    }
+
+    /**
+     * @param failing Whether the server should answer slowly with an error to anything but the first chunk
+     */
+    private HttpUrl start(AtomicInteger requests, boolean failing) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            if (failing && !exchange.getRequestHeaders().getFirst("Range").startsWith("bytes=0-")) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                }
+
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            } else {
+                serveRange(exchange);
+            }
+        });
+        server.start();
+        servers.add(server);
+        return HttpUrl.get("http://127.0.0.1:" + server.getAddress().getPort() + "/audio/file?__token__=exp=9999999999~hmac=00");
+    }
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Random random = new Random(7);
+        random.nextBytes(data);
+        random.nextBytes(key);
+
+        client = new OkHttpClient();
+        flaky = start(flakyRequests, true);
+        healthy = start(healthyRequests, false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (HttpServer server : servers) server.stop(0);
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    @Test
+    void testStreamerSwitchesHost() throws Exception {
+        // Always pick the first usable candidate, so the stream starts on the flaky host
+        CdnHostRegistry hosts = new CdnHostRegistry(new Random() {
+            @Override
+            public double nextDouble() {
+                return 0;
+            }
+        });
+
+        Session.Configuration conf = new Session.Configuration.Builder().build();
+        CdnManager manager = new CdnManager(null, client, conf, hosts);
+
+        Metadata.AudioFile file = Metadata.AudioFile.newBuilder()
+                .setFileId(ByteString.copyFrom(new byte[20]))
+                .setFormat(Metadata.AudioFile.Format.OGG_VORBIS_160)
+                .build();
+
+        CdnManager.Streamer streamer = manager.streamFile(file, key, Arrays.asList(flaky, healthy), null);
+        Assertions.assertEquals(SIZE, streamer.size());
+        Assertions.assertEquals(0, healthyRequests.get());
+
+        byte[] expected = new byte[SIZE];
+        AesAudioDecrypt decrypt = new AesAudioDecrypt(key);
+        for (int i = 0; i * CHUNK_SIZE < SIZE; i++) {
+            byte[] chunk = Arrays.copyOfRange(data, i * CHUNK_SIZE, Math.min(SIZE, (i + 1) * CHUNK_SIZE));
+            decrypt.decryptChunk(i, chunk);
+            System.arraycopy(chunk, 0, expected, i * CHUNK_SIZE, chunk.length);
+        }
+
+        AbsChunkedInputStream stream = streamer.stream();
+        try {
+            byte[] actual = new byte[SIZE];
+            int read = 0;
+            while (read < SIZE) {
+                int count = stream.read(actual, read, SIZE - read);
+                Assertions.assertTrue(count > 0);
+                read += count;
+            }
+
+            Assertions.assertEquals(-1, stream.read());
+            Assertions.assertArrayEquals(expected, actual);
+        } finally {
+            stream.close();
+        }
+
+        Assertions.assertTrue(flakyRequests.get() >= 2, "flaky: " + flakyRequests);
+        Assertions.assertTrue(healthyRequests.get() >= 1, "healthy: " + healthyRequests);
+
+        CdnHostRegistry.HostStats flakyStats = hosts.stats().get(CdnHostRegistry.hostOf(flaky));
+        CdnHostRegistry.HostStats healthyStats = hosts.stats().get(CdnHostRegistry.hostOf(healthy));
+        Assertions.assertTrue(flakyStats.errorRate() > 0, flakyStats.toString());
+        Assertions.assertEquals(0, healthyStats.errorRate(), healthyStats.toString());
+    }
+}
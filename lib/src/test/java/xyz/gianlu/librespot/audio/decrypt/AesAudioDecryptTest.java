@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.audio.decrypt;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
+
+public class AesAudioDecryptTest {
+
+    @Test
+    void testByteBufferMatchesArray() throws IOException {
+        Random random = new Random(42);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+
+        for (int length : new int[]{CHUNK_SIZE, 12345}) {
+            byte[] encrypted = new byte[length];
+            random.nextBytes(encrypted);
+
+            byte[] expected = encrypted.clone();
+            new AesAudioDecrypt(key).decryptChunk(3, expected);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(length);
+            direct.put(encrypted).flip();
+            ByteBuffer in = direct.asReadOnlyBuffer();
+
+            byte[] actual = new byte[length];
+            new AesAudioDecrypt(key).decryptChunk(3, in, actual);
+            Assertions.assertArrayEquals(expected, actual);
+            Assertions.assertEquals(length, in.remaining());
+        }
+    }
+
+    @Test
+    void testMatchesLegacy() throws IOException {
+        Random random = new Random(7);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+
+        AesAudioDecrypt decrypt = new AesAudioDecrypt(key);
+        LegacyAesAudioDecrypt legacy = new LegacyAesAudioDecrypt(key);
+        for (int index : new int[]{0, 1, 2, 100, 12345}) {
+            byte[] encrypted = new byte[index == 2 ? 5000 : CHUNK_SIZE];
+            random.nextBytes(encrypted);
+
+            byte[] expected = encrypted.clone();
+            legacy.decryptChunk(index, expected);
+
+            byte[] actual = encrypted.clone();
+            decrypt.decryptChunk(index, actual);
+            Assertions.assertArrayEquals(expected, actual, "Chunk " + index);
+        }
+    }
+
+    @Test
+    void testCounter() {
+        BigInteger iv = new BigInteger(1, AesAudioDecrypt.counterFor(0));
+        Assertions.assertEquals("72e067fbddcbcf77ebe8bc643f630d93", iv.toString(16));
+
+        for (int index : new int[]{1, 1000, Integer.MAX_VALUE}) {
+            BigInteger expected = iv.add(BigInteger.valueOf((long) CHUNK_SIZE * index / 16));
+            Assertions.assertEquals(expected, new BigInteger(1, AesAudioDecrypt.counterFor(index)));
+        }
+    }
+
+    @Test
+    void testConcurrentChunks() throws Exception {
+        Random random = new Random(3);
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+
+        byte[][] chunks = new byte[32][CHUNK_SIZE];
+        byte[][] expected = new byte[chunks.length][];
+        LegacyAesAudioDecrypt legacy = new LegacyAesAudioDecrypt(key);
+        for (int i = 0; i < chunks.length; i++) {
+            random.nextBytes(chunks[i]);
+            expected[i] = chunks[i].clone();
+            legacy.decryptChunk(i, expected[i]);
+        }
+
+        AesAudioDecrypt decrypt = new AesAudioDecrypt(key);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < chunks.length; i++) {
+                int index = i;
+                futures.add(executor.submit(() -> {
+                    decrypt.decryptChunk(index, chunks[index]);
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int i = 0; i < chunks.length; i++)
+            Assertions.assertArrayEquals(expected[i], chunks[i], "Chunk " + i);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.audio.decrypt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Compares the chunk decryption throughput of {@link AesAudioDecrypt} with the original implementation. Every
+ * operation decrypts one chunk, multiply the score by {@link xyz.gianlu.librespot.audio.storage.ChannelManager#CHUNK_SIZE}
+ * to get the throughput in bytes.
+ * Run with {@code mvn -pl lib test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=xyz.gianlu.librespot.audio.decrypt.AesDecryptBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AesDecryptBenchmark {
+    private AesAudioDecrypt decrypt;
+    private LegacyAesAudioDecrypt legacy;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AesDecryptBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        byte[] key = new byte[16];
+        new Random(1).nextBytes(key);
+        decrypt = new AesAudioDecrypt(key);
+        legacy = new LegacyAesAudioDecrypt(key);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] current(ChunkState state) throws IOException {
+        decrypt.decryptChunk(state.nextIndex(), state.chunk);
+        return state.chunk;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public byte[] legacy(ChunkState state) throws IOException {
+        legacy.decryptChunk(state.nextIndex(), state.chunk);
+        return state.chunk;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] currentConcurrent(ChunkState state) throws IOException {
+        decrypt.decryptChunk(state.nextIndex(), state.chunk);
+        return state.chunk;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] legacyConcurrent(ChunkState state) throws IOException {
+        legacy.decryptChunk(state.nextIndex(), state.chunk);
+        return state.chunk;
+    }
+
+    @State(Scope.Thread)
+    public static class ChunkState {
+        byte[] chunk;
+        private int index = 0;
+
+        @Setup
+        public void setup() {
+            chunk = new byte[CHUNK_SIZE];
+            new Random(2).nextBytes(chunk);
+        }
+
+        int nextIndex() {
+            return index++ & 0xFF;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.audio.storage;
+
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * Compares the throughput of {@link ChannelManager} with the original design against a {@link FakeAccessPoint}. Every
+ * operation fetches a whole file of {@link #CHUNKS} chunks, multiply the score by {@code CHUNKS * CHUNK_SIZE} to get
+ * the throughput in bytes.
+ * Run with {@code mvn -pl lib test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=xyz.gianlu.librespot.audio.storage.ChannelManagerBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChannelManagerBenchmark {
+    private static final int CHUNKS = 64;
+    private static final ByteString FILE_ID = ByteString.copyFrom(new byte[20]);
+    private final FakeAccessPoint.CountingFile file = new FakeAccessPoint.CountingFile(false);
+    private ChannelManager manager;
+    private FakeAccessPoint currentAp;
+    private LegacyChannelManager legacy;
+    private FakeAccessPoint legacyAp;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ChannelManagerBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        manager = new ChannelManager((type, payload) -> currentAp.send(type, payload), ChannelManager.MAX_IN_FLIGHT);
+        currentAp = new FakeAccessPoint(CHUNKS * CHUNK_SIZE, (type, payload) -> manager.dispatch(type, ByteBuffer.wrap(payload)));
+        legacy = new LegacyChannelManager((type, payload) -> legacyAp.send(type, payload));
+        legacyAp = new FakeAccessPoint(CHUNKS * CHUNK_SIZE, legacy::dispatch);
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.close();
+        currentAp.close();
+        legacy.close();
+        legacyAp.close();
+    }
+
+    @Benchmark
+    public int current() throws IOException, InterruptedException {
+        file.reset();
+        for (int i = 0; i < CHUNKS; i++)
+            manager.requestChunk(FILE_ID, i, file);
+
+        file.await(CHUNKS);
+        return file.completed.get();
+    }
+
+    @Benchmark
+    public int legacy() throws IOException, InterruptedException {
+        file.reset();
+        for (int i = 0; i < CHUNKS; i++)
+            legacy.requestChunk(FILE_ID, i, file);
+
+        file.await(CHUNKS);
+        return file.completed.get();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.audio.storage;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * @author devgianlu
+ */
+@Timeout(30)
+class ChannelManagerTest {
+    private static final ByteString FILE_ID = ByteString.copyFrom(new byte[20]);
+    private static final int WINDOW = 4;
+    private ChannelManager manager;
+    private FakeAccessPoint ap;
+
+    @BeforeEach
+    void setUp() {
+        manager = new ChannelManager((type, payload) -> ap.send(type, payload), WINDOW);
+        ap = new FakeAccessPoint(40 * CHUNK_SIZE + 1234, (type, payload) -> manager.dispatch(type, ByteBuffer.wrap(payload)));
+    }
+
+    @AfterEach
+    void tearDown() {
+        manager.close();
+        ap.close();
+    }
+
+    private void requestAll(FakeAccessPoint.CountingFile file) throws IOException {
+        for (int i = 0; i < ap.chunks(); i++)
+            manager.requestChunk(FILE_ID, i, file);
+    }
+
+    @Test
+    void testChunksAssembled() throws IOException, InterruptedException {
+        FakeAccessPoint.CountingFile file = new FakeAccessPoint.CountingFile(true);
+        requestAll(file);
+        file.await(ap.chunks());
+
+        assertEquals(ap.chunks(), file.completed.get());
+        assertEquals(0, file.corrupted.get());
+        assertTrue(ap.maxInFlight.get() <= WINDOW, "In flight: " + ap.maxInFlight.get());
+    }
+
+    @Test
+    void testChannelErrorsReleaseWindow() throws Exception {
+        FakeAccessPoint.CountingFile file = new FakeAccessPoint.CountingFile(true);
+        ap.errorsLeft.set(WINDOW * 2);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> future = executor.submit(() -> {
+                requestAll(file);
+                return null;
+            });
+
+            file.await(ap.chunks());
+            future.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(WINDOW * 2, file.failed.get());
+        assertEquals(ap.chunks() - WINDOW * 2, file.completed.get());
+        assertEquals(0, file.corrupted.get());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.audio.storage;
+
+import org.jetbrains.annotations.NotNull;
+import xyz.gianlu.librespot.audio.ChunkBufferPool;
+import xyz.gianlu.librespot.crypto.Packet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import static xyz.gianlu.librespot.audio.storage.ChannelManager.CHUNK_SIZE;
+
+/**
+ * An in-memory access point that answers {@link Packet.Type#StreamChunk} requests from a single receiver thread, like
+ * the session does. Every response is made of a header packet, the data split in slices and an empty packet.
+ */
+class FakeAccessPoint implements ChannelManager.PacketSender, Closeable {
+    static final int SLICE_SIZE = 16 * 1024;
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+    final AtomicInteger errorsLeft = new AtomicInteger();
+    private final BlockingQueue<ByteBuffer> requests = new LinkedBlockingQueue<>();
+    private final BiConsumer<Packet.Type, byte[]> receiver;
+    private final int fileSize;
+    private final byte[] content;
+    private final Thread thread;
+
+    FakeAccessPoint(int fileSize, @NotNull BiConsumer<Packet.Type, byte[]> receiver) {
+        this.fileSize = fileSize;
+        this.content = new byte[fileSize];
+        for (int i = 0; i < fileSize; i++) content[i] = expected(i);
+        this.receiver = receiver;
+        this.thread = new Thread(this::run, "fake-ap-receiver");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    static byte expected(int pos) {
+        return (byte) (pos * 31 + (pos >>> 8));
+    }
+
+    @Override
+    public void send(@NotNull Packet.Type type, byte[] payload) {
+        if (type != Packet.Type.StreamChunk) throw new IllegalArgumentException(type.name());
+
+        int count = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(count, Math::max);
+        requests.add(ByteBuffer.wrap(payload));
+    }
+
+    private void run() {
+        try {
+            while (true) respond(requests.take());
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void respond(@NotNull ByteBuffer request) {
+        short id = request.getShort();
+        request.position(request.position() + 16 + 20);
+        int start = request.getInt() * 4;
+        int end = Math.min(fileSize, request.getInt() * 4);
+
+        inFlight.decrementAndGet();
+        if (errorsLeft.getAndUpdate(i -> Math.max(0, i - 1)) > 0) {
+            receiver.accept(Packet.Type.ChannelError, ByteBuffer.allocate(4).putShort(id).putShort((short) 1).array());
+            return;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(2 + 2 + 1 + 4 + 2)
+                .putShort(id).putShort((short) 5).put(AudioFileFetch.HEADER_SIZE).putInt(fileSize / 4).putShort((short) 0);
+        receiver.accept(Packet.Type.StreamChunkRes, header.array());
+
+        for (int pos = start; pos < end; pos += SLICE_SIZE) {
+            int length = Math.min(SLICE_SIZE, end - pos);
+            byte[] packet = new byte[2 + length];
+            packet[0] = (byte) (id >> 8);
+            packet[1] = (byte) id;
+            System.arraycopy(content, pos, packet, 2, length);
+            receiver.accept(Packet.Type.StreamChunkRes, packet);
+        }
+
+        receiver.accept(Packet.Type.StreamChunkRes, new byte[]{(byte) (id >> 8), (byte) id});
+    }
+
+    int chunks() {
+        return (fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+    }
+
+    /**
+     * An {@link AudioFile} that verifies the received chunks and counts the completed ones.
+     */
+    static class CountingFile implements AudioFile {
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger corrupted = new AtomicInteger();
+        private final boolean verify;
+
+        CountingFile(boolean verify) {
+            this.verify = verify;
+        }
+
+        @Override
+        public void writeChunk(byte[] chunk, int chunkIndex, boolean cached) {
+            if (verify) {
+                int off = chunkIndex * CHUNK_SIZE;
+                for (int i = 0; i < chunk.length; i++) {
+                    if (chunk[i] != expected(off + i)) {
+                        corrupted.incrementAndGet();
+                        break;
+                    }
+                }
+            }
+
+            ChunkBufferPool.get().release(chunk);
+            done(completed);
+        }
+
+        @Override
+        public void writeHeader(int id, byte[] bytes, boolean cached) {
+        }
+
+        @Override
+        public void streamError(int chunkIndex, short code) {
+            done(failed);
+        }
+
+        @Override
+        public void streamError(int chunkIndex, @NotNull IOException ex) {
+            done(failed);
+        }
+
+        private synchronized void done(@NotNull AtomicInteger counter) {
+            counter.incrementAndGet();
+            notifyAll();
+        }
+
+        synchronized void await(int count) throws InterruptedException {
+            while (completed.get() + failed.get() < count) wait();
+        }
+
+        synchronized void reset() {
+            completed.set(0);
+            failed.set(0);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -16,150 +16,359 @@
 
 package xyz.gianlu.librespot.cache;
 
+import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
+import xyz.gianlu.librespot.audio.GeneralWritableStream;
+import xyz.gianlu.librespot.audio.storage.ChannelManager;
 import xyz.gianlu.librespot.common.Utils;
+import xyz.gianlu.librespot.core.Session;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
-import static xyz.gianlu.librespot.cache.CacheJournal.*;
+import static xyz.gianlu.librespot.cache.LegacyCacheJournal.*;
 
 /**
  * @author Gianlu
  */
 
 class CacheTest {
-    private String lastContent = null;
-    private File parent;
 
-    private void printJournalFileContent() throws IOException {
-        File file = new File(parent, "journal.dat");
-        StringBuilder builder = new StringBuilder();
-        try (FileInputStream in = new FileInputStream(file)) {
-            byte[] buffer = new byte[4096];
-            int count;
-            while ((count = in.read(buffer)) != -1)
-                builder.append(Utils.bytesToHex(buffer, 0, count));
-        }
-
-        lastContent = builder.toString();
+    /**
+     * Builds a single entry in the legacy {@code journal.dat} format.
+     */
+    @NotNull
+    private static byte[] legacyEntry(@NotNull String id, int chunk, int headerId, byte[] header) {
+        ByteBuffer buffer = ByteBuffer.allocate(JOURNAL_ENTRY_SIZE);
+        buffer.put(id.getBytes(StandardCharsets.US_ASCII));
+        buffer.put(MAX_ID_LENGTH + chunk / 8, (byte) (1 << (chunk % 8)));
+        buffer.position(MAX_ID_LENGTH + MAX_CHUNKS_SIZE);
+        buffer.put((byte) headerId);
+        buffer.put(Utils.bytesToHex(header).getBytes(StandardCharsets.US_ASCII));
+        return buffer.array();
     }
 
-    private void assertSequence(int start, String seq) {
-        if (lastContent == null) throw new IllegalStateException();
-
-        if (!lastContent.substring(start).startsWith(seq))
-            fail(String.format("Sequence doesn't match, wanted '%s', but is '%s'!", seq, lastContent.substring(start)));
+    private static void writeLegacyJournal(@NotNull File parent, byte[]... entries) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(parent, LegacyCacheJournal.FILE_NAME))) {
+            for (byte[] entry : entries) out.write(entry);
+        }
     }
 
-    void testChunks(CacheJournal journal) throws IOException {
-        System.out.println("\n======== CHUNKS ========");
-
+    private void testChunks(CacheJournal journal) throws IOException {
         final String ID = "ABCDEFG";
         journal.createIfNeeded(ID);
-        printJournalFileContent();
 
         journal.setChunk(ID, 0, true);
-        printJournalFileContent();
-        assertSequence(MAX_ID_LENGTH * 2, "01000000");
-
         journal.setChunk(ID, 1, true);
-        printJournalFileContent();
-        assertSequence(MAX_ID_LENGTH * 2, "03000000");
-
         journal.setChunk(ID, 5, true);
-        printJournalFileContent();
-        assertSequence(MAX_ID_LENGTH * 2, "23000000");
         assertTrue(journal.hasChunk(ID, 5));
 
         journal.setChunk(ID, 8, true);
-        printJournalFileContent();
-        assertSequence(MAX_ID_LENGTH * 2, "23010000");
         assertTrue(journal.hasChunk(ID, 8));
 
         journal.setChunk(ID, 5, false);
-        printJournalFileContent();
-        assertSequence(MAX_ID_LENGTH * 2, "03010000");
         assertFalse(journal.hasChunk(ID, 5));
+        assertTrue(journal.hasChunk(ID, 0));
+        assertTrue(journal.hasChunk(ID, 1));
 
-        journal.setChunk(ID, MAX_CHUNKS - 1, true);
-        printJournalFileContent();
-        assertSequence((MAX_ID_LENGTH + MAX_CHUNKS_SIZE - 1) * 2, "80000000");
-        assertTrue(journal.hasChunk(ID, MAX_CHUNKS - 1));
-
-        journal.setChunk(ID, MAX_CHUNKS - 2, true);
-        printJournalFileContent();
-        assertSequence((MAX_ID_LENGTH + MAX_CHUNKS_SIZE - 1) * 2, "C0000000");
-        assertTrue(journal.hasChunk(ID, MAX_CHUNKS - 1));
-        assertTrue(journal.hasChunk(ID, MAX_CHUNKS - 2));
+        journal.setChunk(ID, MAX_CHUNKS_SIZE * 8 - 1, true);
+        assertTrue(journal.hasChunk(ID, MAX_CHUNKS_SIZE * 8 - 1));
+        assertFalse(journal.hasChunk(ID, MAX_CHUNKS_SIZE * 8 - 2));
 
         journal.remove(ID);
+        assertThrows(CacheJournal.JournalException.class, () -> journal.hasChunk(ID, 0));
     }
 
     private void testCreateRemove(CacheJournal journal) throws IOException {
-        System.out.println("\n======== CREATE / REMOVE ========");
         journal.createIfNeeded("AAAAAA");
-        printJournalFileContent();
-        assertSequence(0, "4141414141410000");
-
         journal.createIfNeeded("BBBBBB");
-        printJournalFileContent();
-        assertSequence(JOURNAL_ENTRY_SIZE * 2, "4242424242420000");
+        journal.createIfNeeded("AAAAAA");
 
         List<String> entries = journal.getEntries();
-        System.out.println(entries);
         assertEquals(2, entries.size());
-        assertEquals("AAAAAA", entries.get(0));
-        assertEquals("BBBBBB", entries.get(1));
+        assertTrue(entries.contains("AAAAAA"));
+        assertTrue(entries.contains("BBBBBB"));
 
         journal.remove("AAAAAA");
-        printJournalFileContent();
-        assertSequence(0, "00");
-        assertSequence(JOURNAL_ENTRY_SIZE * 2, "4242424242420000");
+        assertEquals(Collections.singletonList("BBBBBB"), journal.getEntries());
 
         journal.remove("BBBBBB");
-        printJournalFileContent();
-        assertSequence(0, "00");
-        assertSequence(JOURNAL_ENTRY_SIZE * 2, "00");
+        assertTrue(journal.getEntries().isEmpty());
     }
 
     private void testHeaders(CacheJournal journal) throws IOException {
-        System.out.println("\n======== HEADERS ========");
-
         final String ID = "ASDFGHJ";
         journal.createIfNeeded(ID);
-        printJournalFileContent();
 
         journal.setHeader(ID, (byte) 0b00000001, "test".getBytes(StandardCharsets.UTF_8));
-        printJournalFileContent();
-        assertSequence((MAX_ID_LENGTH + MAX_CHUNKS_SIZE) * 2, "01373436353733373400"); // Double hex encoding...
-
         journal.setHeader(ID, (byte) 0b10000001, "anotherTest".getBytes());
-        printJournalFileContent();
-        assertSequence((MAX_ID_LENGTH + MAX_CHUNKS_SIZE) * 2, "01373436353733373400");
-        assertSequence((MAX_ID_LENGTH + MAX_CHUNKS_SIZE + MAX_HEADER_LENGTH + 1) * 2, "813631364536463734363836353732353436353733373400");
 
         List<JournalHeader> headers = journal.getHeaders(ID);
-        System.out.println(headers);
         assertEquals(2, headers.size());
+        assertArrayEquals("test".getBytes(), JournalHeader.find(headers, (byte) 0b00000001).value);
+        assertArrayEquals("anotherTest".getBytes(), JournalHeader.find(headers, (byte) 0b10000001).value);
 
-        assertEquals(headers.get(0).id, (byte) 0b00000001);
-        assertArrayEquals("test".getBytes(), headers.get(0).value);
-
-        assertEquals(headers.get(1).id, (byte) 0b10000001);
-        assertArrayEquals("anotherTest".getBytes(), headers.get(1).value);
+        journal.setHeader(ID, (byte) 0b00000001, "replaced".getBytes());
+        assertArrayEquals("replaced".getBytes(), journal.getHeader(ID, 0b00000001).value);
+        assertEquals(2, journal.getHeaders(ID).size());
+        assertNull(journal.getHeader(ID, 0b00000010));
 
         journal.remove(ID);
     }
 
+    @Test
+    void testReopen(@TempDir File parent) throws IOException {
+        try (LogCacheJournal journal = new LogCacheJournal(parent, CacheManager.SyncPolicy.ON_CLOSE)) {
+            journal.createIfNeeded("AAAAAA");
+            journal.createIfNeeded("BBBBBB");
+            journal.createIfNeeded("CCCCCC");
+            journal.setChunk("CCCCCC", 3, true);
+            journal.setHeader("CCCCCC", 1, "test".getBytes());
+            journal.remove("BBBBBB");
+        }
+
+        try (LogCacheJournal journal = new LogCacheJournal(parent, CacheManager.SyncPolicy.ON_CLOSE)) {
+            List<String> entries = journal.getEntries();
+            assertEquals(2, entries.size());
+            assertTrue(entries.contains("AAAAAA"));
+            assertTrue(entries.contains("CCCCCC"));
+
+            assertTrue(journal.hasChunk("CCCCCC", 3));
+            assertFalse(journal.hasChunk("CCCCCC", 2));
+            assertArrayEquals("test".getBytes(), journal.getHeader("CCCCCC", 1).value);
+        }
+    }
+
+    @Test
+    void testLegacyReader(@TempDir File parent) throws IOException {
+        writeLegacyJournal(parent,
+                legacyEntry("AAAAAA", 3, 1, "test".getBytes()),
+                new byte[JOURNAL_ENTRY_SIZE],
+                legacyEntry("CCCCCC", MAX_CHUNKS_SIZE * 8 - 1, 0b10000001, new byte[]{0, 1, 2}),
+                legacyEntry("AAAAAA", 4, 1, "duplicate".getBytes()));
+
+        try (LegacyCacheJournal journal = new LegacyCacheJournal(parent)) {
+            assertEquals(Arrays.asList("AAAAAA", "CCCCCC"), journal.getEntries());
+
+            assertTrue(journal.getChunks("AAAAAA").get(3));
+            assertFalse(journal.getChunks("AAAAAA").get(4));
+            assertTrue(journal.getChunks("CCCCCC").get(MAX_CHUNKS_SIZE * 8 - 1));
+
+            List<JournalHeader> headers = journal.getHeaders("AAAAAA");
+            assertEquals(1, headers.size());
+            assertArrayEquals("test".getBytes(), JournalHeader.find(headers, (byte) 1).value);
+            assertArrayEquals(new byte[]{0, 1, 2}, JournalHeader.find(journal.getHeaders("CCCCCC"), (byte) 0b10000001).value);
+
+            assertThrows(CacheJournal.JournalException.class, () -> journal.getChunks("BBBBBB"));
+        }
+    }
+
+    @Test
+    void testLogJournal(@TempDir File parent) throws IOException {
+        try (LogCacheJournal journal = new LogCacheJournal(parent, CacheManager.SyncPolicy.ALWAYS)) {
+            journal.createIfNeeded("AAAAAA");
+            journal.createIfNeeded("BBBBBB");
+            journal.setChunk("AAAAAA", 0, true);
+            journal.setChunk("AAAAAA", 1000, true);
+            journal.setChunk("AAAAAA", 0, false);
+            for (int i = 0; i < 100; i++)
+                journal.setHeader("AAAAAA", 254, new byte[]{(byte) i});
+            journal.setHeader("AAAAAA", 0b10000001, new byte[]{0, 1, 2, 0, 3});
+            journal.setHeader("AAAAAA", 1, "test".getBytes());
+            journal.remove("BBBBBB");
+            assertThrows(IOException.class, () -> journal.hasChunk("BBBBBB", 0));
+        }
+
+        try (LogCacheJournal journal = new LogCacheJournal(parent, CacheManager.SyncPolicy.ALWAYS)) {
+            assertEquals(Collections.singletonList("AAAAAA"), journal.getEntries());
+            assertFalse(journal.hasChunk("AAAAAA", 0));
+            assertTrue(journal.hasChunk("AAAAAA", 1000));
+            assertArrayEquals(new byte[]{0, 1, 2, 0, 3}, journal.getHeader("AAAAAA", 0b10000001).value);
+
+            List<JournalHeader> headers = journal.getHeaders("AAAAAA");
+            assertEquals(3, headers.size());
+            assertArrayEquals(new byte[]{99}, JournalHeader.find(headers, (byte) 254).value);
+            assertNotNull(JournalHeader.find(headers, (byte) 0b10000001));
+            assertArrayEquals("test".getBytes(), JournalHeader.find(headers, (byte) 1).value);
+
+            long size = journal.logSize();
+            journal.compactNow();
+            assertTrue(journal.logSize() < size);
+        }
+
+        try (LogCacheJournal journal = new LogCacheJournal(parent, CacheManager.SyncPolicy.ALWAYS)) {
+            assertTrue(journal.hasChunk("AAAAAA", 1000));
+            assertEquals(3, journal.getHeaders("AAAAAA").size());
+        }
+    }
+
+    @Test
+    void testLogJournalTruncatedTail(@TempDir File parent) throws IOException {
+        try (LogCacheJournal journal = new LogCacheJournal(parent, CacheManager.SyncPolicy.ON_CLOSE)) {
+            journal.createIfNeeded("AAAAAA");
+            journal.setChunk("AAAAAA", 1, true);
+            journal.setChunk("AAAAAA", 2, true);
+        }
+
+        File file = new File(parent, LogCacheJournal.FILE_NAME);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        try (LogCacheJournal journal = new LogCacheJournal(parent, CacheManager.SyncPolicy.ON_CLOSE)) {
+            assertTrue(journal.hasChunk("AAAAAA", 1));
+            assertFalse(journal.hasChunk("AAAAAA", 2));
+
+            journal.setChunk("AAAAAA", 3, true);
+        }
+
+        try (LogCacheJournal journal = new LogCacheJournal(parent, CacheManager.SyncPolicy.ON_CLOSE)) {
+            assertTrue(journal.hasChunk("AAAAAA", 3));
+        }
+    }
+
+    @Test
+    void testMigration(@TempDir File parent) throws IOException {
+        final int COUNT = 100;
+        byte[][] entries = new byte[COUNT][];
+        for (int i = 0; i < COUNT; i++)
+            entries[i] = legacyEntry("ID" + i, i, 254, new byte[]{1, 2, 3, 4});
+
+        writeLegacyJournal(parent, entries);
+
+        long legacySize = new File(parent, LegacyCacheJournal.FILE_NAME).length();
+        try (CacheJournal journal = CacheJournal.open(parent, CacheManager.SyncPolicy.ON_CLOSE)) {
+            assertFalse(new File(parent, LegacyCacheJournal.FILE_NAME).exists());
+            assertEquals(COUNT, journal.getEntries().size());
+            for (int i = 0; i < COUNT; i++) {
+                assertTrue(journal.hasChunk("ID" + i, i));
+                assertFalse(journal.hasChunk("ID" + i, i + 1));
+                assertArrayEquals(new byte[]{1, 2, 3, 4}, journal.getHeader("ID" + i, 254).value);
+            }
+        }
+
+        assertTrue(new File(parent, LogCacheJournal.FILE_NAME).length() * 100 < legacySize);
+    }
+
+    @Test
+    void testEviction(@TempDir File parent) throws Exception {
+        Session.Configuration conf = new Session.Configuration.Builder()
+                .setCacheDir(parent)
+                .setCacheMaxSizeMb(1)
+                .build();
+
+        try (CacheManager cache = new CacheManager(conf)) {
+            byte[] chunk = new byte[ChannelManager.CHUNK_SIZE];
+            CacheManager.Handler open = cache.getHandler("AAAAAAAAAA");
+            for (int i = 0; i < 4; i++) open.writeChunk(chunk, i);
+
+            for (String id : new String[]{"BBBBBBBBBB", "CCCCCCCCCC"}) {
+                CacheManager.Handler handler = cache.getHandler(id);
+                for (int i = 0; i < 4; i++) handler.writeChunk(chunk, i);
+                handler.close();
+            }
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (cache.size() > 1024 * 1024 && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+
+            assertTrue(cache.size() <= 1024 * 1024);
+            assertTrue(open.hasChunk(3));
+            assertTrue(new File(parent, "AA/AAAAAAAAAA").exists());
+            assertFalse(new File(parent, "BB/BBBBBBBBBB").exists());
+            open.close();
+        }
+    }
+
+    @Test
+    void testMappedRead(@TempDir File parent) throws Exception {
+        Session.Configuration conf = new Session.Configuration.Builder()
+                .setCacheDir(parent)
+                .build();
+
+        try (CacheManager cache = new CacheManager(conf)) {
+            CacheManager.Handler handler = cache.getHandler("AAAAAAAAAA");
+            for (int i = 0; i < 3; i++) handler.writeChunk(filled(i), i);
+
+            for (int i = 2; i >= 0; i--) {
+                int index = i;
+                handler.readChunk(i, new GeneralWritableStream() {
+                    @Override
+                    public void writeChunk(byte[] buffer, int chunkIndex, boolean cached) {
+                        fail("Mapped chunks should not be copied");
+                    }
+
+                    @Override
+                    public void writeChunk(@NotNull ByteBuffer buffer, int chunkIndex, boolean cached) {
+                        assertEquals(index, chunkIndex);
+                        assertTrue(cached);
+                        assertTrue(buffer.isReadOnly());
+                        assertEquals(ChannelManager.CHUNK_SIZE, buffer.remaining());
+                        while (buffer.hasRemaining()) assertEquals(index, buffer.get());
+                    }
+                });
+            }
+
+            assertArrayEquals(filled(1), handler.readChunk(1));
+            handler.close();
+        }
+    }
+
+    @Test
+    void testPlaintextMode(@TempDir File parent) throws Exception {
+        Session.Configuration.Builder builder = new Session.Configuration.Builder().setCacheDir(parent);
+
+        try (CacheManager cache = new CacheManager(builder.build())) {
+            CacheManager.Handler handler = cache.getHandler("AAAAAAAAAA");
+            assertFalse(handler.isPlaintext());
+            handler.writeChunk(filled(1), 0);
+            handler.close();
+        }
+
+        try (CacheManager cache = new CacheManager(builder.setCacheStorePlaintext(true).build())) {
+            CacheManager.Handler encrypted = cache.getHandler("AAAAAAAAAA");
+            assertFalse(encrypted.isPlaintext(), "Existing files must keep their mode");
+            assertArrayEquals(filled(1), encrypted.readChunk(0));
+            encrypted.close();
+
+            CacheManager.Handler plaintext = cache.getHandler("BBBBBBBBBB");
+            assertTrue(plaintext.isPlaintext());
+            plaintext.writeChunk(filled(2), 0);
+            assertArrayEquals(filled(2), plaintext.readChunk(0));
+            plaintext.close();
+        }
+
+        try (CacheManager cache = new CacheManager(builder.setCacheStorePlaintext(false).build())) {
+            CacheManager.Handler plaintext = cache.getHandler("BBBBBBBBBB");
+            assertTrue(plaintext.isPlaintext(), "Plaintext files must stay readable when the option is disabled");
+
+            try (RandomAccessFile raf = new RandomAccessFile(new File(parent, "BB/BBBBBBBBBB"), "rw")) {
+                raf.write(3);
+            }
+
+            assertThrows(CacheManager.BadChunkHashException.class, () -> plaintext.readChunk(0));
+            plaintext.close();
+        }
+    }
+
+    private static byte[] filled(int value) {
+        byte[] chunk = new byte[ChannelManager.CHUNK_SIZE];
+        Arrays.fill(chunk, (byte) value);
+        return chunk;
+    }
+
     @Test
     void testCache(@TempDir File parent) throws IOException {
-        try (CacheJournal journal = new CacheJournal(this.parent = parent)) {
+        try (LogCacheJournal journal = new LogCacheJournal(parent, CacheManager.SyncPolicy.ALWAYS)) {
             testCreateRemove(journal);
             testChunks(journal);
             testHeaders(journal);
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.cache;
+
+import com.spotify.metadata.Metadata;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import xyz.gianlu.librespot.core.Session;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author devgianlu
+ */
+class MetadataCacheTest {
+    private static final String HEX_ID = "4d6b8a2c1bd342cda8d3e7c8e20b6a9f";
+
+    @Test
+    void persistsAndRevalidates(@TempDir File dir) throws InterruptedException {
+        Metadata.Track track = Metadata.Track.newBuilder().setName("Some track").setDuration(180_000).build();
+
+        MetadataCache cache = new MetadataCache(dir, 16, 50);
+        assertNull(cache.get("track", HEX_ID, Metadata.Track.parser()));
+        cache.put("track", HEX_ID, track, "\"etag-1\"", track.toByteArray());
+
+        MetadataCache other = new MetadataCache(dir, 16, 50);
+        MetadataCache.Entry entry = other.get("track", HEX_ID, Metadata.Track.parser());
+        assertNotNull(entry);
+        assertEquals(track, entry.message);
+        assertEquals("\"etag-1\"", entry.etag);
+        assertEquals(1, other.stats().diskHits);
+
+        Thread.sleep(100);
+        entry = other.get("track", HEX_ID, Metadata.Track.parser());
+        assertNotNull(entry);
+        assertTrue(entry.isStale());
+
+        assertFalse(other.revalidated("track", HEX_ID, entry).isStale());
+        assertEquals(1, other.stats().revalidations);
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        MetadataCache cache = new MetadataCache(null, 2, 60_000);
+        for (int i = 0; i < 3; i++) {
+            Metadata.Track track = Metadata.Track.newBuilder().setName("Track " + i).build();
+            cache.put("track", String.valueOf(i), track, null, track.toByteArray());
+        }
+
+        assertNull(cache.get("track", "0", Metadata.Track.parser()));
+        assertNotNull(cache.get("track", "2", Metadata.Track.parser()));
+
+        MetadataCache.Stats stats = cache.stats();
+        assertEquals(2, stats.size);
+        assertEquals(1, stats.evictions);
+        assertEquals(3, stats.misses);
+        assertEquals(1, stats.hits);
+    }
+
+    @Test
+    void boundsDiskEntries(@TempDir File dir) {
+        MetadataCache cache = new MetadataCache(dir, 2, 60_000);
+        File tracks = new File(dir, "track");
+
+        Metadata.Track expired = Metadata.Track.newBuilder().setName("Expired").build();
+        cache.put("track", "expired0", expired, null, expired.toByteArray());
+        assertTrue(new File(tracks, "expired0").setLastModified(System.currentTimeMillis() - 60_000L * MetadataCache.DISK_TTL_MULTIPLIER - 1000));
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 40; i++) {
+            Metadata.Track track = Metadata.Track.newBuilder().setName("Track " + i).build();
+            cache.put("track", String.format("%032x", i), track, null, track.toByteArray());
+            new File(tracks, String.format("%032x", i)).setLastModified(now - (40 - i) * 1000L);
+        }
+
+        cache.trimDisk();
+        String[] files = tracks.list();
+        assertNotNull(files);
+        assertEquals(2 * MetadataCache.DISK_ENTRIES_MULTIPLIER, files.length);
+        assertFalse(new File(tracks, "expired0").exists());
+        for (int i = 0; i < 40; i++)
+            assertEquals(i >= 40 - files.length, new File(tracks, String.format("%032x", i)).exists());
+    }
+
+    @Test
+    void sharesAndReleasesInstances() {
+        Session.Configuration conf = new Session.Configuration.Builder().setCacheEnabled(false).build();
+        MetadataCache first = MetadataCache.forUser(conf, "user");
+        MetadataCache second = MetadataCache.forUser(conf, "user");
+        assertSame(first, second);
+        assertNotSame(first, MetadataCache.forUser(conf, "other"));
+
+        Session.Configuration smaller = new Session.Configuration.Builder().setCacheEnabled(false).setCacheMetadataEntries(1).build();
+        MetadataCache different = MetadataCache.forUser(smaller, "user");
+        assertNotSame(first, different);
+        different.release();
+
+        first.release();
+        assertSame(second, MetadataCache.forUser(conf, "user"));
+        second.release();
+        second.release();
+
+        assertNotSame(first, MetadataCache.forUser(conf, "user"));
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.common;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author devgianlu
+ */
+class SingleFlightTest {
+
+    @Test
+    void coalescesConcurrentCalls() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        AtomicInteger started = new AtomicInteger();
+        CompletableFuture<String> call = new CompletableFuture<>();
+
+        CompletableFuture<String> first = flight.execute("a", () -> {
+            started.incrementAndGet();
+            return call;
+        });
+        CompletableFuture<String> second = flight.execute("a", () -> {
+            started.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+
+        second.cancel(false);
+        assertFalse(first.isDone());
+        assertEquals(1, flight.inFlight());
+
+        call.complete("result");
+        assertEquals("result", first.get());
+        assertEquals(1, started.get());
+        assertEquals(2, flight.calls());
+        assertEquals(1, flight.deduplicated());
+        assertEquals(0, flight.inFlight());
+
+        assertEquals("again", flight.execute("a", () -> CompletableFuture.completedFuture("again")).get());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.core;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author devgianlu
+ */
+@Timeout(10)
+class HttpConcurrencyLimiterTest {
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private HttpServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            } finally {
+                inFlight.decrementAndGet();
+            }
+
+            exchange.sendResponseHeaders(200, 1);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(1);
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void limitsSynchronousCallsPerHost() throws Exception {
+        OkHttpClient client = new OkHttpClient.Builder()
+                .addInterceptor(new HttpConcurrencyLimiter(8, 2))
+                .build();
+
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            futures.add(executor.submit(() -> {
+                try (Response resp = client.newCall(new Request.Builder().url("http://localhost:" + server.getAddress().getPort() + "/").build()).execute()) {
+                    return resp.body().bytes().length;
+                }
+            }));
+        }
+
+        for (Future<Integer> future : futures) assertEquals(1, future.get());
+        executor.shutdown();
+
+        assertTrue(maxInFlight.get() <= 2, "Max in flight: " + maxInFlight.get());
+        assertTrue(maxInFlight.get() > 0);
+    }
+
+    @Test
+    void holdsPermitUntilBodyIsClosed() throws Exception {
+        OkHttpClient client = new OkHttpClient.Builder()
+                .addInterceptor(new HttpConcurrencyLimiter(1, 1))
+                .build();
+
+        Request request = new Request.Builder().url("http://localhost:" + server.getAddress().getPort() + "/").build();
+        Response first = client.newCall(request).execute();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Integer> second = executor.submit(() -> {
+            try (Response resp = client.newCall(request).execute()) {
+                return resp.code();
+            }
+        });
+
+        assertThrows(TimeoutException.class, () -> second.get(300, TimeUnit.MILLISECONDS));
+        first.close();
+        assertEquals(200, second.get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.core;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author devgianlu
+ */
+@Timeout(10)
+class HttpMetricsTest {
+    private HttpServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", exchange -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {
+            }
+
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    void recordsConnectionReuseAndTimings() throws IOException {
+        HttpMetrics metrics = new HttpMetrics();
+        OkHttpClient client = new OkHttpClient.Builder().eventListenerFactory(metrics).build();
+
+        for (int i = 0; i < 3; i++) {
+            try (Response resp = client.newCall(new Request.Builder().url("http://localhost:" + server.getAddress().getPort() + "/" + i).build()).execute()) {
+                assertEquals("ok", resp.body().string());
+            }
+        }
+
+        HttpMetrics.HostStats stats = metrics.stats().get("localhost");
+        assertNotNull(stats);
+        assertEquals(3, stats.calls);
+        assertEquals(0, stats.failures);
+        assertEquals(1, stats.newConnections);
+        assertEquals(2, stats.reusedConnections);
+        assertTrue(stats.averageConnectMs() > 0);
+        assertTrue(stats.averageTtfbMs() >= 20, String.valueOf(stats.averageTtfbMs()));
+        assertEquals(0, stats.averageTlsMs());
+
+        client.connectionPool().evictAll();
+        try {
+            client.newCall(new Request.Builder().url("http://localhost:1/").build()).execute().close();
+            fail("Connection should have been refused");
+        } catch (IOException ignored) {
+        }
+
+        assertEquals(1, metrics.stats().get("localhost").failures);
+    }
+}
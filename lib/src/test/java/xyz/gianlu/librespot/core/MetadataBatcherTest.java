@@ -0,0 +1,220 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.core;
+
+import com.google.protobuf.Any;
+import com.spotify.extendedmetadata.EntityExtensionDataOuterClass.EntityExtensionData;
+import com.spotify.extendedmetadata.EntityExtensionDataOuterClass.EntityExtensionDataHeader;
+import com.spotify.extendedmetadata.ExtendedMetadata;
+import com.spotify.extendedmetadata.ExtensionKindOuterClass.ExtensionKind;
+import com.spotify.metadata.Metadata;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import xyz.gianlu.librespot.cache.MetadataCache;
+import xyz.gianlu.librespot.metadata.TrackId;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author devgianlu
+ */
+@Timeout(10)
+class MetadataBatcherTest {
+    private final List<ExtendedMetadata.BatchedEntityRequest> batches = new CopyOnWriteArrayList<>();
+    private final List<String> threads = new CopyOnWriteArrayList<>();
+    private final AtomicInteger fallbacks = new AtomicInteger();
+    private MetadataCache cache;
+
+    @NotNull
+    private static TrackId track(int i) {
+        return TrackId.fromHex(String.format("%032x", i + 1));
+    }
+
+    @NotNull
+    private static Metadata.Track trackFor(@NotNull String uri) {
+        return Metadata.Track.newBuilder().setName(uri).build();
+    }
+
+    @NotNull
+    private static EntityExtensionData data(@NotNull String uri, int status, @NotNull String etag) {
+        EntityExtensionData.Builder data = EntityExtensionData.newBuilder()
+                .setEntityUri(uri)
+                .setHeader(EntityExtensionDataHeader.newBuilder().setStatusCode(status).setEtag(etag));
+        if (status == 200) data.setExtensionData(Any.newBuilder().setValue(trackFor(uri).toByteString()));
+        return data.build();
+    }
+
+    @NotNull
+    private MetadataBatcher batcher(@NotNull Function<ExtendedMetadata.EntityRequest, EntityExtensionData> responder) {
+        return batcher(responder, 200);
+    }
+
+    /**
+     * @param responder Builds the data for every entity of the batch, {@code null} to leave it out of the response
+     */
+    @NotNull
+    private MetadataBatcher batcher(@NotNull Function<ExtendedMetadata.EntityRequest, EntityExtensionData> responder, long windowMs) {
+        return new MetadataBatcher(request -> {
+            batches.add(request);
+            threads.add(Thread.currentThread().getName());
+
+            ExtendedMetadata.EntityExtensionDataArray.Builder array = ExtendedMetadata.EntityExtensionDataArray.newBuilder()
+                    .setExtensionKind(ExtensionKind.TRACK_V4);
+            for (ExtendedMetadata.EntityRequest entity : request.getEntityRequestList()) {
+                EntityExtensionData data = responder.apply(entity);
+                if (data != null) array.addExtensionData(data);
+            }
+
+            return ExtendedMetadata.BatchedExtensionResponse.newBuilder().addExtendedMetadata(array).build();
+        }, cache, (kind, hexId) -> {
+            fallbacks.incrementAndGet();
+            threads.add(Thread.currentThread().getName());
+            assertEquals("track", kind.type);
+            return trackFor("fallback:" + hexId);
+        }, windowMs);
+    }
+
+    @BeforeEach
+    void setUp() {
+        Session.Configuration conf = new Session.Configuration.Builder()
+                .setCacheEnabled(false)
+                .setCacheMetadataTtl(0)
+                .build();
+        cache = MetadataCache.forUser(conf, "batcher-test");
+    }
+
+    @AfterEach
+    void tearDown() {
+        cache.release();
+    }
+
+    @Test
+    void batchesWithinWindow() throws Exception {
+        MetadataBatcher batcher = batcher(entity -> data(entity.getEntityUri(), 200, "etag"));
+
+        List<CompletableFuture<Metadata.Track>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) futures.add(batcher.track(track(i)));
+
+        for (int i = 0; i < 10; i++)
+            assertEquals(track(i).toSpotifyUri(), futures.get(i).get(5, TimeUnit.SECONDS).getName());
+
+        assertEquals(1, batches.size());
+        assertEquals(10, batches.get(0).getEntityRequestCount());
+        assertEquals(ExtensionKind.TRACK_V4, batches.get(0).getEntityRequest(0).getQuery(0).getExtensionKind());
+        assertEquals(0, fallbacks.get());
+        assertNotNull(cache.get("track", track(3).hexId(), Metadata.Track.parser()));
+        batcher.close();
+    }
+
+    @Test
+    void flushesFullBatchesBeforeWindow() throws Exception {
+        MetadataBatcher batcher = batcher(entity -> data(entity.getEntityUri(), 200, "etag"), TimeUnit.MINUTES.toMillis(1));
+
+        List<CompletableFuture<Metadata.Track>> futures = new ArrayList<>();
+        for (int i = 0; i < MetadataBatcher.MAX_BATCH_SIZE + 1; i++) futures.add(batcher.track(track(i)));
+
+        CompletableFuture.allOf(futures.subList(0, MetadataBatcher.MAX_BATCH_SIZE).toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        assertEquals(1, batches.size());
+        assertEquals(MetadataBatcher.MAX_BATCH_SIZE, batches.get(0).getEntityRequestCount());
+        assertFalse(futures.get(MetadataBatcher.MAX_BATCH_SIZE).isDone(), "The last request must wait for the window");
+        batcher.close();
+    }
+
+    @Test
+    void fansOutConcurrentRequests() throws Exception {
+        MetadataBatcher batcher = batcher(entity -> data(entity.getEntityUri(), 200, "etag"));
+
+        CompletableFuture<Metadata.Track> first = batcher.track(track(0));
+        CompletableFuture<Metadata.Track> second = batcher.track(track(0));
+        assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+
+        assertEquals(1, batches.size());
+        assertEquals(1, batches.get(0).getEntityRequestCount());
+        batcher.close();
+    }
+
+    @Test
+    void cancellingDoesNotAffectOtherCallers() throws Exception {
+        MetadataBatcher batcher = batcher(entity -> data(entity.getEntityUri(), 200, "etag"));
+
+        CompletableFuture<Metadata.Track> first = batcher.track(track(0));
+        CompletableFuture<Metadata.Track> second = batcher.track(track(0));
+        assertNotSame(first, second);
+        assertTrue(first.cancel(true));
+
+        assertEquals(track(0).toSpotifyUri(), second.get(5, TimeUnit.SECONDS).getName());
+        assertEquals(1, batches.size());
+        batcher.close();
+    }
+
+    @Test
+    void revalidatesStaleEntries() throws Exception {
+        Metadata.Track cached = trackFor("cached");
+        cache.put("track", track(0).hexId(), cached, "old-etag", cached.toByteArray());
+        Thread.sleep(5);
+
+        MetadataBatcher batcher = batcher(entity -> {
+            assertEquals("old-etag", entity.getQuery(0).getEtag());
+            return data(entity.getEntityUri(), 304, "old-etag");
+        });
+
+        assertEquals(cached, batcher.track(track(0)).get(5, TimeUnit.SECONDS));
+        assertEquals(1, cache.stats().revalidations);
+        assertEquals(0, fallbacks.get());
+        batcher.close();
+    }
+
+    @Test
+    void fallsBackOffTheBatcherThread() throws Exception {
+        String missing = track(1).toSpotifyUri();
+        MetadataBatcher batcher = batcher(entity -> missing.equals(entity.getEntityUri()) ? null : data(entity.getEntityUri(), 200, "etag"));
+
+        CompletableFuture<String> found = batcher.track(track(0)).thenApply(track -> Thread.currentThread().getName());
+        CompletableFuture<Metadata.Track> fallback = batcher.track(track(1));
+
+        assertFalse(found.get(5, TimeUnit.SECONDS).startsWith("metadata-batcher-"));
+        assertEquals("fallback:" + track(1).hexId(), fallback.get(5, TimeUnit.SECONDS).getName());
+        assertEquals(1, fallbacks.get());
+
+        for (String thread : threads)
+            assertFalse(thread.startsWith("metadata-batcher-"), thread);
+
+        batcher.close();
+    }
+
+    @Test
+    void failsPendingRequestsOnClose() {
+        MetadataBatcher batcher = batcher(entity -> data(entity.getEntityUri(), 200, "etag"));
+        CompletableFuture<Metadata.Track> future = batcher.track(track(0));
+        batcher.close();
+
+        assertThrows(Exception.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(batcher.track(track(1)).isCompletedExceptionally());
+    }
+}
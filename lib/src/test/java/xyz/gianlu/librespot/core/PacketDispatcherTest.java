@@ -0,0 +1,87 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import xyz.gianlu.librespot.crypto.Packet;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author devgianlu
+ */
+@Timeout(10)
+class PacketDispatcherTest {
+
+    @Test
+    void testSlowLaneDoesNotBlockOthers() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch audio = new CountDownLatch(1);
+        CountDownLatch control = new CountDownLatch(1);
+        CountDownLatch mercury = new CountDownLatch(2);
+
+        PacketDispatcher dispatcher = new PacketDispatcher((type, payload) -> {
+            switch (PacketDispatcher.laneOf(type)) {
+                case MERCURY:
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+
+                    assertEquals(3, payload.remaining());
+                    mercury.countDown();
+                    break;
+                case AUDIO:
+                    audio.countDown();
+                    break;
+                case CONTROL:
+                    control.countDown();
+                    break;
+            }
+        });
+
+        try {
+            ByteBuffer payload = ByteBuffer.wrap(new byte[]{1, 2, 3});
+            dispatcher.dispatch(Packet.Type.MercuryEvent, payload);
+            payload.clear();
+            dispatcher.dispatch(Packet.Type.MercuryReq, payload);
+            dispatcher.dispatch(Packet.Type.StreamChunkRes, payload);
+            dispatcher.dispatch(Packet.Type.AesKey, payload);
+
+            assertTrue(audio.await(5, TimeUnit.SECONDS));
+            assertTrue(control.await(5, TimeUnit.SECONDS));
+            assertEquals(2, mercury.getCount());
+
+            release.countDown();
+            assertTrue(mercury.await(5, TimeUnit.SECONDS));
+
+            Map<PacketDispatcher.Lane, PacketDispatcher.LaneStats> stats = dispatcher.stats();
+            assertEquals(1, stats.get(PacketDispatcher.Lane.AUDIO).dispatched);
+            assertTrue(stats.get(PacketDispatcher.Lane.MERCURY).maxDepth >= 1);
+        } finally {
+            dispatcher.close();
+        }
+    }
+}
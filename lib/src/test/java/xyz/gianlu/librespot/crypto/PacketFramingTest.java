@@ -0,0 +1,134 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.crypto;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that {@link PacketReader} and {@link PacketWriter} are compatible with {@link ReferenceFraming}.
+ *
+ * @author devgianlu
+ */
+class PacketFramingTest {
+    private static final int[] SIZES = {0, 1, 3, 17, 4096, 0xFFFF, 5, 60000};
+    private final byte[] keyA = new byte[32];
+    private final byte[] keyB = new byte[32];
+
+    PacketFramingTest() {
+        Random random = new Random(1);
+        random.nextBytes(keyA);
+        random.nextBytes(keyB);
+    }
+
+    private static byte[][] payloads() {
+        Random random = new Random(2);
+        byte[][] payloads = new byte[SIZES.length][];
+        for (int i = 0; i < SIZES.length; i++) {
+            payloads[i] = new byte[SIZES[i]];
+            random.nextBytes(payloads[i]);
+        }
+
+        return payloads;
+    }
+
+    @Test
+    void testWriterToCipherPair() throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PacketWriter writer = new PacketWriter(new CipherPair(keyA, keyB), Channels.newChannel(out));
+
+        byte[][] payloads = payloads();
+        for (int i = 0; i < payloads.length; i++) writer.write((byte) i, payloads[i]);
+        writer.flush();
+
+        CipherPair remote = new CipherPair(keyB, keyA);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < payloads.length; i++) {
+            Packet packet = ReferenceFraming.receive(remote, in);
+            assertEquals((byte) i, packet.cmd);
+            assertArrayEquals(payloads[i], packet.payload);
+        }
+
+        assertEquals(0, in.available());
+    }
+
+    @Test
+    void testCipherPairToReader() throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CipherPair remote = new CipherPair(keyB, keyA);
+        byte[][] payloads = payloads();
+        for (int i = 0; i < payloads.length; i++) ReferenceFraming.send(remote, out, (byte) i, payloads[i]);
+
+        // Deliver the stream in small pieces to exercise partial frames
+        ReadableByteChannel channel = new ReadableByteChannel() {
+            private final ByteBuffer data = ByteBuffer.wrap(out.toByteArray());
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if (!data.hasRemaining()) return -1;
+
+                int count = Math.min(Math.min(dst.remaining(), data.remaining()), 7919);
+                ByteBuffer slice = data.duplicate();
+                slice.limit(slice.position() + count);
+                dst.put(slice);
+                data.position(data.position() + count);
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        PacketReader reader = new PacketReader(new CipherPair(keyA, keyB), channel);
+        for (int i = 0; i < payloads.length; i++) {
+            ByteBuffer payload = reader.next();
+            assertEquals((byte) i, reader.cmd());
+            assertArrayEquals(payloads[i], Packet.copyOf(reader.cmd(), payload).payload);
+        }
+
+        assertThrows(IOException.class, reader::next);
+    }
+
+    @Test
+    void testCorruptedMac() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ReferenceFraming.send(new CipherPair(keyB, keyA), out, (byte) 1, new byte[]{1, 2, 3});
+        byte[] bytes = out.toByteArray();
+        bytes[bytes.length - 1] ^= 1;
+
+        PacketReader reader = new PacketReader(new CipherPair(keyA, keyB), Channels.newChannel(new ByteArrayInputStream(bytes)));
+        assertThrows(GeneralSecurityException.class, reader::next);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package xyz.gianlu.librespot.crypto;
+
+import org.jetbrains.annotations.NotNull;
+import xyz.gianlu.librespot.common.Utils;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Straightforward stream based framing, the way packets were encoded before {@link PacketReader} and
+ * {@link PacketWriter}. Used as a reference to check their output.
+ *
+ * @author devgianlu
+ */
+final class ReferenceFraming {
+
+    private ReferenceFraming() {
+    }
+
+    static void send(@NotNull CipherPair pair, @NotNull OutputStream out, byte cmd, byte[] payload) throws IOException {
+        synchronized (pair.sendCipher) {
+            pair.sendCipher.nonce(Utils.toByteArray(pair.sendNonce.getAndIncrement()));
+
+            byte[] bytes = new byte[1 + 2 + payload.length];
+            bytes[0] = cmd;
+            bytes[1] = (byte) (payload.length >> 8);
+            bytes[2] = (byte) payload.length;
+            System.arraycopy(payload, 0, bytes, 3, payload.length);
+            pair.sendCipher.encrypt(bytes);
+
+            byte[] mac = new byte[4];
+            pair.sendCipher.finish(mac);
+
+            out.write(bytes);
+            out.write(mac);
+            out.flush();
+        }
+    }
+
+    @NotNull
+    static Packet receive(@NotNull CipherPair pair, @NotNull DataInputStream in) throws IOException, GeneralSecurityException {
+        synchronized (pair.recvCipher) {
+            pair.recvCipher.nonce(Utils.toByteArray(pair.recvNonce.getAndIncrement()));
+
+            byte[] header = new byte[3];
+            in.readFully(header);
+            pair.recvCipher.decrypt(header);
+
+            byte cmd = header[0];
+            int payloadLength = (header[1] & 0xFF) << 8 | (header[2] & 0xFF);
+
+            byte[] payload = new byte[payloadLength];
+            in.readFully(payload);
+            pair.recvCipher.decrypt(payload);
+
+            byte[] mac = new byte[4];
+            in.readFully(mac);
+
+            byte[] expectedMac = new byte[4];
+            pair.recvCipher.finish(expectedMac);
+            if (!Arrays.equals(mac, expectedMac)) throw new GeneralSecurityException("MACs don't match!");
+
+            return new Packet(cmd, payload);
+        }
+    }
+}
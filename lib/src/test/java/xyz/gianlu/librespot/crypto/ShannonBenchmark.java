@@ -0,0 +1,88 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.crypto;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the decryption throughput of {@link Shannon} with the original implementation, the same way
+ * {@link PacketReader} does: a nonce, a 3 bytes header, the payload and the MAC.
+ * Run with {@code mvn -pl lib test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=xyz.gianlu.librespot.crypto.ShannonBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShannonBenchmark {
+    @Param({"64", "4096", "65535"})
+    public int size;
+    private Shannon current;
+    private LegacyShannon legacy;
+    private byte[] header;
+    private byte[] payload;
+    private byte[] mac;
+    private byte[] nonce;
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ShannonBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+
+        current = new Shannon();
+        current.key(key);
+        legacy = new LegacyShannon();
+        legacy.key(key);
+
+        header = new byte[3];
+        payload = new byte[size];
+        random.nextBytes(payload);
+        mac = new byte[4];
+        nonce = new byte[4];
+    }
+
+    @Benchmark
+    public byte[] current() {
+        current.nonce(nonce);
+        current.decrypt(header);
+        current.decrypt(payload);
+        current.finish(mac);
+        return mac;
+    }
+
+    @Benchmark
+    public byte[] legacy() {
+        legacy.nonce(nonce);
+        legacy.decrypt(header);
+        legacy.decrypt(payload);
+        legacy.finish(mac);
+        return mac;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2022 devgianlu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package xyz.gianlu.librespot.crypto;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Differential tests of {@link Shannon} against {@link LegacyShannon}.
+ *
+ * @author devgianlu
+ */
+class ShannonTest {
+    private static final int ROUNDS = 200;
+
+    private static byte[] random(Random random, int maxLength) {
+        byte[] bytes = new byte[random.nextInt(maxLength + 1)];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void assertSameMac(Shannon current, LegacyShannon legacy) {
+        byte[] expected = new byte[4];
+        legacy.finish(expected);
+        byte[] actual = new byte[4];
+        current.finish(actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    void testEncryptMatchesLegacy() {
+        Random random = new Random(1);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] key = random(random, 40);
+            Shannon current = new Shannon();
+            current.key(key);
+            LegacyShannon legacy = new LegacyShannon();
+            legacy.key(key);
+
+            for (int nonce = 0; nonce < 4; nonce++) {
+                byte[] iv = random(random, 8);
+                current.nonce(iv);
+                legacy.nonce(iv);
+
+                for (int part = random.nextInt(4); part >= 0; part--) {
+                    byte[] data = random(random, 1024);
+                    byte[] copy = data.clone();
+                    legacy.encrypt(data);
+                    current.encrypt(copy);
+                    assertArrayEquals(data, copy);
+                }
+
+                assertSameMac(current, legacy);
+            }
+        }
+    }
+
+    @Test
+    void testDecryptMatchesLegacy() {
+        Random random = new Random(2);
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] key = random(random, 40);
+            Shannon current = new Shannon();
+            current.key(key);
+            LegacyShannon legacy = new LegacyShannon();
+            legacy.key(key);
+
+            for (int nonce = 0; nonce < 4; nonce++) {
+                byte[] iv = random(random, 8);
+                current.nonce(iv);
+                legacy.nonce(iv);
+
+                for (int part = random.nextInt(4); part >= 0; part--) {
+                    byte[] data = random(random, 1024);
+                    int off = data.length == 0 ? 0 : random.nextInt(data.length);
+                    byte[] copy = data.clone();
+                    legacy.decrypt(data);
+                    current.decrypt(copy, 0, off);
+                    current.decrypt(copy, off, copy.length - off);
+                    assertArrayEquals(data, copy);
+                }
+
+                assertSameMac(current, legacy);
+            }
+        }
+    }
+
+    @Test
+    void testByteBuffers() {
+        Random random = new Random(3);
+        byte[] key = random(random, 32);
+        Shannon current = new Shannon();
+        current.key(key);
+        LegacyShannon legacy = new LegacyShannon();
+        legacy.key(key);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            byte[] iv = random(random, 4);
+            current.nonce(iv);
+            legacy.nonce(iv);
+
+            byte[] data = random(random, 4096);
+            byte[] expected = data.clone();
+            legacy.decrypt(expected);
+
+            ByteBuffer buffer = round % 2 == 0 ? ByteBuffer.allocate(data.length + 8) : ByteBuffer.allocateDirect(data.length + 8);
+            buffer.position(5);
+            buffer.put(data).flip().position(5);
+            current.decrypt(buffer);
+
+            byte[] actual = new byte[data.length];
+            buffer.position(5);
+            buffer.get(actual);
+            assertArrayEquals(expected, actual);
+            assertSameMac(current, legacy);
+        }
+    }
+
+    @Test
+    void testRoundTrip() {
+        Random random = new Random(4);
+        byte[] key = random(random, 32);
+        Shannon encrypt = new Shannon();
+        encrypt.key(key);
+        Shannon decrypt = new Shannon();
+        decrypt.key(key);
+
+        byte[] iv = new byte[4];
+        encrypt.nonce(iv);
+        decrypt.nonce(iv);
+
+        byte[] data = random(random, 64 * 1024);
+        byte[] copy = Arrays.copyOf(data, data.length);
+        encrypt.encrypt(copy);
+        decrypt.decrypt(copy);
+        assertArrayEquals(data, copy);
+    }
+}
@@ -35,6 +35,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import xyz.gianlu.librespot.ZeroconfServer;
 import xyz.gianlu.librespot.audio.decoders.AudioQuality;
+import xyz.gianlu.librespot.cache.CacheManager;
 import xyz.gianlu.librespot.common.Utils;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.core.TimeProvider;
@@ -327,6 +328,10 @@ public final class FileConfiguration {
         return Level.toLevel(config.get("logLevel"));
     }
 
+    public boolean virtualThreads() {
+        return config.get("virtualThreads");
+    }
+
     @NotNull
     public FileConfiguration.AuthStrategy authStrategy() {
         return config.getEnum("auth.strategy", AuthStrategy.class);
@@ -417,6 +422,13 @@ public final class FileConfiguration {
                 .setCacheEnabled(config.get("cache.enabled"))
                 .setCacheDir(getFile("cache.dir"))
                 .setDoCacheCleanUp(config.get("cache.doCleanUp"))
+                .setCacheSyncPolicy(config.getEnum("cache.syncPolicy", CacheManager.SyncPolicy.class))
+                .setCacheMaxSizeMb(config.get("cache.maxSizeMb"))
+                .setCacheStorePlaintext(config.get("cache.storePlaintext"))
+                .setCacheAudioKeys(config.get("cache.audioKeys"))
+                .setCacheMetadata(config.get("cache.metadata"))
+                .setCacheMetadataEntries(config.get("cache.metadataEntries"))
+                .setCacheMetadataTtl(config.get("cache.metadataTtl"))
                 .setStoreCredentials(config.get("auth.storeCredentials"))
                 .setStoredCredentialsFile(credentialsFile())
                 .setTimeSynchronizationMethod(config.getEnum("time.synchronizationMethod", TimeProvider.Method.class))
@@ -430,7 +442,14 @@ public final class FileConfiguration {
                 .setProxyUsername(config.get("proxy.username"))
                 .setProxyPassword(config.get("proxy.password"))
                 .setRetryOnChunkError(config.get("player.retryOnChunkError"))
+                .setReadAheadBufferMs(config.get("player.readAheadBufferMs"))
                 .setConnectionTimeout(config.get("network.connectionTimeout"))
+                .setCdnMaxConcurrentRequests(config.get("network.cdnMaxConcurrentRequests"))
+                .setHttpMaxRequests(config.get("network.maxRequests"))
+                .setApiMaxRequestsPerHost(config.get("network.apiMaxRequestsPerHost"))
+                .setAudioMaxRequestsPerHost(config.get("network.audioMaxRequestsPerHost"))
+                .setHttpMaxIdleConnections(config.get("network.maxIdleConnections"))
+                .setHttpKeepAliveSeconds(config.get("network.keepAliveSeconds"))
                 .build();
     }
 
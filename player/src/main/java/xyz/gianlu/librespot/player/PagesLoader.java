@@ -31,12 +31,18 @@ import xyz.gianlu.librespot.metadata.PlayableId;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import static com.spotify.context.ContextPageOuterClass.ContextPage;
 
 /**
+ * Pages are fetched through the asynchronous Mercury API. Once a page has been loaded, the next one is already
+ * requested in the background so that {@link #nextPage()} rarely has to wait for a round-trip.
+ *
  * @author Gianlu
  */
 public final class PagesLoader {
@@ -44,6 +50,8 @@ public final class PagesLoader {
     private final Session session;
     private String resolveUrl = null;
     private int currentPage = -1;
+    private String prefetchedUrl = null;
+    private CompletableFuture<List<ContextTrack>> prefetched = null;
 
     private PagesLoader(@NotNull Session session) {
         this.session = session;
@@ -78,18 +86,60 @@ public final class PagesLoader {
     }
 
     @NotNull
-    private List<ContextTrack> fetchTracks(@NotNull String url) throws IOException {
-        MercuryClient.Response resp = session.mercury().sendSync(RawMercuryRequest.newBuilder()
-                .setUri(url).setMethod("GET").build());
-
-        try (Reader reader = new InputStreamReader(resp.payload.stream())) {
-            JsonObject obj = JsonParser.parseReader(reader).getAsJsonObject();
-            return ProtoUtils.jsonToContextTracks(obj.getAsJsonArray("tracks"));
+    private static <T> T await(@NotNull CompletableFuture<T> future) throws IOException, MercuryClient.MercuryException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(false);
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+            else if (cause instanceof IOException) throw (IOException) cause;
+            else if (cause instanceof MercuryClient.MercuryException) throw (MercuryClient.MercuryException) cause;
+            else throw new IOException(cause);
         }
     }
 
     @NotNull
-    private List<ContextTrack> resolvePage(@NotNull ContextPage page) throws IOException {
+    private CompletableFuture<List<ContextTrack>> fetchTracksAsync(@NotNull String url) {
+        return session.mercury().sendAsync(RawMercuryRequest.newBuilder()
+                .setUri(url).setMethod("GET").build()).thenApply(resp -> {
+            try (Reader reader = new InputStreamReader(resp.payload.stream())) {
+                JsonObject obj = JsonParser.parseReader(reader).getAsJsonObject();
+                return ProtoUtils.jsonToContextTracks(obj.getAsJsonArray("tracks"));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+    }
+
+    @NotNull
+    private List<ContextTrack> fetchTracks(@NotNull String url) throws IOException, MercuryClient.MercuryException {
+        CompletableFuture<List<ContextTrack>> future;
+        if (url.equals(prefetchedUrl)) future = prefetched;
+        else future = fetchTracksAsync(url);
+
+        prefetchedUrl = null;
+        prefetched = null;
+        return await(future);
+    }
+
+    /**
+     * Starts fetching the page following the last known one, if any.
+     */
+    private void prefetchNextPage() {
+        if (pages.isEmpty()) return;
+
+        ContextPage last = pages.get(pages.size() - 1);
+        if (!last.hasNextPageUrl() || last.getNextPageUrl().equals(prefetchedUrl)) return;
+
+        prefetchedUrl = last.getNextPageUrl();
+        prefetched = fetchTracksAsync(prefetchedUrl);
+    }
+
+    @NotNull
+    private List<ContextTrack> resolvePage(@NotNull ContextPage page) throws IOException, MercuryClient.MercuryException {
         if (page.getTracksCount() > 0) {
             return page.getTracksList();
         } else {
@@ -108,7 +158,7 @@ public final class PagesLoader {
         if (index == -1) throw new IllegalStateException("You must call nextPage() first!");
 
         if (index == 0 && pages.isEmpty() && resolveUrl != null)
-            pages.addAll(session.mercury().sendSync(MercuryRequests.resolveContext(resolveUrl)).pages());
+            pages.addAll(await(session.mercury().sendAsync(MercuryRequests.resolveContext(resolveUrl))).pages());
 
         resolveUrl = null;
 
@@ -144,6 +194,7 @@ public final class PagesLoader {
         try {
             getPage(currentPage + 1);
             currentPage++;
+            if (currentPage == pages.size() - 1) prefetchNextPage();
             return true;
         } catch (IllegalStateException ex) {
             return false;
@@ -32,6 +32,7 @@ import org.slf4j.LoggerFactory;
 import xyz.gianlu.librespot.audio.AbsChunkedInputStream;
 import xyz.gianlu.librespot.audio.MetadataWrapper;
 import xyz.gianlu.librespot.audio.PlayableContentFeeder;
+import xyz.gianlu.librespot.audio.decoders.VorbisOnlyAudioQuality;
 import xyz.gianlu.librespot.common.NameThreadFactory;
 import xyz.gianlu.librespot.core.Session;
 import xyz.gianlu.librespot.dacp.DacpMetadataPipe;
@@ -63,6 +64,7 @@ import java.util.concurrent.*;
 public class Player implements Closeable {
     public static final int VOLUME_MAX = 65536;
     private static final Logger LOGGER = LoggerFactory.getLogger(Player.class);
+    private static final int AUDIO_KEY_PREFETCH_COUNT = 3;
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new NameThreadFactory((r) -> "release-line-scheduler-" + r.hashCode()));
     private final Session session;
     private final PlayerConfiguration conf;
@@ -411,6 +413,8 @@ public class Player implements Closeable {
 
                 session.eventService().sendEvent(new NewPlaybackIdEvent(state.getSessionId(), playbackId));
                 startMetrics(playbackId, startedReason, pos);
+
+                if (conf.preloadEnabled) prefetchAudioKeys();
             }
 
             @Override
@@ -721,6 +725,19 @@ public class Player implements Closeable {
 
 
     // ================================ //
+    /**
+     * Requests the audio keys of the next contents in advance, so that loading them doesn't wait for the access point.
+     */
+    private void prefetchAudioKeys() {
+        List<PlayableId> upcoming = state.upcomingPlayables(AUDIO_KEY_PREFETCH_COUNT);
+        if (upcoming.isEmpty()) return;
+
+        session.contentFeeder().prefetchAudioKeys(upcoming, new VorbisOnlyAudioQuality(conf.preferredQuality))
+                .whenComplete((v, ex) -> {
+                    if (ex != null) LOGGER.debug("Failed prefetching audio keys.", ex);
+                });
+    }
+
     // =========== Metrics ============ //
     // ================================ //
 
@@ -615,6 +615,15 @@ public class StateWrapper implements DeviceStateHandler.Listener, DealerClient.M
         }
     }
 
+    /**
+     * @return Up to {@code count} contents that should be played after the current one, without loading more pages
+     */
+    @NotNull
+    List<PlayableId> upcomingPlayables(int count) {
+        if (tracksKeeper == null) return Collections.emptyList();
+        return tracksKeeper.upcomingPlayables(count);
+    }
+
     @Nullable
     PlayableId nextPlayableDoNotSet() {
         try {
@@ -1214,6 +1223,22 @@ public class StateWrapper implements DeviceStateHandler.Listener, DealerClient.M
             throw new IllegalStateException("Did not find track to skip to: " + ProtoUtils.toString(track));
         }
 
+        @NotNull
+        synchronized List<PlayableId> upcomingPlayables(int count) {
+            List<PlayableId> upcoming = new ArrayList<>(count);
+            for (ContextTrack track : queue) {
+                if (upcoming.size() == count) return upcoming;
+                if (shouldPlay(track)) upcoming.add(PlayableId.from(track));
+            }
+
+            for (int i = getCurrentTrackIndex() + 1; i < tracks.size() && upcoming.size() < count; i++) {
+                ContextTrack track = tracks.get(i);
+                if (shouldPlay(track)) upcoming.add(PlayableId.from(track));
+            }
+
+            return upcoming;
+        }
+
         /**
          * Figures out what the next {@link PlayableId} should be. This is called directly by the preload function and therefore can return {@code null} as it doesn't account for repeating contexts.
          * This will NOT return {@link UnsupportedId}.
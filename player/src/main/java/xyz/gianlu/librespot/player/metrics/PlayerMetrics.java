@@ -17,8 +17,10 @@
 package xyz.gianlu.librespot.player.metrics;
 
 import org.jetbrains.annotations.Nullable;
+import xyz.gianlu.librespot.audio.ChunkBufferPool;
 import xyz.gianlu.librespot.audio.DecodedAudioStream;
 import xyz.gianlu.librespot.audio.PlayableContentFeeder;
+import xyz.gianlu.librespot.audio.ReadAheadWindow;
 import xyz.gianlu.librespot.player.crossfade.CrossfadeController;
 import xyz.gianlu.librespot.player.decoders.Decoder;
 import xyz.gianlu.librespot.player.mixing.output.OutputAudioFormat;
@@ -37,11 +39,20 @@ public final class PlayerMetrics {
     public int fadeOverlap = 0;
     public String transition = "none";
     public int decryptTime = 0;
+    public int readAheadChunks = 0;
+    public int chunkFetchTime = -1;
+    public long chunkThroughput = -1;
+    public long chunkBufferAllocations;
+    public long chunkBufferReuses;
 
     public PlayerMetrics(@Nullable PlayableContentFeeder.Metrics contentMetrics, @Nullable CrossfadeController crossfade,
                          @Nullable DecodedAudioStream stream, @Nullable Decoder decoder) {
         this.contentMetrics = contentMetrics;
 
+        ChunkBufferPool pool = ChunkBufferPool.get();
+        chunkBufferAllocations = pool.allocations();
+        chunkBufferReuses = pool.reuses();
+
         if (decoder != null) {
             size = decoder.size();
             duration = decoder.duration();
@@ -55,6 +66,11 @@ public final class PlayerMetrics {
             decryptTime = stream.decryptTimeMs();
             decodedLength = stream.stream().decodedLength();
 
+            ReadAheadWindow readAhead = stream.stream().readAhead();
+            readAheadChunks = readAhead.window();
+            chunkFetchTime = readAhead.fetchTimeMs();
+            chunkThroughput = readAhead.throughput();
+
             switch (stream.codec()) {
                 case MP3:
                     encoding = "mp3";